@@ -5,50 +5,43 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.http.Header;
-import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
-import org.apache.http.HttpRequest;
-import org.apache.http.HttpRequestInterceptor;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpResponseInterceptor;
-import org.apache.http.HttpVersion;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.AuthState;
-import org.apache.http.auth.Credentials;
-import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.HttpEntityWrapper;
-import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.SyncBasicHttpContext;
 
 import android.util.Log;
 
+import com.android.gary.common.synchttp.HttpTransport;
+import com.android.gary.common.synchttp.NetworkPolicy;
+import com.android.gary.common.synchttp.PoolStats;
+import com.android.gary.common.synchttp.RequestParams;
 import com.android.gary.common.synchttp.RetryHandler;
+import com.android.gary.common.synchttp.UrlBuilder;
 import com.android.gary.common.utils.LogUtil;
 
 public class AsyncHttpClient {
@@ -65,14 +58,25 @@ public class AsyncHttpClient {
     public static final int DEFAULT_MAX_RETRIES = 5;
     public static final int DEFAULT_RETRY_SLEEP_TIME_MILLIS = 1500;
     public static final int DEFAULT_SOCKET_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 32;
     private int maxConnections = 10;
+    private int maxConcurrentRequests;
     private int connectTimeout = 10000;
     private int responseTimeout = 10000;
+    private final HttpTransport transport;
     private final DefaultHttpClient httpClient;
+    private final HttpClient requestExecutor;
     private final HttpContext httpContext;
-    private ExecutorService threadPool;
+    private RequestScheduler scheduler;
+    private final ExecutorService threadPool;
     private final Map<String, String> clientHeaderMap;
     private boolean isUrlEncodingEnabled = true;
+    private final Map<String, FanOutResponseHandler> inFlightGets =
+            new HashMap<String, FanOutResponseHandler>();
+    private volatile boolean requestCoalescingEnabled = true;
+    private volatile boolean requestCompressionEnabled;
+    private final List<RequestHandle> requestHandles = new LinkedList<RequestHandle>();
+    private volatile long requestDeadline;
 
     public AsyncHttpClient() {
         this(false, 80, 443);
@@ -88,8 +92,10 @@ public class AsyncHttpClient {
 
     public AsyncHttpClient(boolean fixNoHttpResponseException, int httpPort,
                            int httpsPort) {
-        this(getDefaultSchemeRegistry(fixNoHttpResponseException, httpPort,
-                httpsPort));
+        this(fixNoHttpResponseException || httpPort != 80 || httpsPort != 443
+                ? new HttpTransport(getDefaultSchemeRegistry(
+                fixNoHttpResponseException, httpPort, httpsPort))
+                : HttpTransport.getDefault());
     }
 
     private static SchemeRegistry getDefaultSchemeRegistry(
@@ -110,95 +116,63 @@ public class AsyncHttpClient {
             LogUtil.d(LOG_TAG,
                     "Invalid HTTPS port number specified, defaulting to 443");
         }
-        SSLSocketFactory sslSocketFactory = SSLSocketFactory.getSocketFactory();
 
-        SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("http", PlainSocketFactory
-                .getSocketFactory(), httpPort));
-        schemeRegistry
-                .register(new Scheme("https", sslSocketFactory, httpsPort));
-
-        return schemeRegistry;
+        return HttpTransport.createSchemeRegistry(httpPort, httpsPort);
     }
 
     public AsyncHttpClient(SchemeRegistry schemeRegistry) {
-        BasicHttpParams httpParams = new BasicHttpParams();
-
-        ConnManagerParams.setTimeout(httpParams, connectTimeout);
-        ConnManagerParams.setMaxConnectionsPerRoute(httpParams,
-                new ConnPerRouteBean(maxConnections));
-        ConnManagerParams.setMaxTotalConnections(httpParams, 10);
-
-        HttpConnectionParams.setSoTimeout(httpParams, responseTimeout);
-        HttpConnectionParams.setConnectionTimeout(httpParams, connectTimeout);
-        HttpConnectionParams.setTcpNoDelay(httpParams, true);
-        HttpConnectionParams.setSocketBufferSize(httpParams, 8192);
+        this(new HttpTransport(schemeRegistry));
+    }
 
-        HttpProtocolParams.setVersion(httpParams, HttpVersion.HTTP_1_1);
+    /**
+     * Creates a client on top of the given transport. Clients sharing a
+     * transport, including {@link com.android.gary.common.synchttp.HttpClientUtil},
+     * share its connection pool.
+     */
+    public AsyncHttpClient(HttpTransport transport) {
+        this(transport, null);
+    }
 
-        ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(
-                httpParams, schemeRegistry);
+    /**
+     * Creates a client that sends its requests through {@code executor}
+     * rather than the transport's own HTTP/1.1 client, e.g. an adapter over a
+     * library speaking HTTP/2, which multiplexes concurrent requests to a
+     * host over one connection instead of queueing them for the pool.
+     * <p/>
+     * Responses reach the handlers as before. Scheduling, deadlines,
+     * coalescing, retries and circuit breakers still come from this client
+     * and {@code transport}; the executor should take its timeouts from the
+     * request's parameters and stop when the request is aborted, which is
+     * how requests are cancelled. Up to
+     * {@link #DEFAULT_MAX_CONCURRENT_REQUESTS} requests run at once.
+     *
+     * @param executor null for the transport's client
+     */
+    public AsyncHttpClient(HttpTransport transport, HttpClient executor) {
+        this(transport, executor, DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
 
+    /**
+     * Like {@link #AsyncHttpClient(HttpTransport, HttpClient)}, running up to
+     * {@code maxConcurrentRequests} requests at once. The limit is the
+     * executor's own: it does not grow the transport's connection pool, and
+     * {@link #setMaxConnections(int)} does not change it.
+     *
+     * @param maxConcurrentRequests ignored without an executor, the pool size
+     *                              limits the transport's client
+     */
+    public AsyncHttpClient(HttpTransport transport, HttpClient executor,
+                           int maxConcurrentRequests) {
+        this.transport = transport;
+        httpClient = transport.getHttpClient();
+        requestExecutor = executor;
+        maxConnections = transport.getMaxConnections();
+        this.maxConcurrentRequests = maxConcurrentRequests < 1
+                ? DEFAULT_MAX_CONCURRENT_REQUESTS : maxConcurrentRequests;
+        scheduler = getDefaultScheduler();
         threadPool = getDefaultThreadPool();
         clientHeaderMap = new HashMap<String, String>();
-
         httpContext = new SyncBasicHttpContext(new BasicHttpContext());
-        httpClient = new DefaultHttpClient(cm, httpParams);
-        httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
-            public void process(HttpRequest request, HttpContext context) {
-                if (!request.containsHeader("Accept-Encoding")) {
-                    request.addHeader("Accept-Encoding", "gzip");
-                }
-                for (String header : clientHeaderMap.keySet()) {
-                    if (request.containsHeader(header)) {
-                        Header overwritten = request.getFirstHeader(header);
-                        request.removeHeader(overwritten);
-                    }
-                    request.addHeader(header,
-                            (String) clientHeaderMap.get(header));
-                }
-            }
-        });
-        httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
-            public void process(HttpResponse response, HttpContext context) {
-                HttpEntity entity = response.getEntity();
-                if (entity == null) {
-                    return;
-                }
-                Header encoding = entity.getContentEncoding();
-                if (encoding != null)
-                    for (HeaderElement element : encoding.getElements())
-                        if (element.getName().equalsIgnoreCase("gzip")) {
-                            response.setEntity(new AsyncHttpClient.InflatingEntity(
-                                    entity));
-                            return;
-                        }
-            }
-        });
-        httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
-            public void process(HttpRequest request, HttpContext context)
-                    throws HttpException, IOException {
-                AuthState authState = (AuthState) context
-                        .getAttribute("http.auth.target-scope");
-                CredentialsProvider credsProvider = (CredentialsProvider) context
-                        .getAttribute("http.auth.credentials-provider");
-
-                HttpHost targetHost = (HttpHost) context
-                        .getAttribute("http.target_host");
-
-                if (authState.getAuthScheme() == null) {
-                    AuthScope authScope = new AuthScope(targetHost
-                            .getHostName(), targetHost.getPort());
-                    Credentials creds = credsProvider.getCredentials(authScope);
-                    if (creds != null) {
-                        authState.setAuthScheme(new BasicScheme());
-                        authState.setCredentials(creds);
-                    }
-                }
-            }
-        }, 0);
-
-        httpClient.setHttpRequestRetryHandler(new RetryHandler(5, 1500));
     }
 
     public static void endEntityViaReflection(HttpEntity entity) {
@@ -240,9 +214,6 @@ public class AsyncHttpClient {
 
     public void setConnectTimeout(int value) {
         connectTimeout = ((value < 1000) ? 10000 : value);
-        HttpParams httpParams = httpClient.getParams();
-        ConnManagerParams.setTimeout(httpParams, connectTimeout);
-        HttpConnectionParams.setConnectionTimeout(httpParams, connectTimeout);
     }
 
     public int getResponseTimeout() {
@@ -251,18 +222,268 @@ public class AsyncHttpClient {
 
     public void setResponseTimeout(int value) {
         responseTimeout = ((value < 1000) ? 10000 : value);
-        HttpParams httpParams = httpClient.getParams();
-        HttpConnectionParams.setSoTimeout(httpParams, responseTimeout);
     }
 
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the connection pool size. Without an executor the scheduler runs
+     * the same number of workers, so requests beyond it wait in the priority
+     * queue instead of blocking a thread on the pool.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            maxConnections = DEFAULT_MAX_CONNECTIONS;
+        }
+        this.maxConnections = maxConnections;
+        transport.setMaxConnections(maxConnections);
+        scheduler.setMaxWorkers(getMaxConcurrentRequests());
+    }
+
+    /**
+     * @return how many requests run at once: the executor's limit, or the
+     * pool size without an executor
+     */
+    public int getMaxConcurrentRequests() {
+        return requestExecutor != null ? maxConcurrentRequests : maxConnections;
+    }
+
+    /**
+     * Sets how many requests the executor given to
+     * {@link #AsyncHttpClient(HttpTransport, HttpClient, int)} runs at once.
+     * Has no effect without an executor, see {@link #setMaxConnections(int)}.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        if (maxConcurrentRequests < 1) {
+            maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+        }
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        scheduler.setMaxWorkers(getMaxConcurrentRequests());
+    }
+
+    /**
+     * Limits the connections opened to a single host, e.g. to keep a slow
+     * image CDN from taking the whole pool.
+     */
+    public void setMaxConnectionsPerRoute(HttpHost target, int max) {
+        transport.setMaxConnectionsPerRoute(target, max);
+    }
+
+    public PoolStats getPoolStats() {
+        return transport.getPoolStats();
+    }
+
+    /**
+     * Sets how many requests may wait for a worker before new ones are
+     * rejected.
+     */
+    public void setMaxQueueDepth(int maxQueueDepth) {
+        scheduler.setMaxQueueDepth(maxQueueDepth);
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    protected RequestScheduler getDefaultScheduler() {
+        return new RequestScheduler(getMaxConcurrentRequests());
+    }
+
+    /**
+     * Kept for subclasses that supplied their own pool. A pool returned here
+     * runs the requests instead of the {@link RequestScheduler}, without
+     * priorities, queue limit or deadlines, and retries wait on the pool's
+     * thread.
+     *
+     * @return null to use the scheduler, the default
+     * @deprecated override {@link #getDefaultScheduler()} instead
+     */
+    @Deprecated
     protected ExecutorService getDefaultThreadPool() {
-        return Executors.newCachedThreadPool();
+        return null;
     }
 
-    public void get(String url, ResponseHandlerInterface responseHandler) {
-        sendRequest(httpClient, httpContext,
+    /**
+     * Sets the deadline given to every new request, covering queueing,
+     * retries and backoff. A handle can still change it per request.
+     *
+     * @param timeoutMillis 0 for none, the default
+     * @see RequestHandle#setDeadline(long)
+     */
+    public void setRequestDeadline(long timeoutMillis) {
+        requestDeadline = timeoutMillis;
+    }
+
+    public long getRequestDeadline() {
+        return requestDeadline;
+    }
+
+    /**
+     * Cancels every pending request whose handle was tagged with {@code tag},
+     * e.g. the Activity that is going away.
+     *
+     * @param mayInterruptIfRunning abort requests in progress, so their
+     *                              connections are closed right away
+     */
+    public void cancelRequests(Object tag, boolean mayInterruptIfRunning) {
+        if (tag == null) {
+            return;
+        }
+        for (RequestHandle handle : pendingHandles()) {
+            if (tag.equals(handle.getTag())) {
+                handle.cancel(mayInterruptIfRunning);
+            }
+        }
+    }
+
+    public void cancelAllRequests(boolean mayInterruptIfRunning) {
+        for (RequestHandle handle : pendingHandles()) {
+            handle.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    private List<RequestHandle> pendingHandles() {
+        synchronized (requestHandles) {
+            pruneHandles();
+            return new ArrayList<RequestHandle>(requestHandles);
+        }
+    }
+
+    private RequestHandle register(RequestHandle handle) {
+        synchronized (requestHandles) {
+            pruneHandles();
+            requestHandles.add(handle);
+        }
+        return handle;
+    }
+
+    private void pruneHandles() {
+        Iterator<RequestHandle> it = requestHandles.iterator();
+        while (it.hasNext()) {
+            if (it.next().shouldBeGarbageCollected()) {
+                it.remove();
+            }
+        }
+    }
+
+    public RequestHandle get(String url, ResponseHandlerInterface responseHandler) {
+        return get(url, responseHandler, RequestScheduler.PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * @param priority one of {@link RequestScheduler#PRIORITY_FOREGROUND},
+     *                 {@link RequestScheduler#PRIORITY_PREFETCH} or
+     *                 {@link RequestScheduler#PRIORITY_BACKGROUND}
+     */
+    public RequestHandle get(String url, ResponseHandlerInterface responseHandler,
+                             int priority) {
+        return sendRequest(httpClient, httpContext,
                 new HttpGet(getUrlWithQueryString(isUrlEncodingEnabled, url)),
-                null, responseHandler);
+                null, responseHandler, priority);
+    }
+
+    /**
+     * Sends the string parameters of {@code params} in the query string.
+     */
+    public RequestHandle get(String url, RequestParams params,
+                             ResponseHandlerInterface responseHandler) {
+        return execute(new HttpRequestSpec.Builder(HttpGet.METHOD_NAME, url)
+                .params(params).build(), responseHandler);
+    }
+
+    public RequestHandle head(String url, ResponseHandlerInterface responseHandler) {
+        return head(url, null, responseHandler);
+    }
+
+    public RequestHandle head(String url, RequestParams params,
+                              ResponseHandlerInterface responseHandler) {
+        return execute(new HttpRequestSpec.Builder(HttpHead.METHOD_NAME, url)
+                .params(params).build(), responseHandler);
+    }
+
+    /**
+     * Sends {@code params} as a form, or as multipart when it holds files.
+     * The body is built on the worker, so streams are never copied on the
+     * calling thread.
+     */
+    public RequestHandle post(String url, RequestParams params,
+                              ResponseHandlerInterface responseHandler) {
+        return sendWithBody(HttpPost.METHOD_NAME, url, params, null, null, responseHandler);
+    }
+
+    /**
+     * @param contentType used when {@code entity} does not carry one
+     */
+    public RequestHandle post(String url, HttpEntity entity, String contentType,
+                              ResponseHandlerInterface responseHandler) {
+        return sendWithBody(HttpPost.METHOD_NAME, url, null, entity, contentType, responseHandler);
+    }
+
+    public RequestHandle put(String url, RequestParams params,
+                             ResponseHandlerInterface responseHandler) {
+        return sendWithBody(HttpPut.METHOD_NAME, url, params, null, null, responseHandler);
+    }
+
+    public RequestHandle put(String url, HttpEntity entity, String contentType,
+                             ResponseHandlerInterface responseHandler) {
+        return sendWithBody(HttpPut.METHOD_NAME, url, null, entity, contentType, responseHandler);
+    }
+
+    public RequestHandle patch(String url, RequestParams params,
+                               ResponseHandlerInterface responseHandler) {
+        return sendWithBody(HttpPatch.METHOD_NAME, url, params, null, null, responseHandler);
+    }
+
+    public RequestHandle patch(String url, HttpEntity entity, String contentType,
+                               ResponseHandlerInterface responseHandler) {
+        return sendWithBody(HttpPatch.METHOD_NAME, url, null, entity, contentType, responseHandler);
+    }
+
+    public RequestHandle delete(String url, ResponseHandlerInterface responseHandler) {
+        return delete(url, null, responseHandler);
+    }
+
+    /**
+     * Sends the string parameters of {@code params} in the query string.
+     */
+    public RequestHandle delete(String url, RequestParams params,
+                                ResponseHandlerInterface responseHandler) {
+        return execute(new HttpRequestSpec.Builder(HttpDelete.METHOD_NAME, url)
+                .params(params).build(), responseHandler);
+    }
+
+    private RequestHandle sendWithBody(String method, String url, RequestParams params,
+                                       HttpEntity entity, String contentType,
+                                       ResponseHandlerInterface responseHandler) {
+        HttpRequestSpec.Builder builder = new HttpRequestSpec.Builder(method, url);
+        if (entity != null) {
+            builder.entity(entity, contentType);
+        } else {
+            builder.params(params);
+        }
+        return execute(builder.build(), responseHandler);
+    }
+
+    /**
+     * Sends a request described by a spec; its priority and deadline apply.
+     */
+    public RequestHandle execute(HttpRequestSpec spec, ResponseHandlerInterface responseHandler) {
+        return sendRequest(httpClient, httpContext, spec.newRequest(), null,
+                responseHandler, spec.getPriority(), spec.getDeadline());
+    }
+
+    /**
+     * Sends a prepared request, e.g. one carrying custom headers.
+     */
+    public RequestHandle execute(HttpUriRequest uriRequest, ResponseHandlerInterface responseHandler,
+                                 int priority) {
+        return sendRequest(httpClient, httpContext, uriRequest, null, responseHandler, priority);
     }
 
     public static String getUrlWithQueryString(boolean shouldEncodeUrl,
@@ -271,14 +492,33 @@ public class AsyncHttpClient {
             return null;
         }
         if (shouldEncodeUrl) {
-            url = url.replace(" ", "%20");
+            url = UrlBuilder.escapeUrl(url);
         }
         return url;
     }
 
-    protected void sendRequest(DefaultHttpClient client,
-                               HttpContext httpContext, HttpUriRequest uriRequest,
-                               String contentType, ResponseHandlerInterface responseHandler) {
+    protected RequestHandle sendRequest(DefaultHttpClient client,
+                                        HttpContext httpContext, HttpUriRequest uriRequest,
+                                        String contentType, ResponseHandlerInterface responseHandler) {
+        return sendRequest(client, httpContext, uriRequest, contentType,
+                responseHandler, RequestScheduler.PRIORITY_FOREGROUND);
+    }
+
+    protected RequestHandle sendRequest(DefaultHttpClient client,
+                                        HttpContext httpContext, HttpUriRequest uriRequest,
+                                        String contentType, ResponseHandlerInterface responseHandler,
+                                        int priority) {
+        return sendRequest(client, httpContext, uriRequest, contentType, responseHandler,
+                priority, 0);
+    }
+
+    /**
+     * @param deadlineMillis overall deadline, 0 for the client's default
+     */
+    private RequestHandle sendRequest(DefaultHttpClient client,
+                                      HttpContext httpContext, HttpUriRequest uriRequest,
+                                      String contentType, ResponseHandlerInterface responseHandler,
+                                      int priority, long deadlineMillis) {
         if (uriRequest == null) {
             throw new IllegalArgumentException(
                     "HttpUriRequest must not be null");
@@ -294,6 +534,15 @@ public class AsyncHttpClient {
                     "Synchronous ResponseHandler used in AsyncHttpClient. You should create your response handler in a looper thread or use SyncHttpClient instead.");
         }
 
+        NetworkPolicy policy = transport.getNetworkPolicy();
+        applyConcurrencyLimit(policy);
+        if (priority == RequestScheduler.PRIORITY_PREFETCH && policy != null
+                && !policy.isPrefetchAllowed()) {
+            responseHandler.sendFailureMessage(0, null, null, new RejectedExecutionException(
+                    "Prefetch not allowed on this network"));
+            return new RequestHandle((AsyncHttpRequest) null);
+        }
+
         if (contentType != null) {
             if ((uriRequest instanceof HttpEntityEnclosingRequestBase)
                     && (((HttpEntityEnclosingRequestBase) uriRequest)
@@ -305,49 +554,117 @@ public class AsyncHttpClient {
             }
         }
 
+        for (Map.Entry<String, String> header : clientHeaderMap.entrySet()) {
+            uriRequest.setHeader(header.getKey(), header.getValue());
+        }
+        transport.applyNetworkPolicy(uriRequest, connectTimeout, responseTimeout);
+
         responseHandler.setRequestHeaders(uriRequest.getAllHeaders());
         responseHandler.setRequestURI(uriRequest.getURI());
 
-        AsyncHttpRequest request = newAsyncHttpRequest(client, httpContext,
-                uriRequest, responseHandler);
-        threadPool.submit(request);
-    }
-
-    private static class InflatingEntity extends HttpEntityWrapper {
-        InputStream wrappedStream;
-        PushbackInputStream pushbackStream;
-        GZIPInputStream gzippedStream;
-
-        public InflatingEntity(HttpEntity wrapped) {
-            super(wrapped);
+        // streamed bodies are not coalesced, sharing them means buffering them
+        FanOutResponseHandler fanOut = null;
+        ResponseHandlerInterface callerHandler = responseHandler;
+        if (requestCoalescingEnabled && "GET".equals(uriRequest.getMethod())
+                && !(responseHandler instanceof StreamingResponseHandler)) {
+            String coalescingKey = coalescingKey(uriRequest);
+            synchronized (inFlightGets) {
+                FanOutResponseHandler inFlight = inFlightGets.get(coalescingKey);
+                if (inFlight != null && inFlight.addHandler(responseHandler)) {
+                    return register(new RequestHandle(inFlight, responseHandler));
+                }
+                fanOut = new FanOutResponseHandler(
+                        coalescingKey, inFlightGets, responseHandler);
+                inFlightGets.put(coalescingKey, fanOut);
+                responseHandler = fanOut;
+            }
         }
 
-        public InputStream getContent() throws IOException {
-            wrappedStream = wrappedEntity.getContent();
-            pushbackStream = new PushbackInputStream(wrappedStream, 2);
-            if (AsyncHttpClient.isInputStreamGZIPCompressed(pushbackStream)) {
-                gzippedStream = new GZIPInputStream(pushbackStream);
-                return gzippedStream;
+        // per-request child context: retry state must not leak between requests
+        HttpContext requestContext = new BasicHttpContext(httpContext);
+        if (threadPool == null) {
+            requestContext.setAttribute(RetryHandler.ATTR_DEFER_RETRY, Boolean.TRUE);
+        }
+        AsyncHttpRequest request = newAsyncHttpRequest(client, requestContext,
+                uriRequest, responseHandler);
+        request.setPriority(priority);
+        request.setRequestCompression(requestCompressionEnabled);
+        request.setCircuitBreaker(transport.getCircuitBreaker(uriRequest));
+        request.setMetrics(transport.getMetrics());
+        request.setRetryBudget(transport.getRetryBudget());
+        request.setDeadline(deadlineMillis > 0 ? deadlineMillis : requestDeadline);
+        RequestHandle handle;
+        if (fanOut != null) {
+            fanOut.setRequest(request);
+            handle = new RequestHandle(fanOut, callerHandler);
+        } else {
+            handle = new RequestHandle(request);
+        }
+        try {
+            if (threadPool != null) {
+                threadPool.submit(request);
+            } else {
+                scheduler.submit(request);
             }
-            return pushbackStream;
+        } catch (RejectedExecutionException e) {
+            LogUtil.w(LOG_TAG, "Request rejected: " + uriRequest.getURI(), e);
+            responseHandler.sendFailureMessage(0, null, null, e);
+            return handle;
         }
+        return register(handle);
+    }
 
-        public long getContentLength() {
-            return (wrappedEntity == null) ? 0L : wrappedEntity
-                    .getContentLength();
+    /**
+     * Runs no more requests at once than the network policy allows, or
+     * {@link #getMaxConcurrentRequests()} without a policy.
+     */
+    private void applyConcurrencyLimit(NetworkPolicy policy) {
+        int limit = getMaxConcurrentRequests();
+        int workers = policy == null ? limit
+                : Math.max(1, Math.min(limit, policy.getProfile().maxConcurrentRequests));
+        if (scheduler.getMaxWorkers() != workers) {
+            scheduler.setMaxWorkers(workers);
         }
+    }
+
+    /**
+     * Concurrent GETs for the same URL with the same headers share one
+     * network request, and the response is delivered to each handler.
+     * Enabled by default.
+     */
+    public void setRequestCoalescingEnabled(boolean enabled) {
+        requestCoalescingEnabled = enabled;
+    }
 
-        public void consumeContent() throws IOException {
-            AsyncHttpClient.silentCloseInputStream(wrappedStream);
-            AsyncHttpClient.silentCloseInputStream(pushbackStream);
-            AsyncHttpClient.silentCloseInputStream(gzippedStream);
-            super.consumeContent();
+    /**
+     * Sends request bodies of 1 KB and more gzip compressed. Off by default,
+     * the server has to accept {@code Content-Encoding: gzip} requests.
+     */
+    public void setRequestCompressionEnabled(boolean enabled) {
+        requestCompressionEnabled = enabled;
+    }
+
+    private static String coalescingKey(HttpUriRequest uriRequest) {
+        Header[] headers = uriRequest.getAllHeaders();
+        String[] lines = new String[headers.length];
+        for (int i = 0; i < headers.length; i++) {
+            lines[i] = headers[i].getName().toLowerCase(Locale.US) + ": " + headers[i].getValue();
+        }
+        Arrays.sort(lines);
+        StringBuilder key = new StringBuilder(uriRequest.getURI().toString());
+        for (String line : lines) {
+            key.append('\n').append(line);
         }
+        return key.toString();
     }
 
     protected AsyncHttpRequest newAsyncHttpRequest(DefaultHttpClient client,
                                                    HttpContext httpContext, HttpUriRequest uriRequest,
                                                    ResponseHandlerInterface responseHandler) {
+        if (requestExecutor != null) {
+            return new AsyncHttpRequest(requestExecutor, client.getHttpRequestRetryHandler(),
+                    httpContext, uriRequest, responseHandler);
+        }
         return new AsyncHttpRequest(client, httpContext, uriRequest,
                 responseHandler);
     }
@@ -3,34 +3,167 @@ package com.android.gary.common.asynchttp;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.util.concurrent.ScheduledFuture;
 
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HttpContext;
 
+import android.os.SystemClock;
+
+import com.android.gary.common.synchttp.CircuitBreaker;
+import com.android.gary.common.synchttp.CircuitOpenException;
+import com.android.gary.common.synchttp.ContentCodings;
+import com.android.gary.common.synchttp.HttpMetrics;
+import com.android.gary.common.synchttp.HttpTransport;
+import com.android.gary.common.synchttp.RequestParams;
+import com.android.gary.common.synchttp.RetryBudget;
+import com.android.gary.common.synchttp.RetryHandler;
 import com.android.gary.common.utils.LogUtil;
 
 public class AsyncHttpRequest implements Runnable {
-    private final AbstractHttpClient client;
+    private final HttpClient client;
+    private final HttpRequestRetryHandler retryHandler;
     private final HttpContext context;
     private final HttpUriRequest request;
     private final ResponseHandlerInterface responseHandler;
     private int executionCount;
-    private boolean isCancelled;
+    private volatile boolean isCancelled;
     private boolean cancelIsNotified;
-    private boolean isFinished;
+    private volatile boolean isFinished;
+    private volatile boolean isTimedOut;
+    private boolean timeoutIsNotified;
+    private boolean isRunning;
+    private boolean isSubmitted;
+    private long timeoutMillis;
+    private long deadline;
+    private ScheduledFuture<?> deadlineTimer;
     private boolean isRequestPreProcessed;
+    private int priority = RequestScheduler.PRIORITY_FOREGROUND;
+    private RequestScheduler scheduler;
+    private CircuitBreaker circuitBreaker;
+    private HttpMetrics metrics;
+    private boolean compressRequest;
+    private RetryBudget retryBudget;
+    private boolean isRequestRecorded;
+    private long startedAt;
+    private int statusCode;
 
     public AsyncHttpRequest(AbstractHttpClient client, HttpContext context,
                             HttpUriRequest request, ResponseHandlerInterface responseHandler) {
+        this(client, client.getHttpRequestRetryHandler(), context, request, responseHandler);
+    }
+
+    /**
+     * @param client       executes the request, see
+     *                     {@link AsyncHttpClient#AsyncHttpClient(HttpTransport, HttpClient)}
+     * @param retryHandler decides about retries, as {@code client}'s own
+     *                     handler would; null for none
+     */
+    public AsyncHttpRequest(HttpClient client, HttpRequestRetryHandler retryHandler,
+                            HttpContext context, HttpUriRequest request,
+                            ResponseHandlerInterface responseHandler) {
         this.client = client;
+        this.retryHandler = retryHandler;
         this.context = context;
         this.request = request;
         this.responseHandler = responseHandler;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    void setScheduler(RequestScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param circuitBreaker breaker of the target host, asked before every
+     *                       attempt; null to always send
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @param retryBudget told about the request when its first attempt goes
+     *                    out; null to record nothing
+     */
+    public void setRetryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
+    /**
+     * Sends the body gzip compressed, see {@link ContentCodings#compressRequest}.
+     * Applied on the worker before the first attempt, so a body built from
+     * {@link RequestParams} is not built on the caller's thread to check its
+     * size.
+     */
+    public void setRequestCompression(boolean compressRequest) {
+        this.compressRequest = compressRequest;
+    }
+
+    /**
+     * @param metrics where the outcome is recorded once the last attempt has
+     *                finished; null to record nothing
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Limits the whole request, including time spent queued, every attempt
+     * and the backoff between attempts, to {@code timeoutMillis} from now.
+     * When it runs out the connection is aborted and the handler gets a
+     * {@link DeadlineExceededException}.
+     *
+     * @param timeoutMillis 0 for no deadline
+     */
+    public synchronized void setDeadline(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        deadline = timeoutMillis > 0 ? SystemClock.elapsedRealtime() + timeoutMillis : 0;
+        if (deadlineTimer != null) {
+            deadlineTimer.cancel(false);
+            deadlineTimer = null;
+        }
+        if (isSubmitted) {
+            startDeadlineTimer();
+        }
+    }
+
+    synchronized void onSubmitted() {
+        isSubmitted = true;
+        startDeadlineTimer();
+    }
+
+    private void startDeadlineTimer() {
+        if (deadline == 0 || scheduler == null || isFinished || isCancelled) {
+            return;
+        }
+        deadlineTimer = scheduler.runLater(new Runnable() {
+            public void run() {
+                expire();
+            }
+        }, Math.max(0, deadline - SystemClock.elapsedRealtime()));
+    }
+
+    private synchronized void stopDeadlineTimer() {
+        if (deadlineTimer != null) {
+            deadlineTimer.cancel(false);
+            deadlineTimer = null;
+        }
+    }
+
     public void onPreProcessRequest(AsyncHttpRequest request) {
     }
 
@@ -38,9 +171,40 @@ public class AsyncHttpRequest implements Runnable {
     }
 
     public void run() {
-        if (isCancelled()) {
+        boolean start;
+        synchronized (this) {
+            start = !isCancelled && !isTimedOut && !isFinished;
+            isRunning = start;
+        }
+        if (!start) {
+            if (isTimedOut) {
+                notifyTimeout();
+            }
             return;
         }
+        boolean rescheduled = false;
+        try {
+            rescheduled = runAttempts();
+        } finally {
+            synchronized (this) {
+                isRunning = false;
+            }
+            if (!rescheduled) {
+                stopDeadlineTimer();
+                if (isCancelled) {
+                    HttpTransport.releaseRequestEntity(request);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if a retry was scheduled and the request will run again
+     */
+    private boolean runAttempts() {
+        if (isCancelled()) {
+            return false;
+        }
 
         if (!isRequestPreProcessed) {
             isRequestPreProcessed = true;
@@ -48,18 +212,25 @@ public class AsyncHttpRequest implements Runnable {
         }
 
         if (isCancelled()) {
-            return;
+            return false;
         }
 
-        if (responseHandler != null) {
-            responseHandler.sendStartMessage();
+        if (executionCount == 0) {
+            startedAt = SystemClock.elapsedRealtime();
+            if (compressRequest) {
+                ContentCodings.compressRequest(request);
+            }
+            if (responseHandler != null) {
+                responseHandler.sendStartMessage();
+            }
         }
 
         if (isCancelled()) {
-            return;
+            return false;
         }
+        boolean rescheduled = false;
         try {
-            makeRequestWithRetries();
+            rescheduled = makeRequestWithRetries();
         } catch (IOException e) {
             if ((!isCancelled()) && (responseHandler != null))
                 responseHandler.sendFailureMessage(0, null, null, e);
@@ -69,10 +240,23 @@ public class AsyncHttpRequest implements Runnable {
                         "makeRequestWithRetries returned error, but handler is null",
                         e);
             }
+        } finally {
+            // a scheduled retry sends the body again, keep it until then
+            if (!rescheduled) {
+                HttpTransport.releaseRequestEntity(request);
+                if (metrics != null && !isCancelled) {
+                    metrics.record(request, context, statusCode,
+                            SystemClock.elapsedRealtime() - startedAt);
+                }
+            }
+        }
+
+        if (rescheduled) {
+            return true;
         }
 
         if (isCancelled()) {
-            return;
+            return false;
         }
 
         if (responseHandler != null) {
@@ -80,15 +264,17 @@ public class AsyncHttpRequest implements Runnable {
         }
 
         if (isCancelled()) {
-            return;
+            return false;
         }
 
         onPostProcessRequest(this);
 
         isFinished = true;
+        return false;
     }
 
     private void makeRequest() throws IOException {
+        statusCode = 0;
         if (isCancelled()) {
             return;
         }
@@ -97,7 +283,35 @@ public class AsyncHttpRequest implements Runnable {
             throw new MalformedURLException("No valid URI scheme was provided");
         }
 
-        HttpResponse response = client.execute(request, context);
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new CircuitOpenException(circuitBreaker.getHost());
+        }
+        if (retryBudget != null && !isRequestRecorded) {
+            isRequestRecorded = true;
+            retryBudget.recordRequest();
+        }
+        if (deadline > 0) {
+            limitTimeouts(deadline - SystemClock.elapsedRealtime());
+        }
+        HttpResponse response;
+        long start = SystemClock.elapsedRealtime();
+        try {
+            response = client.execute(request, context);
+        } catch (IOException e) {
+            // an abort of our own says nothing about the host
+            if (circuitBreaker != null && !isCancelled && !isTimedOut) {
+                circuitBreaker.onFailure();
+            }
+            throw e;
+        }
+        statusCode = response.getStatusLine().getStatusCode();
+        if (circuitBreaker != null) {
+            if (statusCode >= 500) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess(SystemClock.elapsedRealtime() - start);
+            }
+        }
 
         if ((isCancelled()) || (responseHandler == null)) {
             return;
@@ -118,38 +332,53 @@ public class AsyncHttpRequest implements Runnable {
         responseHandler.onPostProcessResponse(responseHandler, response);
     }
 
-    private void makeRequestWithRetries() throws IOException {
+    /**
+     * @return true if a retry was scheduled on the {@link RequestScheduler}
+     * instead of being made on this thread
+     */
+    private boolean makeRequestWithRetries() throws IOException {
         boolean retry = true;
         IOException cause = null;
-        HttpRequestRetryHandler retryHandler = client
-                .getHttpRequestRetryHandler();
         try {
             while (retry) {
                 try {
                     makeRequest();
-                    return;
+                    return false;
                 } catch (UnknownHostException e) {
                     cause = new IOException("UnknownHostException exception: "
                             + e.getMessage());
                     retry = (executionCount > 0)
-                            && (retryHandler.retryRequest(cause,
-                            ++executionCount, context));
+                            && (retryRequest(retryHandler, cause));
                 } catch (NullPointerException e) {
                     cause = new IOException("NPE in HttpClient: "
                             + e.getMessage());
-                    retry = retryHandler.retryRequest(cause, ++executionCount,
-                            context);
+                    retry = retryRequest(retryHandler, cause);
                 } catch (IOException e) {
                     if (isCancelled()) {
-                        return;
+                        return false;
+                    }
+                    if (isTimedOut || e instanceof DeadlineExceededException) {
+                        cause = new DeadlineExceededException(timeoutMillis);
+                        break;
                     }
                     cause = e;
-                    retry = retryHandler.retryRequest(cause, ++executionCount,
-                            context);
+                    retry = retryRequest(retryHandler, cause);
+                }
+                if (retry) {
+                    long delay = isDeferred(retryHandler) ? ((RetryHandler) retryHandler)
+                            .getRetryDelay(executionCount, context) : 0;
+                    if (!hasTimeLeft(delay)) {
+                        cause = new DeadlineExceededException(timeoutMillis);
+                        break;
+                    }
+                    if (responseHandler != null) {
+                        responseHandler.sendRetryMessage(executionCount);
+                    }
+                    if (isDeferred(retryHandler)) {
+                        scheduler.schedule(this, delay);
+                        return true;
+                    }
                 }
-                if ((retry) && (responseHandler != null))
-                    ;
-                responseHandler.sendRetryMessage(executionCount);
             }
         } catch (Exception e) {
             LogUtil.e("AsyncHttpRequest", "Unhandled exception origin cause", e);
@@ -159,6 +388,129 @@ public class AsyncHttpRequest implements Runnable {
         throw cause;
     }
 
+    private boolean hasTimeLeft(long delayMillis) {
+        return !isTimedOut && (deadline == 0
+                || SystemClock.elapsedRealtime() + delayMillis < deadline);
+    }
+
+    /**
+     * Keeps a single attempt, pool wait included, from outliving the deadline.
+     */
+    private void limitTimeouts(long remainingMillis) throws IOException {
+        if (remainingMillis <= 0) {
+            throw new DeadlineExceededException(timeoutMillis);
+        }
+        HttpParams params = request.getParams();
+        int remaining = (int) Math.min(Integer.MAX_VALUE, remainingMillis);
+        HttpTransport.applyTimeouts(params,
+                limit(HttpConnectionParams.getConnectionTimeout(params), remaining),
+                limit(HttpConnectionParams.getSoTimeout(params), remaining));
+    }
+
+    private static int limit(int timeout, int remaining) {
+        return timeout <= 0 ? remaining : Math.min(timeout, remaining);
+    }
+
+    private boolean retryRequest(HttpRequestRetryHandler retryHandler,
+                                 IOException cause) {
+        if (isDeferred(retryHandler)) {
+            return ((RetryHandler) retryHandler).shouldRetry(cause,
+                    ++executionCount, context);
+        }
+        ++executionCount;
+        return retryHandler != null && retryHandler.retryRequest(cause, executionCount, context);
+    }
+
+    /**
+     * The backoff wait runs on the scheduler's timer when HttpClient's own
+     * retries were switched off for this request.
+     */
+    private boolean isDeferred(HttpRequestRetryHandler retryHandler) {
+        return scheduler != null && retryHandler instanceof RetryHandler
+                && Boolean.TRUE.equals(context.getAttribute(RetryHandler.ATTR_DEFER_RETRY));
+    }
+
+    /**
+     * Stops the request. A queued request is dropped from the queue and one
+     * waiting for a retry will not run again; the handler gets
+     * {@code onCancel} and nothing after it.
+     *
+     * @param mayInterruptIfRunning abort the connection of an attempt in
+     *                              progress, which closes its socket right away
+     *                              instead of reading the response to the end
+     * @return false if the request had already finished or been cancelled
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean running;
+        synchronized (this) {
+            if (isFinished || isCancelled) {
+                return false;
+            }
+            isCancelled = true;
+            running = isRunning;
+        }
+        stopDeadlineTimer();
+        if (running) {
+            if (mayInterruptIfRunning) {
+                request.abort();
+            }
+        } else {
+            if (scheduler != null) {
+                scheduler.remove(this);
+            }
+            HttpTransport.releaseRequestEntity(request);
+        }
+        sendCancelNotification();
+        return true;
+    }
+
+    /**
+     * Called on the scheduler's timer when the deadline runs out. An attempt
+     * in progress is aborted and fails on its worker, otherwise the failure
+     * is delivered from here.
+     */
+    private void expire() {
+        boolean running;
+        synchronized (this) {
+            if (isFinished || isCancelled || isTimedOut) {
+                return;
+            }
+            isTimedOut = true;
+            deadlineTimer = null;
+            running = isRunning;
+        }
+        if (running) {
+            request.abort();
+            return;
+        }
+        scheduler.remove(this);
+        HttpTransport.releaseRequestEntity(request);
+        notifyTimeout();
+    }
+
+    private void notifyTimeout() {
+        synchronized (this) {
+            if (timeoutIsNotified || isCancelled) {
+                return;
+            }
+            timeoutIsNotified = true;
+            isFinished = true;
+        }
+        if (responseHandler != null) {
+            responseHandler.sendFailureMessage(0, null, null,
+                    new DeadlineExceededException(timeoutMillis));
+            responseHandler.sendFinishMessage();
+        }
+    }
+
+    public boolean isFinished() {
+        return isFinished;
+    }
+
+    public boolean isDone() {
+        return isCancelled() || isFinished;
+    }
+
     public boolean isCancelled() {
         if (isCancelled) {
             sendCancelNotification();
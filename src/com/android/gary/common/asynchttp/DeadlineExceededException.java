@@ -0,0 +1,16 @@
+package com.android.gary.common.asynchttp;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Delivered to a request's failure callback when its overall deadline ran
+ * out, whether it was still queued, waiting for a retry or in flight.
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(long timeoutMillis) {
+        super("Request deadline of " + timeoutMillis + " ms exceeded");
+    }
+}
@@ -0,0 +1,87 @@
+package com.android.gary.common.asynchttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+
+import com.android.gary.common.synchttp.RequestParams;
+
+/**
+ * Body built from {@link RequestParams} the first time it is looked at,
+ * which is on the worker sending the request. Copying stream parameters to
+ * disk for retries thus never runs on the caller's thread.
+ */
+class DeferredParamsEntity implements HttpEntity {
+
+    private final RequestParams params;
+    private HttpEntity entity;
+    private boolean released;
+
+    DeferredParamsEntity(RequestParams params) {
+        this.params = params;
+    }
+
+    private synchronized HttpEntity entity() {
+        if (entity == null) {
+            entity = params.getEntity();
+            if (entity == null) {
+                entity = new ByteArrayEntity(new byte[0]);
+            }
+        }
+        return entity;
+    }
+
+    public boolean isRepeatable() {
+        return entity().isRepeatable();
+    }
+
+    public boolean isChunked() {
+        return entity().isChunked();
+    }
+
+    public long getContentLength() {
+        return entity().getContentLength();
+    }
+
+    public Header getContentType() {
+        return entity().getContentType();
+    }
+
+    public Header getContentEncoding() {
+        return entity().getContentEncoding();
+    }
+
+    public InputStream getContent() throws IOException {
+        return entity().getContent();
+    }
+
+    public void writeTo(OutputStream outstream) throws IOException {
+        entity().writeTo(outstream);
+    }
+
+    public boolean isStreaming() {
+        return entity().isStreaming();
+    }
+
+    /**
+     * Releases the built entity; a body that was never built has nothing to
+     * release.
+     */
+    public void consumeContent() throws IOException {
+        HttpEntity built;
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            built = entity;
+        }
+        if (built != null) {
+            built.consumeContent();
+        }
+    }
+}
@@ -0,0 +1,558 @@
+package com.android.gary.common.asynchttp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.os.SystemClock;
+
+import com.android.gary.common.utils.LogUtil;
+
+/**
+ * A running download of {@link DownloadManager}, split into byte range
+ * segments that are fetched as separate requests and written to the same
+ * file.
+ */
+public class Download {
+
+    private static final String TAG = "Download";
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".meta";
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+    private static final long PROGRESS_INTERVAL_MILLIS = 200;
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+
+    private final AsyncHttpClient client;
+    private final String url;
+    private final File target;
+    private final File partFile;
+    private final File metaFile;
+    private final DownloadListener listener;
+    private final int maxSegments;
+    private final long minSegmentSize;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long totalBytes = -1;
+    private String validator;
+    private boolean stopped;
+    private boolean finished;
+    private long lastProgressAt;
+    private long lastCheckpointAt;
+
+    Download(AsyncHttpClient client, String url, File target, DownloadListener listener,
+             int maxSegments, long minSegmentSize) {
+        this.client = client;
+        this.url = url;
+        this.target = target;
+        this.partFile = new File(target.getPath() + PART_SUFFIX);
+        this.metaFile = new File(target.getPath() + META_SUFFIX);
+        this.listener = listener;
+        this.maxSegments = maxSegments;
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    synchronized void start() {
+        try {
+            File dir = target.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            boolean resumed = partFile.exists() && loadMeta();
+            file = new RandomAccessFile(partFile, "rw");
+            channel = file.getChannel();
+            if (!resumed) {
+                segments.clear();
+                totalBytes = -1;
+                validator = null;
+                file.setLength(0);
+                segments.add(new Segment(0, 0, -1));
+            }
+            boolean pending = false;
+            for (Segment segment : new ArrayList<Segment>(segments)) {
+                if (!segment.isDone()) {
+                    pending = true;
+                    send(segment);
+                }
+            }
+            if (!pending) {
+                complete();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Stops the download and keeps what was received, so that it can be
+     * resumed later.
+     */
+    public synchronized void cancel() {
+        if (finished || stopped) {
+            return;
+        }
+        stopped = true;
+        checkpoint();
+        closeFile();
+        for (Segment segment : segments) {
+            segment.abort();
+        }
+    }
+
+    public synchronized long getBytesDownloaded() {
+        long downloaded = 0;
+        for (Segment segment : segments) {
+            downloaded += segment.position - segment.start;
+        }
+        return downloaded;
+    }
+
+    /**
+     * @return size of the file, or -1 while unknown
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    private void send(Segment segment) {
+        if (segment.position > segment.sentFrom) {
+            // the last attempt made progress, only attempts in a row that
+            // get nowhere give up the download
+            segment.attempts = 0;
+        }
+        segment.sentFrom = segment.position;
+        segment.attempts++;
+        HttpGet request = new HttpGet(url);
+        // byte ranges refer to the stored representation, not a compressed one
+        request.setHeader(AsyncHttpClient.HEADER_ACCEPT_ENCODING, "identity");
+        request.setHeader("Range", "bytes=" + segment.position + "-"
+                + (segment.end >= 0 ? String.valueOf(segment.end) : ""));
+        if (validator != null) {
+            request.setHeader("If-Range", validator);
+        }
+        segment.handle = client.execute(request, new SegmentHandler(segment),
+                RequestScheduler.PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * First answer of a download without a known size: fixes the length and
+     * splits what is left into parallel segments.
+     */
+    private void onLengthKnown(Segment probe, long length) {
+        totalBytes = length;
+        try {
+            file.setLength(length);
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Cannot preallocate " + partFile, e);
+        }
+        int count = (int) Math.min(maxSegments, length / minSegmentSize);
+        if (count < 2) {
+            probe.end = length - 1;
+            return;
+        }
+        long size = length / count;
+        probe.end = size - 1;
+        for (int i = 1; i < count; i++) {
+            long start = i * size;
+            Segment segment = new Segment(start, start, i == count - 1 ? length - 1 : start + size - 1);
+            segments.add(segment);
+            send(segment);
+        }
+    }
+
+    /**
+     * The server ignored the range, because it does not support ranges or
+     * the file changed: start over with this response as the whole body.
+     */
+    private void onFullBody(Segment segment, HttpResponse response) throws IOException {
+        for (Segment other : segments) {
+            if (other != segment) {
+                other.superseded = true;
+                other.abort();
+            }
+        }
+        segments.clear();
+        segments.add(segment);
+        HttpEntity entity = response.getEntity();
+        long length = entity != null ? entity.getContentLength() : 0;
+        segment.start = 0;
+        segment.position = 0;
+        segment.sentFrom = 0;
+        segment.end = length >= 0 ? length - 1 : -1;
+        totalBytes = length;
+        validator = validatorOf(response);
+        channel.truncate(0);
+        if (length > 0) {
+            file.setLength(length);
+        }
+    }
+
+    private synchronized void onSegmentEnded(Segment segment) {
+        if (stopped || finished || segment.superseded) {
+            return;
+        }
+        if (segment.end < 0) {
+            // no length was announced, the body ended where the stream did
+            segment.end = segment.position - 1;
+            totalBytes = segment.position;
+        }
+        if (segment.isDone() || totalBytes == 0) {
+            if (totalBytes == 0 || allDone()) {
+                complete();
+            }
+        } else {
+            retry(segment, new IOException("Connection closed at byte " + segment.position));
+        }
+    }
+
+    private synchronized void onSegmentFailed(Segment segment, int statusCode, Throwable error) {
+        if (stopped || finished || segment.superseded) {
+            return;
+        }
+        if (statusCode == 416) {
+            // what we have on disk does not match the server any more
+            metaFile.delete();
+            fail(error);
+            return;
+        }
+        if (statusCode >= 400 && statusCode < 500) {
+            // asking again gets the same answer
+            fail(error);
+            return;
+        }
+        retry(segment, error);
+    }
+
+    private void retry(Segment segment, Throwable error) {
+        if (segment.attempts >= MAX_SEGMENT_ATTEMPTS) {
+            fail(error);
+            return;
+        }
+        LogUtil.w(TAG, "Resuming segment at " + segment.position + " of " + url, error);
+        checkpoint();
+        send(segment);
+    }
+
+    private synchronized void onBytesWritten() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastCheckpointAt >= CHECKPOINT_INTERVAL_MILLIS) {
+            lastCheckpointAt = now;
+            checkpoint();
+        }
+        if (now - lastProgressAt >= PROGRESS_INTERVAL_MILLIS) {
+            lastProgressAt = now;
+            listener.onProgress(getBytesDownloaded(), totalBytes);
+        }
+    }
+
+    private boolean allDone() {
+        for (Segment segment : segments) {
+            if (!segment.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void complete() {
+        finished = true;
+        try {
+            if (totalBytes >= 0) {
+                channel.truncate(totalBytes);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Cannot flush " + partFile, e);
+        }
+        closeFile();
+        if (target.exists()) {
+            target.delete();
+        }
+        if (!partFile.renameTo(target)) {
+            finished = false;
+            stopped = true;
+            listener.onFailure(new IOException("Cannot rename " + partFile + " to " + target));
+            return;
+        }
+        metaFile.delete();
+        listener.onProgress(totalBytes, totalBytes);
+        listener.onSuccess(target);
+    }
+
+    private void fail(Throwable error) {
+        if (finished || stopped) {
+            return;
+        }
+        stopped = true;
+        checkpoint();
+        closeFile();
+        listener.onFailure(error);
+    }
+
+    private void closeFile() {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException ignore) {
+            // nothing left to release
+        }
+        file = null;
+        channel = null;
+    }
+
+    /**
+     * Flushes the file and records how far each segment got. Only done when
+     * the server gave a validator, without one a resumed download could mix
+     * two versions of the file.
+     */
+    private void checkpoint() {
+        if (validator == null || totalBytes < 0 || channel == null) {
+            return;
+        }
+        Properties meta = new Properties();
+        meta.setProperty("url", url);
+        meta.setProperty("validator", validator);
+        meta.setProperty("total", String.valueOf(totalBytes));
+        StringBuilder ranges = new StringBuilder();
+        for (Segment segment : segments) {
+            if (ranges.length() > 0) {
+                ranges.append(',');
+            }
+            ranges.append(segment.start).append(':').append(segment.position)
+                    .append(':').append(segment.end);
+        }
+        meta.setProperty("segments", ranges.toString());
+
+        File tmp = new File(metaFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            channel.force(false);
+            out = new FileOutputStream(tmp);
+            meta.store(out, null);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(metaFile)) {
+                throw new IOException("Cannot rename " + tmp);
+            }
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Cannot save download state " + metaFile, e);
+        } finally {
+            AsyncHttpClient.silentCloseOutputStream(out);
+        }
+    }
+
+    private boolean loadMeta() {
+        if (!metaFile.exists()) {
+            return false;
+        }
+        Properties meta = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(metaFile);
+            meta.load(in);
+            if (!url.equals(meta.getProperty("url")) || meta.getProperty("validator") == null) {
+                return false;
+            }
+            List<Segment> loaded = new ArrayList<Segment>();
+            for (String range : meta.getProperty("segments", "").split(",")) {
+                String[] parts = range.split(":");
+                if (parts.length != 3) {
+                    return false;
+                }
+                loaded.add(new Segment(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                        Long.parseLong(parts[2])));
+            }
+            validator = meta.getProperty("validator");
+            totalBytes = Long.parseLong(meta.getProperty("total"));
+            segments.clear();
+            segments.addAll(loaded);
+            return true;
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Cannot read download state " + metaFile, e);
+            return false;
+        } catch (NumberFormatException e) {
+            return false;
+        } finally {
+            AsyncHttpClient.silentCloseInputStream(in);
+        }
+    }
+
+    private static String validatorOf(HttpResponse response) {
+        Header eTag = response.getFirstHeader("ETag");
+        if (eTag != null && !eTag.getValue().startsWith("W/")) {
+            return eTag.getValue();
+        }
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified != null ? lastModified.getValue() : null;
+    }
+
+    /**
+     * @return {start, end, total} of a {@code bytes a-b/n} header, total -1
+     * for {@code *}, or null if malformed
+     */
+    private static long[] parseContentRange(Header header) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.getValue().trim();
+        if (!value.startsWith("bytes ")) {
+            return null;
+        }
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long start = Long.parseLong(value.substring(6, dash).trim());
+            long end = Long.parseLong(value.substring(dash + 1, slash).trim());
+            String total = value.substring(slash + 1).trim();
+            return new long[]{start, end, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class Segment {
+        volatile long start;
+        volatile long position;
+        /**
+         * last byte of the segment, -1 while the length is unknown
+         */
+        volatile long end;
+        volatile boolean superseded;
+        int attempts;
+        /**
+         * position the last request asked for
+         */
+        long sentFrom;
+        RequestHandle handle;
+
+        Segment(long start, long position, long end) {
+            this.start = start;
+            this.position = position;
+            this.sentFrom = position;
+            this.end = end;
+        }
+
+        boolean isDone() {
+            return end >= 0 && position > end;
+        }
+
+        /**
+         * Frees the connection of a request still in flight instead of
+         * waiting for its next chunk to be refused.
+         */
+        void abort() {
+            if (handle != null) {
+                handle.cancel(true);
+            }
+        }
+    }
+
+    private class SegmentHandler extends StreamingResponseHandler {
+        private final Segment segment;
+
+        SegmentHandler(Segment segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        public void sendResponseMessage(HttpResponse response) throws IOException {
+            try {
+                int statusCode = response.getStatusLine().getStatusCode();
+                synchronized (Download.this) {
+                    if (stopped || segment.superseded) {
+                        // onChunk() refuses the body and the connection is aborted
+                        statusCode = -1;
+                    }
+                    if (statusCode == 206) {
+                        long[] range = parseContentRange(
+                                response.getFirstHeader(AsyncHttpClient.HEADER_CONTENT_RANGE));
+                        if (range == null) {
+                            throw new IOException("Unexpected Content-Range for " + url);
+                        }
+                        // a retried request restarts at the range it asked for
+                        segment.position = range[0];
+                        if (validator == null) {
+                            validator = validatorOf(response);
+                        }
+                        if (segment.end < 0) {
+                            if (range[2] >= 0) {
+                                onLengthKnown(segment, range[2]);
+                            } else {
+                                segment.end = range[1];
+                            }
+                        }
+                    } else if (statusCode == 200) {
+                        onFullBody(segment, response);
+                    }
+                }
+                super.sendResponseMessage(response);
+            } catch (IOException e) {
+                // resume from what was written instead of refetching the range
+                onSegmentFailed(segment, 0, e);
+            }
+        }
+
+        @Override
+        protected boolean onChunk(ByteBuffer chunk) throws IOException {
+            FileChannel out;
+            synchronized (Download.this) {
+                if (stopped || segment.superseded) {
+                    return false;
+                }
+                out = channel;
+            }
+            long end = segment.end;
+            if (end >= 0) {
+                long remaining = end - segment.position + 1;
+                if (remaining <= 0) {
+                    return false;
+                }
+                if (chunk.remaining() > remaining) {
+                    chunk.limit(chunk.position() + (int) remaining);
+                }
+            }
+            while (chunk.hasRemaining()) {
+                segment.position += out.write(chunk, segment.position);
+            }
+            onBytesWritten();
+            // the end may have moved closer when the download was split
+            return segment.end < 0 || segment.position <= segment.end;
+        }
+
+        @Override
+        protected void onComplete(int statusCode, Header[] headers) {
+            onSegmentEnded(segment);
+        }
+
+        @Override
+        protected void onFailure(int statusCode, Header[] headers, byte[] errorBody,
+                                 Throwable error) {
+            onSegmentFailed(segment, statusCode, error);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.android.gary.common.asynchttp;
+
+import java.io.File;
+
+/**
+ * Callbacks of a {@link DownloadManager} download. They run on worker
+ * threads.
+ */
+public interface DownloadListener {
+
+    /**
+     * @param totalBytes size of the file, or -1 while unknown
+     */
+    void onProgress(long bytesDownloaded, long totalBytes);
+
+    void onSuccess(File file);
+
+    /**
+     * The partial file is kept, downloading the same URL to the same target
+     * again resumes where this attempt stopped.
+     */
+    void onFailure(Throwable error);
+}
@@ -0,0 +1,68 @@
+package com.android.gary.common.asynchttp;
+
+import java.io.File;
+
+/**
+ * Downloads files to disk over an {@link AsyncHttpClient}.
+ * <p/>
+ * Data is written to {@code target.part} through positional
+ * {@link java.nio.channels.FileChannel} writes as it arrives. Progress is
+ * checkpointed to {@code target.meta} so that an interrupted download
+ * resumes with a {@code Range} request guarded by {@code If-Range}, and
+ * starts over if the file changed on the server. Once the first response
+ * reveals the size, files of at least two segments are split into up to
+ * {@link #setMaxSegments(int)} ranges fetched in parallel.
+ *
+ * <pre class="prettyprint">
+ * DownloadManager downloads = new DownloadManager(client);
+ * Download download = downloads.download(url, new File(dir, "assets.zip"), listener);
+ * ...
+ * download.cancel(); // keeps the partial file for later
+ * </pre>
+ */
+public class DownloadManager {
+
+    public static final int DEFAULT_MAX_SEGMENTS = 3;
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private final AsyncHttpClient client;
+    private int maxSegments = DEFAULT_MAX_SEGMENTS;
+    private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+
+    public DownloadManager(AsyncHttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @param maxSegments parallel ranges per file, 1 to disable splitting
+     */
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = Math.max(1, maxSegments);
+    }
+
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * @param minSegmentSize files are only split into ranges of at least this
+     *                       many bytes
+     */
+    public void setMinSegmentSize(long minSegmentSize) {
+        this.minSegmentSize = Math.max(1, minSegmentSize);
+    }
+
+    public long getMinSegmentSize() {
+        return minSegmentSize;
+    }
+
+    /**
+     * Starts or resumes downloading {@code url} into {@code target}.
+     */
+    public Download download(String url, File target, DownloadListener listener) {
+        Download download = new Download(client, url, target, listener,
+                maxSegments, minSegmentSize);
+        download.start();
+        return download;
+    }
+}
@@ -0,0 +1,290 @@
+package com.android.gary.common.asynchttp;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Response handler of a coalesced GET: passes every callback of the single
+ * underlying {@link AsyncHttpRequest} on to all handlers that asked for the
+ * same resource.
+ * <p/>
+ * Handlers can join until the response arrives. With more than one handler
+ * the body is read once into memory and each handler gets its own copy of
+ * the response, so they can all consume the entity; if reading it fails,
+ * they all get the failure. A handler that is
+ * cancelled leaves the group, and the request is cancelled with the last one.
+ */
+class FanOutResponseHandler implements ResponseHandlerInterface {
+
+    private final String key;
+    private final Map<String, FanOutResponseHandler> inFlight;
+    private final ResponseHandlerInterface primary;
+    private final List<ResponseHandlerInterface> handlers = new ArrayList<ResponseHandlerInterface>();
+    private HttpResponse[] responses;
+    private IOException readError;
+    private AsyncHttpRequest request;
+    private boolean started;
+    private boolean closed;
+
+    FanOutResponseHandler(String key, Map<String, FanOutResponseHandler> inFlight,
+                          ResponseHandlerInterface primary) {
+        this.key = key;
+        this.inFlight = inFlight;
+        this.primary = primary;
+        handlers.add(primary);
+    }
+
+    /**
+     * @return false if the response is already being delivered and the
+     * handler has to send a request of its own
+     */
+    synchronized boolean addHandler(ResponseHandlerInterface handler) {
+        if (closed) {
+            return false;
+        }
+        handlers.add(handler);
+        if (started) {
+            handler.sendStartMessage();
+        }
+        return true;
+    }
+
+    void setRequest(AsyncHttpRequest request) {
+        boolean abandoned;
+        synchronized (this) {
+            this.request = request;
+            abandoned = handlers.isEmpty();
+        }
+        if (abandoned) {
+            request.cancel(true);
+        }
+    }
+
+    synchronized AsyncHttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Detaches {@code handler}, which gets {@code onCancel}, and cancels the
+     * shared request if it was the last one.
+     *
+     * @return false if the handler was not waiting for this response
+     */
+    boolean cancel(ResponseHandlerInterface handler, boolean mayInterruptIfRunning) {
+        AsyncHttpRequest abandoned = null;
+        synchronized (inFlight) {
+            synchronized (this) {
+                if (!handlers.remove(handler)) {
+                    return false;
+                }
+                if (handlers.isEmpty()) {
+                    // nobody may join a request that is about to be cancelled
+                    closed = true;
+                    if (inFlight.get(key) == this) {
+                        inFlight.remove(key);
+                    }
+                    abandoned = request;
+                }
+            }
+        }
+        handler.sendCancelMessage();
+        if (abandoned != null) {
+            abandoned.cancel(mayInterruptIfRunning);
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting new handlers and returns the ones to deliver to.
+     */
+    private ResponseHandlerInterface[] close() {
+        synchronized (inFlight) {
+            if (inFlight.get(key) == this) {
+                inFlight.remove(key);
+            }
+        }
+        return snapshot(true);
+    }
+
+    private synchronized ResponseHandlerInterface[] snapshot(boolean close) {
+        if (close) {
+            closed = true;
+        }
+        return handlers.toArray(new ResponseHandlerInterface[handlers.size()]);
+    }
+
+    @Override
+    public void onPreProcessResponse(ResponseHandlerInterface handler, HttpResponse response) {
+        ResponseHandlerInterface[] targets = close();
+        HttpResponse[] copies = new HttpResponse[targets.length];
+        IOException error = null;
+        if (targets.length == 1) {
+            copies[0] = response;
+        } else {
+            byte[] body = null;
+            HttpEntity entity = response.getEntity();
+            try {
+                if (entity != null) {
+                    body = EntityUtils.toByteArray(entity);
+                }
+            } catch (IOException e) {
+                // thrown from sendResponseMessage, like a handler's own read
+                error = e;
+            }
+            if (error == null) {
+                for (int i = 0; i < targets.length; i++) {
+                    copies[i] = copyOf(response, entity, body);
+                }
+            }
+        }
+        synchronized (this) {
+            responses = error == null ? copies : null;
+            readError = error;
+        }
+        if (error != null) {
+            return;
+        }
+        for (int i = 0; i < targets.length; i++) {
+            targets[i].onPreProcessResponse(targets[i], copies[i]);
+        }
+    }
+
+    @Override
+    public void sendResponseMessage(HttpResponse response) throws IOException {
+        ResponseHandlerInterface[] targets = snapshot(true);
+        HttpResponse[] copies;
+        IOException error;
+        synchronized (this) {
+            copies = responses;
+            error = readError;
+            readError = null;
+        }
+        if (error != null) {
+            // the request retries or reports it through sendFailureMessage
+            throw error;
+        }
+        for (int i = 0; i < targets.length; i++) {
+            targets[i].sendResponseMessage(copies != null && i < copies.length
+                    ? copies[i] : response);
+        }
+    }
+
+    @Override
+    public void onPostProcessResponse(ResponseHandlerInterface handler, HttpResponse response) {
+        ResponseHandlerInterface[] targets = snapshot(true);
+        HttpResponse[] copies;
+        synchronized (this) {
+            copies = responses;
+        }
+        for (int i = 0; i < targets.length; i++) {
+            targets[i].onPostProcessResponse(targets[i], copies != null && i < copies.length
+                    ? copies[i] : response);
+        }
+    }
+
+    private static HttpResponse copyOf(HttpResponse response, HttpEntity entity, byte[] body) {
+        BasicHttpResponse copy = new BasicHttpResponse(response.getStatusLine());
+        copy.setHeaders(response.getAllHeaders());
+        if (entity != null) {
+            ByteArrayEntity bodyEntity = new ByteArrayEntity(body != null ? body : new byte[0]);
+            bodyEntity.setContentType(entity.getContentType());
+            copy.setEntity(bodyEntity);
+        }
+        return copy;
+    }
+
+    @Override
+    public void sendStartMessage() {
+        ResponseHandlerInterface[] targets;
+        synchronized (this) {
+            started = true;
+            targets = snapshot(false);
+        }
+        for (ResponseHandlerInterface target : targets) {
+            target.sendStartMessage();
+        }
+    }
+
+    @Override
+    public void sendFinishMessage() {
+        for (ResponseHandlerInterface target : close()) {
+            target.sendFinishMessage();
+        }
+    }
+
+    @Override
+    public void sendProgressMessage(int bytesWritten, int bytesTotal) {
+        for (ResponseHandlerInterface target : snapshot(false)) {
+            target.sendProgressMessage(bytesWritten, bytesTotal);
+        }
+    }
+
+    @Override
+    public void sendCancelMessage() {
+        for (ResponseHandlerInterface target : close()) {
+            target.sendCancelMessage();
+        }
+    }
+
+    @Override
+    public void sendSuccessMessage(int statusCode, Header[] headers, byte[] responseBody) {
+        for (ResponseHandlerInterface target : close()) {
+            target.sendSuccessMessage(statusCode, headers, responseBody);
+        }
+    }
+
+    @Override
+    public void sendFailureMessage(int statusCode, Header[] headers, byte[] responseBody,
+                                   Throwable error) {
+        for (ResponseHandlerInterface target : close()) {
+            target.sendFailureMessage(statusCode, headers, responseBody, error);
+        }
+    }
+
+    @Override
+    public void sendRetryMessage(int retryNo) {
+        for (ResponseHandlerInterface target : snapshot(false)) {
+            target.sendRetryMessage(retryNo);
+        }
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return primary.getRequestURI();
+    }
+
+    @Override
+    public Header[] getRequestHeaders() {
+        return primary.getRequestHeaders();
+    }
+
+    @Override
+    public void setRequestURI(URI requestURI) {
+        primary.setRequestURI(requestURI);
+    }
+
+    @Override
+    public void setRequestHeaders(Header[] requestHeaders) {
+        primary.setRequestHeaders(requestHeaders);
+    }
+
+    @Override
+    public void setUseSynchronousMode(boolean useSynchronousMode) {
+        primary.setUseSynchronousMode(useSynchronousMode);
+    }
+
+    @Override
+    public boolean getUseSynchronousMode() {
+        return primary.getUseSynchronousMode();
+    }
+}
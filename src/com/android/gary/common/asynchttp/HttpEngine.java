@@ -2,10 +2,15 @@ package com.android.gary.common.asynchttp;
 
 import android.text.TextUtils;
 
-import java.util.Iterator;
+import com.android.gary.common.synchttp.RequestParams;
+import com.android.gary.common.synchttp.UrlBuilder;
+import com.android.gary.common.utils.LogUtil;
+
 import java.util.Map;
 
 public class HttpEngine {
+    private static final String TAG = "HttpEngine";
+
     /**
      * url and para separator
      **/
@@ -29,15 +34,27 @@ public class HttpEngine {
         mHttpClient.setTimeout(30 * 1000);
     }
 
-    public static void get(String url, ResponseHandlerInterface handler) {
-        mHttpClient.get(url, handler);
+    public static RequestHandle get(String url, ResponseHandlerInterface handler) {
+        return mHttpClient.get(url, handler);
     }
 
-	/*public static void post(String url, RequestParams params,
-            ResponseHandlerInterface handler) {
-		LogUtil.d("url:" + url + " params:" + params);
-		mHttpClient.post(url, params, handler);
-	}*/
+    /**
+     * Cancels and aborts the requests whose handles were tagged with
+     * {@code tag}, typically from a screen's onDestroy().
+     */
+    public static void cancelRequests(Object tag) {
+        mHttpClient.cancelRequests(tag, true);
+    }
+
+    public static RequestHandle post(String url, RequestParams params,
+                                     ResponseHandlerInterface handler) {
+        LogUtil.dFormat(TAG, "url:{} params:{}", url, params);
+        return mHttpClient.post(url, params, handler);
+    }
+
+    public static RequestHandle execute(HttpRequestSpec spec, ResponseHandlerInterface handler) {
+        return mHttpClient.execute(spec, handler);
+    }
 
     /**
      * join url and paras
@@ -51,17 +68,14 @@ public class HttpEngine {
      *
      * @param url      url
      * @param parasMap paras map, key is para name, value is para value
-     * @return if url is null, process it as empty string
+     * @return if url is null, process it as empty string; names and values
+     * are percent-encoded
      */
     public static String getUrlWithParas(String url,
                                          Map<String, String> parasMap) {
-        StringBuilder urlWithParas = new StringBuilder(
-                TextUtils.isEmpty(url) ? "" : url);
-        String paras = joinParas(parasMap);
-        if (!TextUtils.isEmpty(paras)) {
-            urlWithParas.append(URL_AND_PARA_SEPARATOR).append(paras);
-        }
-        return urlWithParas.toString();
+        return UrlBuilder.obtain(TextUtils.isEmpty(url) ? "" : url)
+                .params(parasMap)
+                .build();
     }
 
     /**
@@ -69,26 +83,15 @@ public class HttpEngine {
      *
      * @param parasMap paras map, key is para name, value is para value
      * @return join key and value with {@link #EQUAL_SIGN}, join keys with
-     * {@link #PARAMETERS_SEPARATOR}
+     * {@link #PARAMETERS_SEPARATOR}, both percent-encoded; null for an
+     * empty map
      */
     public static String joinParas(Map<String, String> parasMap) {
         if (parasMap == null || parasMap.size() == 0) {
             return null;
         }
 
-        StringBuilder paras = new StringBuilder();
-        Iterator<Map.Entry<String, String>> ite = parasMap.entrySet()
-                .iterator();
-        while (ite.hasNext()) {
-            Map.Entry<String, String> entry = (Map.Entry<String, String>) ite
-                    .next();
-            paras.append(entry.getKey()).append(EQUAL_SIGN)
-                    .append(entry.getValue());
-            if (ite.hasNext()) {
-                paras.append(PARAMETERS_SEPARATOR);
-            }
-        }
-        return paras.toString();
+        return UrlBuilder.encodeQuery(parasMap);
     }
 
 }
@@ -0,0 +1,32 @@
+package com.android.gary.common.asynchttp;
+
+import java.net.URI;
+
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+
+/**
+ * PATCH request, which the HttpClient bundled with Android does not have.
+ */
+public class HttpPatch extends HttpEntityEnclosingRequestBase {
+
+    public static final String METHOD_NAME = "PATCH";
+
+    public HttpPatch() {
+        super();
+    }
+
+    public HttpPatch(final URI uri) {
+        super();
+        setURI(uri);
+    }
+
+    public HttpPatch(final String uri) {
+        super();
+        setURI(URI.create(uri));
+    }
+
+    @Override
+    public String getMethod() {
+        return METHOD_NAME;
+    }
+}
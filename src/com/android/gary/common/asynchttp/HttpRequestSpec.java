@@ -0,0 +1,245 @@
+package com.android.gary.common.asynchttp;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicNameValuePair;
+
+import com.android.gary.common.synchttp.RequestParams;
+import com.android.gary.common.synchttp.UrlBuilder;
+
+/**
+ * Immutable description of a request for
+ * {@link AsyncHttpClient#execute(HttpRequestSpec, ResponseHandlerInterface)}.
+ * The URL is encoded and parsed and the headers are built once, in
+ * {@link Builder#build()}, so a spec can be kept and sent repeatedly, e.g.
+ * for polling, at the cost of creating the request object only.
+ * <p/>
+ * <pre>
+ * HttpRequestSpec spec = new HttpRequestSpec.Builder("POST", url)
+ *         .params(params)
+ *         .header("X-Client", "watch")
+ *         .priority(RequestScheduler.PRIORITY_BACKGROUND)
+ *         .build();
+ * client.execute(spec, handler).setTag(activity);
+ * </pre>
+ */
+public final class HttpRequestSpec {
+
+    private final String method;
+    private final URI uri;
+    private final Header[] headers;
+    private final RequestParams bodyParams;
+    private final HttpEntity entity;
+    private final int priority;
+    private final long deadlineMillis;
+
+    private HttpRequestSpec(Builder builder, URI uri, Header[] headers) {
+        this.method = builder.method;
+        this.uri = uri;
+        this.headers = headers;
+        this.bodyParams = isEntityEnclosing(builder.method) ? builder.params : null;
+        this.entity = builder.entity;
+        this.priority = builder.priority;
+        this.deadlineMillis = builder.deadlineMillis;
+    }
+
+    /**
+     * Creates a request to send. A body given as {@link RequestParams} is
+     * built when the request is sent; params made repeatable are released by
+     * the caller once the spec is no longer used. An {@link HttpEntity} body is
+     * shared by every request created, so it has to be repeatable for the
+     * spec to be sent more than once.
+     */
+    public HttpUriRequest newRequest() {
+        HttpRequestBase request;
+        if (HttpPost.METHOD_NAME.equals(method)) {
+            request = new HttpPost();
+        } else if (HttpPut.METHOD_NAME.equals(method)) {
+            request = new HttpPut();
+        } else if (HttpPatch.METHOD_NAME.equals(method)) {
+            request = new HttpPatch();
+        } else if (HttpDelete.METHOD_NAME.equals(method)) {
+            request = new HttpDelete();
+        } else if (HttpHead.METHOD_NAME.equals(method)) {
+            request = new HttpHead();
+        } else {
+            request = new HttpGet();
+        }
+        request.setURI(uri);
+        request.setHeaders(headers);
+        if (request instanceof HttpEntityEnclosingRequestBase) {
+            HttpEntity body = entity;
+            if (body == null && bodyParams != null) {
+                body = new DeferredParamsEntity(bodyParams);
+            }
+            ((HttpEntityEnclosingRequestBase) request).setEntity(body);
+        }
+        return request;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public URI getURI() {
+        return uri;
+    }
+
+    public Header[] getHeaders() {
+        return headers.clone();
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return overall deadline in milliseconds, 0 for the client's default
+     */
+    public long getDeadline() {
+        return deadlineMillis;
+    }
+
+    private static boolean isEntityEnclosing(String method) {
+        return HttpPost.METHOD_NAME.equals(method) || HttpPut.METHOD_NAME.equals(method)
+                || HttpPatch.METHOD_NAME.equals(method);
+    }
+
+    public static class Builder {
+        private String method;
+        private final String url;
+        private final List<NameValuePair> query = new ArrayList<NameValuePair>();
+        private final List<Header> headers = new ArrayList<Header>();
+        private RequestParams params;
+        private HttpEntity entity;
+        private String contentType;
+        private int priority = RequestScheduler.PRIORITY_FOREGROUND;
+        private long deadlineMillis;
+
+        /**
+         * @param method GET, HEAD, POST, PUT, PATCH or DELETE
+         */
+        public Builder(String method, String url) {
+            if (url == null) {
+                throw new IllegalArgumentException("url must not be null");
+            }
+            this.url = url;
+            method(method);
+        }
+
+        public Builder method(String method) {
+            String name = method.toUpperCase(Locale.US);
+            if (!HttpGet.METHOD_NAME.equals(name) && !HttpHead.METHOD_NAME.equals(name)
+                    && !HttpDelete.METHOD_NAME.equals(name) && !isEntityEnclosing(name)) {
+                throw new IllegalArgumentException("Unsupported method " + method);
+            }
+            this.method = name;
+            return this;
+        }
+
+        /**
+         * Appends a parameter to the query string.
+         */
+        public Builder query(String name, String value) {
+            query.add(new BasicNameValuePair(name, value));
+            return this;
+        }
+
+        /**
+         * Sends {@code params} as the body of a POST, PUT or PATCH, read each
+         * time a request is sent, or in the query string of any other
+         * method.
+         */
+        public Builder params(RequestParams params) {
+            this.params = params;
+            return this;
+        }
+
+        /**
+         * Sends a body of your own, e.g. JSON, with POST, PUT or PATCH.
+         *
+         * @param contentType used when the entity does not carry one
+         */
+        public Builder entity(HttpEntity entity, String contentType) {
+            this.entity = entity;
+            this.contentType = contentType;
+            return this;
+        }
+
+        public Builder header(String name, String value) {
+            headers.add(new BasicHeader(name, value));
+            return this;
+        }
+
+        /**
+         * @param priority one of the {@link RequestScheduler} priorities
+         */
+        public Builder priority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * @see AsyncHttpRequest#setDeadline(long)
+         */
+        public Builder deadline(long timeoutMillis) {
+            this.deadlineMillis = timeoutMillis;
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException    if a body was given for a method
+         *                                  without one, or both params and an
+         *                                  entity were given
+         * @throws IllegalArgumentException if the URL is malformed
+         */
+        public HttpRequestSpec build() {
+            boolean enclosing = isEntityEnclosing(method);
+            if (entity != null && !enclosing) {
+                throw new IllegalStateException(method + " requests have no body");
+            }
+            if (entity != null && params != null) {
+                throw new IllegalStateException("Set either params or an entity, not both");
+            }
+            UrlBuilder fullUrl = UrlBuilder.obtain(url);
+            for (NameValuePair pair : query) {
+                fullUrl.param(pair.getName(), pair.getValue());
+            }
+            if (!enclosing && params != null) {
+                fullUrl.encodedQuery(params.getParamString());
+            }
+            URI uri = URI.create(fullUrl.build());
+
+            List<Header> all = new ArrayList<Header>(headers);
+            if (entity != null && entity.getContentType() == null && contentType != null
+                    && !hasHeader(AsyncHttpClient.HEADER_CONTENT_TYPE)) {
+                all.add(new BasicHeader(AsyncHttpClient.HEADER_CONTENT_TYPE, contentType));
+            }
+            return new HttpRequestSpec(this, uri, all.toArray(new Header[all.size()]));
+        }
+
+        private boolean hasHeader(String name) {
+            for (Header header : headers) {
+                if (header.getName().equalsIgnoreCase(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
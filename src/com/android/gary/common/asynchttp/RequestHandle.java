@@ -0,0 +1,103 @@
+package com.android.gary.common.asynchttp;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Returned for every request sent through {@link AsyncHttpClient}, lets the
+ * caller cancel it, give it a deadline or tag it for
+ * {@link AsyncHttpClient#cancelRequests(Object, boolean)}.
+ * <p/>
+ * A handle of a coalesced GET only stands for its own response handler:
+ * cancelling it detaches that handler, and the shared request is cancelled
+ * once no handler is left.
+ */
+public class RequestHandle {
+
+    private final WeakReference<AsyncHttpRequest> request;
+    private final FanOutResponseHandler fanOut;
+    private final ResponseHandlerInterface handler;
+    private volatile WeakReference<Object> tag;
+    private volatile boolean detached;
+
+    RequestHandle(AsyncHttpRequest request) {
+        this.request = new WeakReference<AsyncHttpRequest>(request);
+        this.fanOut = null;
+        this.handler = null;
+    }
+
+    RequestHandle(FanOutResponseHandler fanOut, ResponseHandlerInterface handler) {
+        this.request = null;
+        this.fanOut = fanOut;
+        this.handler = handler;
+    }
+
+    private AsyncHttpRequest getRequest() {
+        return fanOut != null ? fanOut.getRequest() : request.get();
+    }
+
+    /**
+     * @param mayInterruptIfRunning abort the connection if the request is in
+     *                              progress
+     * @return false if the request had already finished or been cancelled
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (fanOut != null) {
+            if (!fanOut.cancel(handler, mayInterruptIfRunning)) {
+                return false;
+            }
+            detached = true;
+            return true;
+        }
+        AsyncHttpRequest r = request.get();
+        return r != null && r.cancel(mayInterruptIfRunning);
+    }
+
+    public boolean isFinished() {
+        AsyncHttpRequest r = getRequest();
+        return r == null || r.isFinished();
+    }
+
+    public boolean isCancelled() {
+        if (detached) {
+            return true;
+        }
+        AsyncHttpRequest r = getRequest();
+        return r != null && r.isCancelled();
+    }
+
+    /**
+     * @return true once the handle no longer refers to a pending request
+     */
+    public boolean shouldBeGarbageCollected() {
+        return isCancelled() || isFinished();
+    }
+
+    /**
+     * Limits the request to {@code timeoutMillis} from now, retries and
+     * backoff included. For a coalesced GET the deadline applies to the
+     * request shared with the other handlers.
+     *
+     * @see AsyncHttpRequest#setDeadline(long)
+     */
+    public RequestHandle setDeadline(long timeoutMillis) {
+        AsyncHttpRequest r = getRequest();
+        if (r != null) {
+            r.setDeadline(timeoutMillis);
+        }
+        return this;
+    }
+
+    /**
+     * @param tag held weakly, so an Activity or Fragment can be used to cancel
+     *            everything a screen started
+     */
+    public RequestHandle setTag(Object tag) {
+        this.tag = tag != null ? new WeakReference<Object>(tag) : null;
+        return this;
+    }
+
+    public Object getTag() {
+        WeakReference<Object> ref = tag;
+        return ref != null ? ref.get() : null;
+    }
+}
@@ -0,0 +1,213 @@
+package com.android.gary.common.asynchttp;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link AsyncHttpRequest}s on a fixed number of workers, highest
+ * priority first and FIFO within the same priority.
+ * <p/>
+ * The worker count should follow the connection pool size: extra threads
+ * would only block waiting for a pooled connection. Requests waiting for a
+ * worker are kept in a queue whose depth is capped, anything over the cap is
+ * rejected with a {@link RejectedExecutionException}.
+ */
+public class RequestScheduler {
+
+    /**
+     * Work the user is waiting for right now.
+     */
+    public static final int PRIORITY_FOREGROUND = 0;
+
+    /**
+     * Data the user is likely to need soon.
+     */
+    public static final int PRIORITY_PREFETCH = 1;
+
+    /**
+     * Background synchronisation nobody is waiting for.
+     */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 64;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor executor;
+    private ScheduledThreadPoolExecutor timer;
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile int maxQueueDepth;
+
+    public RequestScheduler(int maxWorkers) {
+        this(maxWorkers, DEFAULT_MAX_QUEUE_DEPTH);
+    }
+
+    public RequestScheduler(int maxWorkers, int maxQueueDepth) {
+        if (maxWorkers < 1) {
+            throw new IllegalArgumentException("maxWorkers must be positive");
+        }
+        this.maxQueueDepth = maxQueueDepth;
+        executor = new ThreadPoolExecutor(maxWorkers, maxWorkers,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a request for execution.
+     *
+     * @throws RejectedExecutionException if the queue is full or the scheduler
+     *                                    was shut down
+     */
+    public void submit(AsyncHttpRequest request) {
+        if (executor.getQueue().size() >= maxQueueDepth) {
+            throw new RejectedExecutionException("Request queue is full ("
+                    + maxQueueDepth + " pending)");
+        }
+        request.setScheduler(this);
+        executor.execute(new PrioritizedTask(request, sequence.getAndIncrement()));
+        request.onSubmitted();
+    }
+
+    /**
+     * Takes a request out of the queue before a worker picks it up.
+     *
+     * @return false if it was not waiting for a worker
+     */
+    boolean remove(AsyncHttpRequest request) {
+        for (Runnable task : executor.getQueue()) {
+            if (((PrioritizedTask) task).request == request) {
+                return executor.remove(task);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs a request again after a delay, e.g. a retry waiting for its
+     * backoff. No worker is held while waiting, and the request skips the
+     * queue depth check since it was admitted already.
+     */
+    public void schedule(final AsyncHttpRequest request, long delayMillis) {
+        if (delayMillis <= 0) {
+            executor.execute(new PrioritizedTask(request, sequence.getAndIncrement()));
+            return;
+        }
+        getTimer().schedule(new Runnable() {
+            public void run() {
+                executor.execute(new PrioritizedTask(request, sequence.getAndIncrement()));
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs {@code task} on the timer thread after a delay. The task must be
+     * short, it holds up every other timer.
+     */
+    ScheduledFuture<?> runLater(Runnable task, long delayMillis) {
+        return getTimer().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getTimer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AsyncHttp timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+
+    public void setMaxWorkers(int maxWorkers) {
+        if (maxWorkers < 1) {
+            throw new IllegalArgumentException("maxWorkers must be positive");
+        }
+        if (maxWorkers > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(maxWorkers);
+            executor.setCorePoolSize(maxWorkers);
+        } else {
+            executor.setCorePoolSize(maxWorkers);
+            executor.setMaximumPoolSize(maxWorkers);
+        }
+    }
+
+    public int getMaxWorkers() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public void setMaxQueueDepth(int maxQueueDepth) {
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return number of requests waiting for a worker
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return number of requests currently executing
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        synchronized (this) {
+            if (timer != null) {
+                timer.shutdown();
+            }
+        }
+    }
+
+    private static class PrioritizedTask implements Runnable,
+            Comparable<PrioritizedTask> {
+        final AsyncHttpRequest request;
+        final int priority;
+        final long sequence;
+
+        PrioritizedTask(AsyncHttpRequest request, long sequence) {
+            this.request = request;
+            this.priority = request.getPriority();
+            this.sequence = sequence;
+        }
+
+        public void run() {
+            request.run();
+        }
+
+        public int compareTo(PrioritizedTask another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1
+                    : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "AsyncHttp #" + count.getAndIncrement());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.android.gary.common.asynchttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Response handler that never holds the whole body: a 2xx body is handed to
+ * {@link #onChunk(ByteBuffer)} piece by piece while it is read from the
+ * connection, or to {@link #onStream(int, Header[], InputStream)} as a stream
+ * when overridden.
+ * <p/>
+ * All callbacks run on the request's worker thread. Reading only continues
+ * once {@link #onChunk(ByteBuffer)} returns, so a slow consumer throttles the
+ * download instead of letting data pile up in memory; returning false stops
+ * it. Post to the main thread yourself for UI work.
+ */
+public abstract class StreamingResponseHandler implements ResponseHandlerInterface {
+
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    private final int chunkSize;
+    private URI requestURI;
+    private Header[] requestHeaders;
+
+    public StreamingResponseHandler() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public StreamingResponseHandler(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Called for each piece of the body. The buffer is reused for the next
+     * chunk, copy what has to be kept.
+     *
+     * @return false to stop reading; the connection is then closed
+     */
+    protected abstract boolean onChunk(ByteBuffer chunk) throws IOException;
+
+    /**
+     * Called after a 2xx response was delivered entirely or stopped by
+     * {@link #onChunk(ByteBuffer)}.
+     */
+    protected void onComplete(int statusCode, Header[] headers) {
+    }
+
+    /**
+     * Called for non-2xx answers, with the error body if it was small enough
+     * to read, and for network errors.
+     */
+    protected void onFailure(int statusCode, Header[] headers, byte[] errorBody, Throwable error) {
+    }
+
+    protected void onStart() {
+    }
+
+    protected void onFinish() {
+    }
+
+    protected void onProgress(int bytesRead, int bytesTotal) {
+    }
+
+    protected void onRetry(int retryNo) {
+    }
+
+    protected void onCancel() {
+    }
+
+    /**
+     * Reads a 2xx body. The default implementation feeds
+     * {@link #onChunk(ByteBuffer)}; override to hand the stream to a parser.
+     *
+     * @return false if reading stopped before the end of the body, the
+     * connection is then aborted rather than drained
+     */
+    protected boolean onStream(int statusCode, Header[] headers, InputStream in, long contentLength)
+            throws IOException {
+        byte[] buffer = new byte[chunkSize];
+        ByteBuffer chunk = ByteBuffer.wrap(buffer);
+        int total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            total += read;
+            chunk.clear();
+            chunk.limit(read);
+            if (!onChunk(chunk)) {
+                return false;
+            }
+            sendProgressMessage(total, (int) contentLength);
+        }
+        return true;
+    }
+
+    @Override
+    public void sendResponseMessage(HttpResponse response) throws IOException {
+        StatusLine status = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        Header[] headers = response.getAllHeaders();
+        if (status.getStatusCode() >= 300) {
+            byte[] errorBody = null;
+            if (entity != null && entity.getContentLength() >= 0
+                    && entity.getContentLength() <= chunkSize) {
+                errorBody = EntityUtils.toByteArray(entity);
+            }
+            if (entity != null) {
+                entity.consumeContent();
+            }
+            sendFailureMessage(status.getStatusCode(), headers, errorBody,
+                    new IOException(status.getReasonPhrase()));
+            return;
+        }
+        if (entity != null) {
+            InputStream in = entity.getContent();
+            boolean complete = false;
+            try {
+                complete = onStream(status.getStatusCode(), headers, in,
+                        entity.getContentLength());
+            } finally {
+                if (!complete && entity instanceof ConnectionReleaseTrigger) {
+                    // closing would read the rest of the body to reuse the connection
+                    ((ConnectionReleaseTrigger) entity).abortConnection();
+                } else {
+                    AsyncHttpClient.silentCloseInputStream(in);
+                    entity.consumeContent();
+                }
+            }
+        }
+        onComplete(status.getStatusCode(), headers);
+    }
+
+    @Override
+    public void sendStartMessage() {
+        onStart();
+    }
+
+    @Override
+    public void sendFinishMessage() {
+        onFinish();
+    }
+
+    @Override
+    public void sendProgressMessage(int bytesWritten, int bytesTotal) {
+        onProgress(bytesWritten, bytesTotal);
+    }
+
+    @Override
+    public void sendCancelMessage() {
+        onCancel();
+    }
+
+    /**
+     * Not used for streamed bodies, which arrive through {@link #onChunk(ByteBuffer)}.
+     */
+    @Override
+    public void sendSuccessMessage(int statusCode, Header[] headers, byte[] responseBody) {
+        onComplete(statusCode, headers);
+    }
+
+    @Override
+    public void sendFailureMessage(int statusCode, Header[] headers, byte[] responseBody,
+                                   Throwable error) {
+        onFailure(statusCode, headers, responseBody, error);
+    }
+
+    @Override
+    public void sendRetryMessage(int retryNo) {
+        onRetry(retryNo);
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return requestURI;
+    }
+
+    @Override
+    public Header[] getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public void setRequestURI(URI requestURI) {
+        this.requestURI = requestURI;
+    }
+
+    @Override
+    public void setRequestHeaders(Header[] requestHeaders) {
+        this.requestHeaders = requestHeaders;
+    }
+
+    /**
+     * Streaming handlers always call back on the worker thread.
+     */
+    @Override
+    public void setUseSynchronousMode(boolean useSynchronousMode) {
+    }
+
+    @Override
+    public boolean getUseSynchronousMode() {
+        return false;
+    }
+
+    @Override
+    public void onPreProcessResponse(ResponseHandlerInterface handler, HttpResponse response) {
+    }
+
+    @Override
+    public void onPostProcessResponse(ResponseHandlerInterface handler, HttpResponse response) {
+    }
+}
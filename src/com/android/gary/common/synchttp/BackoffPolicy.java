@@ -0,0 +1,15 @@
+package com.android.gary.common.synchttp;
+
+/**
+ * Decides how long {@link RetryHandler} waits before the next attempt.
+ */
+public interface BackoffPolicy {
+
+    /**
+     * @param retryCount          1 for the first retry, 2 for the second, ...
+     * @param previousDelayMillis delay used before the previous retry of the
+     *                            same request, 0 for the first retry
+     * @return delay in milliseconds before the next attempt
+     */
+    long getDelayMillis(int retryCount, long previousDelayMillis);
+}
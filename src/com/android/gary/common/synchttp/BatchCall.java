@@ -0,0 +1,131 @@
+package com.android.gary.common.synchttp;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * One call queued on a {@link BatchRequestQueue}. It is completed once the
+ * batch it went out with has been answered: with its own part of the
+ * response, or with the error of the batch as a whole.
+ */
+public final class BatchCall {
+
+    /**
+     * Told about the outcome of a call, on the thread that sent the batch.
+     */
+    public interface Callback {
+
+        void onSuccess(ResponseCallback response);
+
+        void onFailure(ConnectException e);
+    }
+
+    private final String url;
+    private final RequestParams params;
+    private final Callback callback;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private ResponseCallback response;
+    private ConnectException error;
+
+    BatchCall(String url, RequestParams params, Callback callback) {
+        this.url = url;
+        this.params = params;
+        this.callback = callback;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the parameters to send, may be null
+     */
+    public RequestParams getParams() {
+        return params;
+    }
+
+    /**
+     * Completes the call from its part of a batch response, mapping the
+     * status the way {@link HttpClientUtil} maps that of a single request:
+     * 2xx and 304 succeed, 4xx fail with
+     * {@link ConnectException#ERROR_CODE_404}, 5xx with
+     * {@link ConnectException#ERROR_CODE_500} and other answers with
+     * {@link ConnectException#ERROR_CODE_UNKONW}. A failure carries the
+     * response as well.
+     *
+     * @return false if the call was complete already
+     */
+    public boolean complete(int stateCode, String responseBody) {
+        ResponseCallback callbackResponse = new ResponseCallback();
+        callbackResponse.stateCode = stateCode;
+        callbackResponse.responseBody = responseBody;
+        if ((stateCode >= 200 && stateCode < 300) || stateCode == 304) {
+            return succeed(callbackResponse);
+        }
+        ConnectException e = new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
+                HttpClientUtil.errorCodeFor(stateCode));
+        e.setResponseCallback(callbackResponse);
+        return fail(e);
+    }
+
+    /**
+     * @return false if the call was complete already
+     */
+    public boolean succeed(ResponseCallback response) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.response = response;
+            done.countDown();
+        }
+        if (callback != null) {
+            callback.onSuccess(response);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the call was complete already
+     */
+    public boolean fail(ConnectException e) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.error = e;
+            done.countDown();
+        }
+        if (callback != null) {
+            callback.onFailure(e);
+        }
+        return true;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Waits for the batch to be answered. Must not be called on the thread
+     * that sends the batches, e.g. from a {@link Callback}.
+     *
+     * @throws ConnectException the call's own error or that of its batch, or
+     *                          {@link ConnectException#ERROR_CODE_IO} if the
+     *                          wait was interrupted
+     */
+    public ResponseCallback get() throws ConnectException {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
+                    ConnectException.ERROR_CODE_IO);
+        }
+        synchronized (this) {
+            if (error != null) {
+                throw error;
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.android.gary.common.synchttp;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * Packs the calls collected by a {@link BatchRequestQueue} into one request
+ * body and hands the parts of the answer back to the calls. The format is
+ * whatever the batch endpoint speaks; {@link JsonBatchEncoder} is one.
+ */
+public interface BatchEncoder {
+
+    /**
+     * @return the body of the batch request
+     */
+    HttpEntity encode(List<BatchCall> calls) throws IOException;
+
+    /**
+     * @return the Content-Type of the batch request, or null when the entity
+     * carries one
+     */
+    String getContentType();
+
+    /**
+     * Completes the calls from a successful batch response, usually with
+     * {@link BatchCall#complete(int, String)}. Calls left incomplete fail
+     * with {@link ConnectException#ERROR_CODE_UNKONW}.
+     *
+     * @throws ConnectException if the response cannot be read, failing every
+     *                          call that is not complete yet
+     */
+    void decode(ResponseCallback response, List<BatchCall> calls) throws ConnectException;
+}
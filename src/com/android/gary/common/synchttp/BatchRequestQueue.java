@@ -0,0 +1,196 @@
+package com.android.gary.common.synchttp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.android.gary.common.utils.LogUtil;
+
+/**
+ * Collects small POSTs and sends them together as one request to a batch
+ * endpoint, so a sync that makes dozens of calls pays for one round trip
+ * instead of one each:
+ * <pre>
+ * BatchRequestQueue queue = new BatchRequestQueue(HttpClientUtil.getInstence(),
+ *         SYNC_BATCH_URL, new JsonBatchEncoder());
+ * for (Record record : records) {
+ *     queue.enqueue(STEPS_URL, record.toParams(), callback);
+ * }
+ * queue.flush();
+ * </pre>
+ * A batch goes out {@link #setWindow(long) window} milliseconds after its
+ * first call was queued, when it has {@link #setMaxBatchSize(int) filled up}
+ * or on {@link #flush()}, whichever comes first. The {@link BatchEncoder}
+ * decides what the batch looks like on the wire and splits the answer into
+ * one result per call, so each call succeeds or fails on its own. A batch
+ * holding a single call is sent to the call's own URL, unwrapped.
+ * <p/>
+ * Batches are sent one at a time, in the order they were filled, on a
+ * thread of the queue; callbacks run on that thread too. {@link #close()}
+ * the queue when done with it to end that thread.
+ */
+public class BatchRequestQueue {
+
+    private static final String TAG = "BatchRequestQueue";
+
+    public static final long DEFAULT_WINDOW_MILLIS = 50;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 20;
+
+    private final HttpClientUtil client;
+    private final String batchUrl;
+    private final BatchEncoder encoder;
+    private final ScheduledThreadPoolExecutor sender;
+    private long windowMillis = DEFAULT_WINDOW_MILLIS;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private List<BatchCall> pending = new ArrayList<BatchCall>();
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean closed;
+
+    /**
+     * @param batchUrl where batches of more than one call are posted
+     */
+    public BatchRequestQueue(HttpClientUtil client, String batchUrl, BatchEncoder encoder) {
+        this.client = client;
+        this.batchUrl = batchUrl;
+        this.encoder = encoder;
+        sender = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HTTP batch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets how long a batch waits for more calls after its first one.
+     */
+    public synchronized void setWindow(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    public synchronized void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Queues a POST of {@code params} to {@code url}.
+     *
+     * @param callback may be null, {@link BatchCall#get()} waits for the
+     *                 result instead
+     * @throws IllegalArgumentException if {@code params} holds files, which
+     *                                  cannot be batched
+     * @throws IllegalStateException    if the queue was closed
+     */
+    public BatchCall enqueue(String url, RequestParams params, BatchCall.Callback callback) {
+        if (params != null && !params.fileParams.isEmpty()) {
+            throw new IllegalArgumentException("Files cannot be sent in a batch");
+        }
+        BatchCall call = new BatchCall(url, params, callback);
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Queue is closed");
+            }
+            pending.add(call);
+            if (pending.size() >= maxBatchSize) {
+                flushLocked();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = sender.schedule(new Runnable() {
+                    public void run() {
+                        flush();
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return call;
+    }
+
+    /**
+     * Queues the call and waits for its result, the way
+     * {@link HttpClientUtil#post(String, RequestParams, ResponseCallback)}
+     * would. Only batches when other threads queue calls meanwhile.
+     */
+    public ResponseCallback post(String url, RequestParams params) throws ConnectException {
+        return enqueue(url, params, null).get();
+    }
+
+    /**
+     * Sends the queued calls now, without waiting for the window to end.
+     */
+    public synchronized void flush() {
+        if (!pending.isEmpty()) {
+            flushLocked();
+        }
+    }
+
+    /**
+     * Sends what is queued and lets the thread of the queue end once it is
+     * sent. Calls cannot be queued afterwards.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flush();
+        }
+        sender.shutdown();
+    }
+
+    private void flushLocked() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        final List<BatchCall> batch = pending;
+        pending = new ArrayList<BatchCall>();
+        sender.execute(new Runnable() {
+            public void run() {
+                send(batch);
+            }
+        });
+    }
+
+    private void send(List<BatchCall> batch) {
+        ConnectException error = null;
+        try {
+            if (batch.size() == 1) {
+                BatchCall call = batch.get(0);
+                call.succeed(client.post(call.getUrl(), call.getParams(), null));
+                return;
+            }
+            ResponseCallback response = client.post(batchUrl, encoder.encode(batch),
+                    encoder.getContentType(), null);
+            encoder.decode(response, batch);
+        } catch (ConnectException e) {
+            error = e;
+        } catch (IOException e) {
+            LogUtil.e(TAG, "cannot encode batch: " + e);
+            error = new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
+                    ConnectException.ERROR_CODE_UNKONW);
+        } catch (RuntimeException e) {
+            LogUtil.e(TAG, "batch failed: " + e);
+            error = new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
+                    ConnectException.ERROR_CODE_UNKONW);
+        } finally {
+            // no caller is left waiting, whatever the encoder did
+            for (BatchCall call : batch) {
+                if (!call.isDone()) {
+                    call.fail(error != null ? error : new ConnectException(
+                            ConnectException.ERROR_TYPE_CONNECT, ConnectException.ERROR_CODE_UNKONW));
+                }
+            }
+        }
+        if (error != null) {
+            LogUtil.w(TAG, "batch of " + batch.size() + " failed: " + error.getErrorCode());
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.android.gary.common.synchttp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+
+/**
+ * A response stored by {@link ResponseCache}. Entries are immutable, a
+ * revalidated response is stored as a new entry.
+ */
+public class CacheEntry {
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Status of an entry that only lists the headers the responses of a URL
+     * vary on, with null values; the responses are stored per variant.
+     */
+    static final int VARY_INDEX = 0;
+
+    final String key;
+    final String responseBody;
+    final int stateCode;
+    final String eTag;
+    final String lastModified;
+    final long responseTime;
+    final long maxAgeMillis;
+    final boolean noCache;
+    final Map<String, String> varyHeaders;
+
+    CacheEntry(String key, String responseBody, int stateCode, String eTag,
+               String lastModified, long responseTime, long maxAgeMillis,
+               boolean noCache, Map<String, String> varyHeaders) {
+        this.key = key;
+        this.responseBody = responseBody;
+        this.stateCode = stateCode;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.responseTime = responseTime;
+        this.maxAgeMillis = maxAgeMillis;
+        this.noCache = noCache;
+        this.varyHeaders = varyHeaders;
+    }
+
+    boolean isVaryIndex() {
+        return stateCode == VARY_INDEX;
+    }
+
+    /**
+     * @return true if the entry may be served without contacting the server
+     */
+    public boolean isFresh(long now) {
+        return !noCache && maxAgeMillis > 0 && now - responseTime < maxAgeMillis;
+    }
+
+    /**
+     * @return true if the request sends the same values for every header the
+     * stored response varies on
+     */
+    public boolean matchesVary(HttpRequest request) {
+        for (Map.Entry<String, String> vary : varyHeaders.entrySet()) {
+            Header header = request.getFirstHeader(vary.getKey());
+            String value = header == null ? null : header.getValue();
+            if (value == null ? vary.getValue() != null : vary.getValue() == null
+                    || !normalize(value).equals(normalize(vary.getValue()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops whitespace that does not change what a header value means, e.g.
+     * {@code "gzip,  deflate"} and {@code "gzip, deflate"}.
+     */
+    static String normalize(String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        boolean space = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ' ' || c == '\t') {
+                space = result.length() > 0;
+            } else {
+                if (c == ',') {
+                    space = false;
+                } else if (space && result.charAt(result.length() - 1) != ',') {
+                    result.append(' ');
+                }
+                space = false;
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    public String getResponseBody() {
+        return responseBody;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public ResponseCallback toResponseCallback(int stateCode) {
+        ResponseCallback callback = new ResponseCallback();
+        callback.stateCode = stateCode;
+        callback.responseBody = responseBody;
+        callback.eTeg = eTag;
+        callback.lastModified = lastModified;
+        return callback;
+    }
+
+    int sizeInBytes() {
+        int size = 64 + key.length() * 2;
+        if (responseBody != null) {
+            size += responseBody.length() * 2;
+        }
+        return size;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        writeString(out, key);
+        writeString(out, responseBody);
+        out.writeInt(stateCode);
+        writeString(out, eTag);
+        writeString(out, lastModified);
+        out.writeLong(responseTime);
+        out.writeLong(maxAgeMillis);
+        out.writeBoolean(noCache);
+        out.writeInt(varyHeaders.size());
+        for (Map.Entry<String, String> vary : varyHeaders.entrySet()) {
+            writeString(out, vary.getKey());
+            writeString(out, vary.getValue());
+        }
+    }
+
+    static CacheEntry readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unknown cache entry format");
+        }
+        String key = readString(in);
+        String responseBody = readString(in);
+        int stateCode = in.readInt();
+        String eTag = readString(in);
+        String lastModified = readString(in);
+        long responseTime = in.readLong();
+        long maxAgeMillis = in.readLong();
+        boolean noCache = in.readBoolean();
+        int varyCount = in.readInt();
+        Map<String, String> varyHeaders = new HashMap<String, String>(varyCount);
+        for (int i = 0; i < varyCount; i++) {
+            varyHeaders.put(readString(in), readString(in));
+        }
+        return new CacheEntry(key, responseBody, stateCode, eTag, lastModified,
+                responseTime, maxAgeMillis, noCache, varyHeaders);
+    }
+
+    private static void writeString(DataOutputStream out, String value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,223 @@
+package com.android.gary.common.synchttp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.SystemClock;
+
+import com.android.gary.common.utils.LogUtil;
+
+/**
+ * Keeps resolved addresses in memory so new connections skip the lookup.
+ * <p/>
+ * An entry is fresh for {@code ttlMillis}. For {@code staleMillis} after that
+ * it is still returned right away while a background lookup refreshes it, so
+ * callers only wait for DNS the first time a host is seen or after it has
+ * been unused for a long time. Concurrent lookups of the same host share one
+ * query, and {@link #prefetch(String...)} resolves hosts in parallel before
+ * they are needed. Failures are not cached.
+ */
+public class CachingDnsResolver implements DnsResolver {
+
+    private static final String TAG = "CachingDnsResolver";
+
+    public static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+    public static final long DEFAULT_STALE_MILLIS = 10 * 60 * 1000;
+
+    private static final int MAX_ENTRIES = 128;
+    private static final int MAX_LOOKUP_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final DnsResolver delegate;
+    private final long ttlMillis;
+    private final long staleMillis;
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, FutureTask<InetAddress[]>> lookups =
+            new ConcurrentHashMap<String, FutureTask<InetAddress[]>>();
+    private final ThreadPoolExecutor executor;
+
+    public CachingDnsResolver() {
+        this(DnsResolver.SYSTEM, DEFAULT_TTL_MILLIS, DEFAULT_STALE_MILLIS);
+    }
+
+    /**
+     * @param delegate    does the actual lookups
+     * @param ttlMillis   how long an answer is used without asking again
+     * @param staleMillis how long after that it is still used while being
+     *                    refreshed in the background
+     */
+    public CachingDnsResolver(DnsResolver delegate, long ttlMillis, long staleMillis) {
+        this.delegate = delegate;
+        this.ttlMillis = ttlMillis;
+        this.staleMillis = staleMillis;
+        executor = new ThreadPoolExecutor(MAX_LOOKUP_THREADS, MAX_LOOKUP_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "DNS lookup");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        String key = host.toLowerCase(Locale.US);
+        Entry entry = cache.get(key);
+        if (entry != null) {
+            long now = SystemClock.elapsedRealtime();
+            if (now < entry.expiresAt) {
+                return entry.addresses.clone();
+            }
+            if (now < entry.expiresAt + staleMillis) {
+                if (entry.refreshing.compareAndSet(false, true)) {
+                    lookupInBackground(key, entry);
+                }
+                return entry.addresses.clone();
+            }
+        }
+        return lookup(key).clone();
+    }
+
+    /**
+     * Resolves hosts that are likely to be contacted soon, e.g. the API and
+     * CDN hosts at startup. Returns at once, hosts with a fresh entry are
+     * skipped.
+     */
+    public void prefetch(String... hosts) {
+        long now = SystemClock.elapsedRealtime();
+        for (String host : hosts) {
+            String key = host.toLowerCase(Locale.US);
+            Entry entry = cache.get(key);
+            if (entry == null || now >= entry.expiresAt) {
+                lookupInBackground(key, entry);
+            }
+        }
+    }
+
+    public void remove(String host) {
+        cache.remove(host.toLowerCase(Locale.US));
+    }
+
+    /**
+     * Drops every entry, e.g. after the network changed.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    private void lookupInBackground(final String host, final Entry stale) {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    lookup(host);
+                } catch (UnknownHostException e) {
+                    LogUtil.w(TAG, "Cannot resolve " + host + ": " + e.getMessage());
+                    if (stale != null) {
+                        // let the next caller try again
+                        stale.refreshing.set(false);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queries the delegate, sharing the answer with every caller that asks
+     * for the same host meanwhile.
+     */
+    private InetAddress[] lookup(final String host) throws UnknownHostException {
+        FutureTask<InetAddress[]> task = lookups.get(host);
+        boolean owner = false;
+        if (task == null) {
+            FutureTask<InetAddress[]> created = new FutureTask<InetAddress[]>(
+                    new Callable<InetAddress[]>() {
+                        public InetAddress[] call() throws UnknownHostException {
+                            return lookupAndCache(host);
+                        }
+                    });
+            task = lookups.putIfAbsent(host, created);
+            if (task == null) {
+                task = created;
+                owner = true;
+            }
+        }
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                lookups.remove(host, task);
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host + ": interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnknownHostException) {
+                throw (UnknownHostException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            UnknownHostException unknown = new UnknownHostException(host);
+            unknown.initCause(cause);
+            throw unknown;
+        }
+    }
+
+    private InetAddress[] lookupAndCache(String host) throws UnknownHostException {
+        InetAddress[] addresses = delegate.resolve(host);
+        if (addresses == null || addresses.length == 0) {
+            throw new UnknownHostException(host);
+        }
+        cache.put(host, new Entry(addresses, SystemClock.elapsedRealtime() + ttlMillis));
+        if (cache.size() > MAX_ENTRIES) {
+            trim();
+        }
+        return addresses;
+    }
+
+    private void trim() {
+        long now = SystemClock.elapsedRealtime();
+        String oldest = null;
+        long oldestExpiry = Long.MAX_VALUE;
+        for (Map.Entry<String, Entry> e : cache.entrySet()) {
+            long expiresAt = e.getValue().expiresAt;
+            if (now >= expiresAt + staleMillis) {
+                cache.remove(e.getKey(), e.getValue());
+            } else if (expiresAt < oldestExpiry) {
+                oldestExpiry = expiresAt;
+                oldest = e.getKey();
+            }
+        }
+        if (cache.size() > MAX_ENTRIES && oldest != null) {
+            cache.remove(oldest);
+        }
+    }
+
+    private static class Entry {
+        final InetAddress[] addresses;
+        final long expiresAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.android.gary.common.synchttp;
+
+import android.os.SystemClock;
+
+/**
+ * Circuit breaker for a single host.
+ * <p/>
+ * While {@link #STATE_CLOSED} the outcome of the last {@code windowSize} calls
+ * is recorded; a call fails if it ended in a DNS, socket, timeout or 5xx error
+ * or took longer than {@code slowCallMillis}. Once at least half of a full
+ * window failed the breaker opens and {@link #allowRequest()} refuses calls for
+ * {@code openMillis}. After that it is {@link #STATE_HALF_OPEN}: a single
+ * probe call is let through, which closes the breaker again on success or
+ * reopens it on failure.
+ */
+public class CircuitBreaker {
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    public static final int DEFAULT_WINDOW_SIZE = 10;
+    public static final int DEFAULT_OPEN_MILLIS = 30 * 1000;
+    public static final int DEFAULT_SLOW_CALL_MILLIS = 8 * 1000;
+
+    private final String host;
+    private final boolean[] window;
+    private final long openMillis;
+    private final long slowCallMillis;
+
+    private int state = STATE_CLOSED;
+    private int windowIndex;
+    private int windowCount;
+    private int failureCount;
+    private long openedAt;
+    private long probeStartedAt = -1;
+
+    public CircuitBreaker(String host) {
+        this(host, DEFAULT_WINDOW_SIZE, DEFAULT_OPEN_MILLIS, DEFAULT_SLOW_CALL_MILLIS);
+    }
+
+    public CircuitBreaker(String host, int windowSize, long openMillis, long slowCallMillis) {
+        this.host = host;
+        this.window = new boolean[windowSize];
+        this.openMillis = openMillis;
+        this.slowCallMillis = slowCallMillis;
+    }
+
+    /**
+     * @return true if a call may be made now; every allowed call must be
+     * followed by {@link #onSuccess(long)} or {@link #onFailure()}
+     */
+    public synchronized boolean allowRequest() {
+        long now = SystemClock.elapsedRealtime();
+        switch (state) {
+            case STATE_OPEN:
+                if (now - openedAt < openMillis) {
+                    return false;
+                }
+                state = STATE_HALF_OPEN;
+                probeStartedAt = now;
+                return true;
+            case STATE_HALF_OPEN:
+                // a probe that never reported back must not block the host forever
+                if (probeStartedAt >= 0 && now - probeStartedAt < openMillis) {
+                    return false;
+                }
+                probeStartedAt = now;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Records a call that got an answer, slow answers count as failures.
+     */
+    public void onSuccess(long durationMillis) {
+        if (durationMillis >= slowCallMillis) {
+            onFailure();
+            return;
+        }
+        synchronized (this) {
+            if (state == STATE_HALF_OPEN) {
+                reset();
+            } else if (state == STATE_CLOSED) {
+                record(false);
+            }
+        }
+    }
+
+    public synchronized void onFailure() {
+        if (state == STATE_HALF_OPEN) {
+            open();
+        } else if (state == STATE_CLOSED) {
+            record(true);
+            if (windowCount == window.length && failureCount * 2 >= window.length) {
+                open();
+            }
+        }
+    }
+
+    public synchronized int getState() {
+        if (state == STATE_OPEN && SystemClock.elapsedRealtime() - openedAt >= openMillis) {
+            return STATE_HALF_OPEN;
+        }
+        return state;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return true if a failed call with this {@link ConnectException} error
+     * code says something about the host's health
+     */
+    public static boolean isFailure(int errorCode) {
+        switch (errorCode) {
+            case ConnectException.ERROR_CODE_DNS:
+            case ConnectException.ERROR_CODE_SOCKET:
+            case ConnectException.ERROR_CODE_SOCKETTOMEOUT:
+            case ConnectException.ERROR_CODE_IO:
+            case ConnectException.ERROR_CODE_500:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void record(boolean failure) {
+        if (windowCount == window.length) {
+            if (window[windowIndex]) {
+                failureCount--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowIndex] = failure;
+        if (failure) {
+            failureCount++;
+        }
+        windowIndex = (windowIndex + 1) % window.length;
+    }
+
+    private void open() {
+        state = STATE_OPEN;
+        openedAt = SystemClock.elapsedRealtime();
+        probeStartedAt = -1;
+    }
+
+    private void reset() {
+        state = STATE_CLOSED;
+        windowIndex = 0;
+        windowCount = 0;
+        failureCount = 0;
+        probeStartedAt = -1;
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker[" + host + ", state=" + getState() + "]";
+    }
+}
@@ -0,0 +1,16 @@
+package com.android.gary.common.synchttp;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to a host whose {@link CircuitBreaker}
+ * is open.
+ */
+public class CircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String host) {
+        super("Circuit open for " + host);
+    }
+}
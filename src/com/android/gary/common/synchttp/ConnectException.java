@@ -19,6 +19,8 @@ public class ConnectException extends Exception {
     public static final int ERROR_CODE_IO = 1005;
     public static final int ERROR_CODE_UNKONW = 1006;
     public static final int ERROR_CODE_JSON_ERROR = 1007;
+    /** the host's {@link CircuitBreaker} is open, nothing was sent */
+    public static final int ERROR_CODE_CIRCUIT_OPEN = 1008;
 
     public static final int ERROR_CODE_404 = 404;
     public static final int ERROR_CODE_500 = 500;
@@ -0,0 +1,126 @@
+package com.android.gary.common.synchttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+
+/**
+ * Registry of the content-codings the HTTP stack understands.
+ * <p/>
+ * {@code gzip} and {@code deflate} are built in and decode with pooled
+ * {@link java.util.zip.Inflater}s and buffers, see {@link InflatingInputStream}.
+ * There is no Brotli decoder on the platform; an app that bundles one
+ * registers it as {@code br} and from then on it is advertised and used:
+ *
+ * <pre class="prettyprint">
+ * ContentCodings.register(new ContentDecoder() {
+ *     public String getEncoding() { return ContentCodings.BROTLI; }
+ *     public InputStream decode(InputStream in) throws IOException {
+ *         return new BrotliInputStream(in);
+ *     }
+ * });
+ * </pre>
+ */
+public final class ContentCodings {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String BROTLI = "br";
+
+    /**
+     * Request bodies smaller than this are not worth compressing.
+     */
+    public static final int MIN_COMPRESS_BYTES = 1024;
+
+    private static final Map<String, ContentDecoder> sDecoders =
+            new LinkedHashMap<String, ContentDecoder>();
+    private static volatile String sAcceptEncoding;
+
+    static {
+        register(new ContentDecoder() {
+            @Override
+            public String getEncoding() {
+                return GZIP;
+            }
+
+            @Override
+            public InputStream decode(InputStream in) throws IOException {
+                return new InflatingInputStream(in, InflatingInputStream.MODE_GZIP);
+            }
+        });
+        register(new ContentDecoder() {
+            @Override
+            public String getEncoding() {
+                return DEFLATE;
+            }
+
+            @Override
+            public InputStream decode(InputStream in) throws IOException {
+                return new InflatingInputStream(in, InflatingInputStream.MODE_DEFLATE);
+            }
+        });
+    }
+
+    private ContentCodings() {
+    }
+
+    /**
+     * Adds or replaces the decoder for its coding.
+     */
+    public static void register(ContentDecoder decoder) {
+        synchronized (sDecoders) {
+            sDecoders.put(decoder.getEncoding().toLowerCase(Locale.US), decoder);
+            StringBuilder header = new StringBuilder();
+            for (String encoding : sDecoders.keySet()) {
+                if (header.length() > 0) {
+                    header.append(", ");
+                }
+                header.append(encoding);
+            }
+            sAcceptEncoding = header.toString();
+        }
+    }
+
+    /**
+     * @return the decoder for {@code encoding}, or null if it is not supported
+     */
+    public static ContentDecoder getDecoder(String encoding) {
+        synchronized (sDecoders) {
+            return sDecoders.get(encoding.toLowerCase(Locale.US));
+        }
+    }
+
+    /**
+     * @return value for the {@code Accept-Encoding} request header
+     */
+    public static String getAcceptEncoding() {
+        return sAcceptEncoding;
+    }
+
+    /**
+     * Replaces the body of an entity enclosing request with its gzip
+     * compressed form, unless it is small or already encoded. Only for
+     * servers known to accept {@code Content-Encoding: gzip} request bodies.
+     */
+    public static void compressRequest(HttpRequest request) {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return;
+        }
+        HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+        HttpEntity entity = enclosing.getEntity();
+        if (entity == null || entity.getContentEncoding() != null) {
+            return;
+        }
+        long length = entity.getContentLength();
+        if (length >= 0 && length < MIN_COMPRESS_BYTES) {
+            return;
+        }
+        enclosing.setEntity(new GzipCompressingEntity(entity));
+    }
+}
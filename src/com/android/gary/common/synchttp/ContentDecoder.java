@@ -0,0 +1,22 @@
+package com.android.gary.common.synchttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes response bodies of one HTTP content-coding. Decoders registered
+ * with {@link ContentCodings#register(ContentDecoder)} are advertised in
+ * {@code Accept-Encoding} and applied to matching responses.
+ */
+public interface ContentDecoder {
+
+    /**
+     * @return the coding token, e.g. {@code gzip} or {@code br}
+     */
+    String getEncoding();
+
+    /**
+     * @return a stream of the decoded body; closing it closes {@code in}
+     */
+    InputStream decode(InputStream in) throws IOException;
+}
@@ -0,0 +1,32 @@
+package com.android.gary.common.synchttp;
+
+import java.util.Random;
+
+/**
+ * Decorrelated jitter: each delay is random between the base delay and three
+ * times the previous delay, capped at the maximum. Grows about as fast as
+ * exponential backoff but spreads retries of different clients further
+ * apart.
+ */
+public class DecorrelatedJitterBackoff implements BackoffPolicy {
+
+    private static final Random RANDOM = new Random();
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public DecorrelatedJitterBackoff(long baseDelayMillis, long maxDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    @Override
+    public long getDelayMillis(int retryCount, long previousDelayMillis) {
+        long previous = Math.max(previousDelayMillis, baseDelayMillis);
+        long upper = Math.min(maxDelayMillis, previous * 3);
+        if (upper <= baseDelayMillis) {
+            return upper;
+        }
+        return baseDelayMillis + (long) (RANDOM.nextDouble() * (upper - baseDelayMillis));
+    }
+}
@@ -0,0 +1,290 @@
+package com.android.gary.common.synchttp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.android.gary.common.utils.LogUtil;
+
+/**
+ * Size-bounded LRU store of {@link CacheEntry}s in a directory.
+ * <p/>
+ * Every change is appended to a journal ({@code PUT hash size},
+ * {@code READ hash}, {@code DEL hash}), which is replayed on open to rebuild
+ * the index in access order and rewritten once it holds too many redundant
+ * lines.
+ */
+class DiskCache {
+
+    private static final String TAG = "DiskCache";
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String MAGIC = "gary.common.ResponseCache";
+    private static final String VERSION = "1";
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String DEL = "DEL";
+    private static final String ENTRY_SUFFIX = ".entry";
+
+    private final File directory;
+    private final long maxSize;
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(
+            16, 0.75f, true);
+    private long size;
+    private int redundantOpCount;
+    private Writer journalWriter;
+
+    DiskCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        try {
+            open();
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Cache journal corrupt, clearing " + directory, e);
+            clearDirectory();
+            index.clear();
+            size = 0;
+            try {
+                rebuildJournal();
+            } catch (IOException e2) {
+                LogUtil.e(TAG, "Cannot create cache journal", e2);
+            }
+        }
+    }
+
+    synchronized CacheEntry get(String key) {
+        String hash = hash(key);
+        if (!index.containsKey(hash)) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                    entryFile(hash))));
+            CacheEntry entry = CacheEntry.readFrom(in);
+            appendJournal(READ + ' ' + hash);
+            return key.equals(entry.key) ? entry : null;
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Cannot read cache entry " + key, e);
+            removeHash(hash);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    synchronized void put(CacheEntry entry) {
+        String hash = hash(entry.key);
+        File tmp = new File(directory, hash + ENTRY_SUFFIX + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            entry.writeTo(out);
+            out.close();
+            out = null;
+            File target = entryFile(hash);
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Cannot rename " + tmp);
+            }
+            Long old = index.put(hash, target.length());
+            if (old != null) {
+                size -= old;
+            }
+            size += target.length();
+            appendJournal(PUT + ' ' + hash + ' ' + target.length());
+            trimToSize();
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Cannot write cache entry " + entry.key, e);
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    synchronized void remove(String key) {
+        removeHash(hash(key));
+    }
+
+    synchronized void evictAll() {
+        closeQuietly(journalWriter);
+        journalWriter = null;
+        clearDirectory();
+        index.clear();
+        size = 0;
+        try {
+            rebuildJournal();
+        } catch (IOException e) {
+            LogUtil.e(TAG, "Cannot create cache journal", e);
+        }
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    private void removeHash(String hash) {
+        Long old = index.remove(hash);
+        if (old != null) {
+            size -= old;
+        }
+        entryFile(hash).delete();
+        appendJournal(DEL + ' ' + hash);
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue();
+            entryFile(eldest.getKey()).delete();
+            appendJournal(DEL + ' ' + eldest.getKey());
+        }
+    }
+
+    private void open() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File journal = new File(directory, JOURNAL_FILE);
+        if (!journal.exists()) {
+            rebuildJournal();
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(journal));
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    continue;
+                }
+                if (PUT.equals(parts[0]) && parts.length == 3) {
+                    index.put(parts[1], Long.parseLong(parts[2]));
+                } else if (READ.equals(parts[0])) {
+                    index.get(parts[1]);
+                } else if (DEL.equals(parts[0])) {
+                    index.remove(parts[1]);
+                }
+            }
+            redundantOpCount = lineCount - index.size();
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt journal line");
+        } finally {
+            closeQuietly(reader);
+        }
+
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entryFile(entry.getKey()).exists()) {
+                size += entry.getValue();
+            } else {
+                it.remove();
+            }
+        }
+        journalWriter = new BufferedWriter(new FileWriter(journal, true));
+        trimToSize();
+    }
+
+    private void rebuildJournal() throws IOException {
+        closeQuietly(journalWriter);
+        File tmp = new File(directory, JOURNAL_FILE_TMP);
+        Writer writer = new BufferedWriter(new FileWriter(tmp));
+        try {
+            writer.write(MAGIC + "\n" + VERSION + "\n");
+            for (Map.Entry<String, Long> entry : index.entrySet()) {
+                writer.write(PUT + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+        File journal = new File(directory, JOURNAL_FILE);
+        if (!tmp.renameTo(journal)) {
+            throw new IOException("Cannot rename " + tmp);
+        }
+        redundantOpCount = 0;
+        journalWriter = new BufferedWriter(new FileWriter(journal, true));
+    }
+
+    private void appendJournal(String line) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(line);
+            journalWriter.write('\n');
+            journalWriter.flush();
+            redundantOpCount++;
+            if (redundantOpCount >= 2000 && redundantOpCount >= index.size()) {
+                rebuildJournal();
+            }
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Cannot append to cache journal", e);
+        }
+    }
+
+    private void clearDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private File entryFile(String hash) {
+        return new File(directory, hash + ENTRY_SUFFIX);
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(key.hashCode());
+        } catch (UnsupportedEncodingException e) {
+            return String.valueOf(key.hashCode());
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignore) {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.android.gary.common.synchttp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Turns host names into addresses for new connections. Installed with
+ * {@link HttpTransport#setDnsResolver(DnsResolver)}.
+ */
+public interface DnsResolver {
+
+    /**
+     * Asks the platform on every call.
+     */
+    DnsResolver SYSTEM = new DnsResolver() {
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    /**
+     * @return at least one address, in the order they should be tried
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+}
@@ -0,0 +1,138 @@
+package com.android.gary.common.synchttp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters and latency histograms of the requests to one host or endpoint,
+ * see {@link HttpMetrics}.
+ */
+public class EndpointStats {
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLongArray statusClasses = new AtomicLongArray(6);
+    private final LatencyHistogram[] latencies = new LatencyHistogram[HttpMetrics.PHASE_COUNT];
+
+    EndpointStats() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    void record(int statusCode, long totalMillis, RequestTimings timings) {
+        requests.incrementAndGet();
+        if (statusCode <= 0) {
+            failures.incrementAndGet();
+        } else if (statusCode / 100 < 6) {
+            statusClasses.incrementAndGet(statusCode / 100);
+        }
+        latencies[HttpMetrics.PHASE_TOTAL].record(totalMillis);
+        if (timings == null) {
+            return;
+        }
+        recordPhase(HttpMetrics.PHASE_DNS, timings.dnsMillis);
+        recordPhase(HttpMetrics.PHASE_CONNECT, timings.connectMillis);
+        recordPhase(HttpMetrics.PHASE_TLS, timings.tlsMillis);
+        recordPhase(HttpMetrics.PHASE_TTFB, timings.ttfbMillis);
+        retries.addAndGet(timings.retries);
+        bytesSent.addAndGet(timings.bytesSent.get());
+        bytesReceived.addAndGet(timings.bytesReceived.get());
+    }
+
+    void recordPhase(int phase, long millis) {
+        if (millis >= 0) {
+            latencies[phase].record(millis);
+        }
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return requests that got no response at all
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @param statusClass 2 for 2xx, 5 for 5xx, ...
+     */
+    public long getStatusCount(int statusClass) {
+        return statusClass >= 0 && statusClass < 6 ? statusClasses.get(statusClass) : 0;
+    }
+
+    /**
+     * @param phase one of the {@code HttpMetrics.PHASE_*} constants
+     */
+    public LatencyHistogram getLatency(int phase) {
+        return latencies[phase];
+    }
+
+    EndpointStats copy() {
+        EndpointStats copy = new EndpointStats();
+        copy.requests.set(requests.get());
+        copy.failures.set(failures.get());
+        copy.retries.set(retries.get());
+        copy.bytesSent.set(bytesSent.get());
+        copy.bytesReceived.set(bytesReceived.get());
+        for (int i = 0; i < 6; i++) {
+            copy.statusClasses.set(i, statusClasses.get(i));
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            copy.latencies[i] = latencies[i].copy();
+        }
+        return copy;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("requests", getRequestCount());
+        json.put("failures", getFailureCount());
+        json.put("retries", getRetryCount());
+        json.put("bytesSent", getBytesSent());
+        json.put("bytesReceived", getBytesReceived());
+        JSONObject status = new JSONObject();
+        for (int i = 1; i < 6; i++) {
+            status.put(i + "xx", statusClasses.get(i));
+        }
+        json.put("status", status);
+        JSONObject latency = new JSONObject();
+        for (int i = 0; i < latencies.length; i++) {
+            LatencyHistogram histogram = latencies[i];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            JSONObject phase = new JSONObject();
+            phase.put("count", histogram.getCount());
+            phase.put("mean", histogram.getMean());
+            phase.put("p50", histogram.getPercentile(50));
+            phase.put("p90", histogram.getPercentile(90));
+            phase.put("p99", histogram.getPercentile(99));
+            phase.put("max", histogram.getMax());
+            latency.put(HttpMetrics.PHASE_NAMES[i], phase);
+        }
+        json.put("latencyMillis", latency);
+        return json;
+    }
+}
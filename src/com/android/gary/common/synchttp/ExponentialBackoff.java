@@ -0,0 +1,31 @@
+package com.android.gary.common.synchttp;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with full jitter: the n-th retry waits a random time
+ * between 0 and {@code min(maxDelay, baseDelay * 2^(n-1))}, so clients that
+ * failed together do not come back together.
+ */
+public class ExponentialBackoff implements BackoffPolicy {
+
+    private static final Random RANDOM = new Random();
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public ExponentialBackoff(long baseDelayMillis, long maxDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    @Override
+    public long getDelayMillis(int retryCount, long previousDelayMillis) {
+        int shift = Math.min(Math.max(retryCount - 1, 0), 30);
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << shift);
+        if (ceiling <= 0) {
+            return 0;
+        }
+        return (long) (RANDOM.nextDouble() * (ceiling + 1));
+    }
+}
@@ -0,0 +1,18 @@
+package com.android.gary.common.synchttp;
+
+/**
+ * Waits the same time before every retry.
+ */
+public class FixedBackoff implements BackoffPolicy {
+
+    private final long delayMillis;
+
+    public FixedBackoff(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public long getDelayMillis(int retryCount, long previousDelayMillis) {
+        return delayMillis;
+    }
+}
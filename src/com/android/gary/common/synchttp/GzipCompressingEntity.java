@@ -0,0 +1,70 @@
+package com.android.gary.common.synchttp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Sends the wrapped entity gzip compressed, see
+ * {@link ContentCodings#compressRequest(org.apache.http.HttpRequest)}. The
+ * compressed size is not known up front, so the body goes out chunked.
+ */
+class GzipCompressingEntity extends HttpEntityWrapper {
+
+    GzipCompressingEntity(HttpEntity wrapped) {
+        super(wrapped);
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return new BasicHeader("Content-Encoding", ContentCodings.GZIP);
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        // closing the gzip stream frees its native Deflater but must leave
+        // the connection's stream open
+        GZIPOutputStream gzip = new GZIPOutputStream(new FilterOutputStream(outstream) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        });
+        wrappedEntity.writeTo(gzip);
+        gzip.close();
+    }
+
+    /**
+     * Renders the compressed body in memory, meant for debugging only.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+}
@@ -1,5 +1,6 @@
 package com.android.gary.common.synchttp;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -10,16 +11,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.http.Header;
-import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpRequest;
-import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
-import org.apache.http.HttpResponseInterceptor;
-import org.apache.http.HttpVersion;
 import org.apache.http.NameValuePair;
 import org.apache.http.StatusLine;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
@@ -28,19 +24,8 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.entity.BufferedHttpEntity;
-import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
@@ -48,6 +33,7 @@ import org.apache.http.protocol.SyncBasicHttpContext;
 import org.apache.http.util.EntityUtils;
 
 import android.os.Build;
+import android.os.SystemClock;
 
 import com.android.gary.common.utils.LogUtil;
 import com.android.gary.common.utils.StringUtils;
@@ -57,20 +43,16 @@ public class HttpClientUtil {
     private static final String TAG = "HttpClientUtil";
     private static HttpClientUtil mInstence;
 
-    private static final int DEFAULT_MAX_CONNECTIONS = 10;
-    private static final int DEFAULT_SOCKET_TIMEOUT = 10 * 1000;
-    private static final int DEFAULT_MAX_RETRIES = 5;
-    private static final int RETRY_SLEEP_TIME_MILLIS = 1500;
-    private static final int DEFAULT_SOCKET_BUFFER_SIZE = 8192;
-    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
-    private static final String ENCODING_GZIP = "gzip";
+    private static final String USER_AGENT = "GeakWatch2";
 
-    private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
-    private static int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private static int socketTimeout = HttpTransport.DEFAULT_SOCKET_TIMEOUT;
 
+    private final HttpTransport transport;
     private final DefaultHttpClient httpClient;
     private final HttpContext httpContext;
     private final Map<String, String> clientHeaderMap;
+    private volatile ResponseCache responseCache;
+    private volatile boolean requestCompressionEnabled;
 
     public static HttpClientUtil getInstence() {
         if (mInstence == null) {
@@ -80,85 +62,73 @@ public class HttpClientUtil {
     }
 
     public HttpClientUtil() {
-        BasicHttpParams httpParams = new BasicHttpParams();
-
-        ConnManagerParams.setTimeout(httpParams, socketTimeout);
-        ConnManagerParams.setMaxConnectionsPerRoute(httpParams,
-                new ConnPerRouteBean(maxConnections));
-        ConnManagerParams.setMaxTotalConnections(httpParams, DEFAULT_MAX_CONNECTIONS);
+        this(HttpTransport.getDefault());
+    }
 
-        HttpConnectionParams.setSoTimeout(httpParams, socketTimeout);
-        HttpConnectionParams.setConnectionTimeout(httpParams, socketTimeout);
-        HttpConnectionParams.setTcpNoDelay(httpParams, true);
+    /**
+     * Creates a client on top of the given transport. Clients sharing a
+     * transport, including {@link com.android.gary.common.asynchttp.AsyncHttpClient},
+     * share its connection pool.
+     */
+    public HttpClientUtil(HttpTransport transport) {
+        this.transport = transport;
+        httpClient = transport.getHttpClient();
+        httpContext = new SyncBasicHttpContext(new BasicHttpContext());
+        clientHeaderMap = new HashMap<String, String>();
+    }
 
-        HttpConnectionParams.setSocketBufferSize(httpParams, DEFAULT_SOCKET_BUFFER_SIZE);
+    /**
+     * Limits the connections opened to a single host. Applies to hosts that
+     * have not been connected to yet.
+     */
+    public void setMaxConnectionsPerRoute(String host, int port, String scheme, int max) {
+        transport.setMaxConnectionsPerRoute(new HttpHost(host, port, scheme), max);
+    }
 
-        HttpProtocolParams.setVersion(httpParams, HttpVersion.HTTP_1_1);
-        HttpProtocolParams.setUserAgent(httpParams, "GeakWatch2");
+    public PoolStats getPoolStats() {
+        return transport.getPoolStats();
+    }
 
-        SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
-        ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(httpParams, schemeRegistry);
+    /**
+     * Enables caching of GET responses, or disables it when {@code cache} is
+     * null. With a cache installed a 304 answer carries the cached body.
+     */
+    public void setResponseCache(ResponseCache cache) {
+        this.responseCache = cache;
+    }
 
-        httpContext = new SyncBasicHttpContext(new BasicHttpContext());
-        httpClient = new DefaultHttpClient(cm, httpParams);
-        httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
-            @Override
-            public void process(HttpRequest request, HttpContext context) {
-                if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
-                    request.addHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
-                }
-                for (String header : clientHeaderMap.keySet()) {
-                    request.addHeader(header, clientHeaderMap.get(header));
-                }
-            }
-        });
-
-        httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
-            @Override
-            public void process(HttpResponse response, HttpContext context) {
-                final HttpEntity entity = response.getEntity();
-                if (entity == null) {
-                    return;
-                }
-                final Header encoding = entity.getContentEncoding();
-                if (encoding != null) {
-                    for (HeaderElement element : encoding.getElements()) {
-                        if (element.getName().equalsIgnoreCase(ENCODING_GZIP)) {
-                            response.setEntity(new InflatingEntity(response.getEntity()));
-                            break;
-                        }
-                    }
-                }
-            }
-        });
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
 
-        httpClient.setHttpRequestRetryHandler(new RetryHandler(DEFAULT_MAX_RETRIES,RETRY_SLEEP_TIME_MILLIS));
-        clientHeaderMap = new HashMap<String, String>();
+    public HttpTransport getTransport() {
+        return transport;
     }
 
-    private static class InflatingEntity extends HttpEntityWrapper {
-        public InflatingEntity(HttpEntity wrapped) {
-            super(wrapped);
-        }
+    /**
+     * Sends request bodies of 1 KB and more gzip compressed. Off by default,
+     * the server has to accept {@code Content-Encoding: gzip} requests.
+     */
+    public void setRequestCompressionEnabled(boolean enabled) {
+        requestCompressionEnabled = enabled;
+    }
 
-        @Override
-        public InputStream getContent() throws IOException {
-            return new GZIPInputStream(wrappedEntity.getContent());
+    private void prepareRequest(HttpUriRequest uriRequest) {
+        for (Map.Entry<String, String> header : clientHeaderMap.entrySet()) {
+            uriRequest.addHeader(header.getKey(), header.getValue());
         }
-
-        @Override
-        public long getContentLength() {
-            return -1;
+        HttpProtocolParams.setUserAgent(uriRequest.getParams(), USER_AGENT);
+        transport.applyNetworkPolicy(uriRequest, socketTimeout, socketTimeout);
+        if (requestCompressionEnabled) {
+            ContentCodings.compressRequest(uriRequest);
         }
     }
 
     public ResponseCallback post(String url, String params,
                                  ResponseCallback oldResponseCallback) throws ConnectException ,Exception{
         HttpEntityEnclosingRequestBase request = new HttpPost(url);
-        LogUtil.d("========the params is:"+params);
-        LogUtil.d("========the url is:"+url);
+        LogUtil.dFormat(TAG, "========the params is:{}", params);
+        LogUtil.dFormat(TAG, "========the url is:{}", url);
         if (params != null)
             request.setEntity(getEntity(params));
         return sendRequest(httpClient, httpContext, request, null, oldResponseCallback);
@@ -173,13 +143,32 @@ public class HttpClientUtil {
 
     public ResponseCallback post(String url, RequestParams params,
                                  ResponseCallback oldResponseCallback) throws ConnectException {
-        LogUtil.d("the url is ====="+url);
+        LogUtil.dFormat(TAG, "the url is ====={}", url);
         HttpEntityEnclosingRequestBase request = new HttpPost(url);
         if (params != null)
             request.setEntity(paramsToEntity(params));
         return sendRequest(httpClient, httpContext, request, null, oldResponseCallback);
     }
 
+    /**
+     * Posts a body of your own, e.g. JSON.
+     *
+     * @param contentType sent as Content-Type unless null
+     */
+    public ResponseCallback post(String url, HttpEntity entity, String contentType,
+                                 ResponseCallback oldResponseCallback) throws ConnectException {
+        HttpEntityEnclosingRequestBase request = new HttpPost(url);
+        request.setEntity(entity);
+        return sendRequest(httpClient, httpContext, request, contentType, oldResponseCallback);
+    }
+
+    /**
+     * Sends a prepared request, e.g. one carrying custom headers.
+     */
+    public ResponseCallback execute(HttpUriRequest uriRequest) throws ConnectException {
+        return sendRequest(httpClient, httpContext, uriRequest, null, null);
+    }
+
     public synchronized boolean post(String url, RequestParams params) {
         HttpEntityEnclosingRequestBase request = new HttpPost(url);
         if (params != null)
@@ -192,25 +181,34 @@ public class HttpClientUtil {
         if (contentType != null) {
             uriRequest.addHeader("Content-Type", contentType);
         }
+        prepareRequest(uriRequest);
 
+        CircuitBreaker breaker = transport.getCircuitBreaker(uriRequest);
+        if (breaker != null && !breaker.allowRequest()) {
+            LogUtil.w(TAG, "circuit open, not sending " + uriRequest.getURI());
+            HttpTransport.releaseRequestEntity(uriRequest);
+            return false;
+        }
+        transport.getRetryBudget().recordRequest();
+        HttpContext requestContext = new BasicHttpContext(httpContext);
+        long start = SystemClock.elapsedRealtime();
+        boolean failed = true;
+        int statusCode = 0;
+        HttpEntity entity = null;
         try {
-            HttpResponse response = client.execute(uriRequest, httpContext);
+            HttpResponse response = client.execute(uriRequest, requestContext);
             StatusLine status = response.getStatusLine();
-            // HttpEntity entity = null;
-            HttpEntity temp = response.getEntity();
-            if (temp != null) {
-                // entity = new BufferedHttpEntity(temp);
-                // String responseBody = EntityUtils.toString(entity, "UTF-8");
-            }
-            if (status.getStatusCode() == 200) {
-                LogUtil.d(TAG, "status.getStatusCode() == "+status.getStatusCode());
-                return true;
-            } else {
-                LogUtil.d(TAG, "status.getStatusCode() == "+status.getStatusCode());
-                return false;
-            }
+            statusCode = status.getStatusCode();
+            failed = statusCode >= 500;
+            entity = response.getEntity();
+            LogUtil.dFormat(TAG, "status.getStatusCode() == {}", statusCode);
+            return statusCode >= 200 && statusCode < 300;
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            consumeQuietly(entity);
+            HttpTransport.releaseRequestEntity(uriRequest);
+            recordOutcome(uriRequest, requestContext, breaker, failed, statusCode, start);
         }
         return false;
     }
@@ -225,16 +223,13 @@ public class HttpClientUtil {
     public ResponseCallback get(String url)
             throws ConnectException {
         HttpRequestBase request = new HttpGet(url);
-        LogUtil.i(TAG, "the url === "+url);
+        LogUtil.iFormat(TAG, "the url === {}", url);
         return sendRequest(httpClient, httpContext, request, null, null);
     }
     
     public ResponseCallback get(String url, Map<String, String> params)
             throws ConnectException {
-        if (!url.endsWith("?")) {
-            url = url + "?";
-        }
-        String url2 = url + getUrlString(params);
+        String url2 = UrlBuilder.obtain(url).params(params).build();
         HttpRequestBase request = new HttpGet(url2);
 //        LogUtil.i("_webapp", "the url === "+url2);
         return sendRequest(httpClient, httpContext, request, null, null);
@@ -246,24 +241,63 @@ public class HttpClientUtil {
         if (contentType != null) {
             uriRequest.addHeader("Content-Type", contentType);
         }
-        if (oldResponseCallback != null && !StringUtils.isBlank(oldResponseCallback.lastModified)) {
-            uriRequest.addHeader("If-Modified-Since", oldResponseCallback.lastModified);
-            LogUtil.d(TAG, "addHandler If-Modified-Since:" + oldResponseCallback.lastModified);
+        uriRequest.addHeader("X_GEAKWATCH_SN", Build.SERIAL);
+        prepareRequest(uriRequest);
+
+        ResponseCache cache = responseCache;
+        boolean cacheable = cache != null && ResponseCache.isCacheable(uriRequest);
+        CacheEntry cacheEntry = null;
+        if (cacheable) {
+            cacheEntry = cache.get(uriRequest);
+            if (cacheEntry != null && cacheEntry.isFresh(System.currentTimeMillis())) {
+                cache.recordHit();
+                LogUtil.dFormat(TAG, "cache hit: {}", uriRequest.getURI());
+                return cacheEntry.toResponseCallback(cacheEntry.stateCode);
+            }
         }
-        if (oldResponseCallback != null && !StringUtils.isBlank(oldResponseCallback.eTeg)) {
-            uriRequest.addHeader("If-None-Match", oldResponseCallback.eTeg);
-            LogUtil.d(TAG, "addHandler Eteg:" + oldResponseCallback.eTeg);
+
+        String lastModified = null;
+        String eTag = null;
+        if (cacheEntry != null) {
+            // revalidate the version we hold the body for
+            lastModified = cacheEntry.getLastModified();
+            eTag = cacheEntry.getETag();
+        } else if (oldResponseCallback != null) {
+            lastModified = oldResponseCallback.lastModified;
+            eTag = oldResponseCallback.eTeg;
+        }
+        if (!StringUtils.isBlank(lastModified)) {
+            uriRequest.addHeader("If-Modified-Since", lastModified);
+            LogUtil.dFormat(TAG, "addHandler If-Modified-Since:{}", lastModified);
+        }
+        if (!StringUtils.isBlank(eTag)) {
+            uriRequest.addHeader("If-None-Match", eTag);
+            LogUtil.dFormat(TAG, "addHandler Eteg:{}", eTag);
         }
 
-        uriRequest.addHeader("X_GEAKWATCH_SN", Build.SERIAL);
+        CircuitBreaker breaker = transport.getCircuitBreaker(uriRequest);
+        if (breaker != null && !breaker.allowRequest()) {
+            LogUtil.w(TAG, "circuit open, not sending " + uriRequest.getURI());
+            HttpTransport.releaseRequestEntity(uriRequest);
+            throw new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
+                    ConnectException.ERROR_CODE_CIRCUIT_OPEN);
+        }
+        // cache hits and open circuits send nothing and earn no retries
+        transport.getRetryBudget().recordRequest();
+        HttpContext requestContext = new BasicHttpContext(httpContext);
+        long start = SystemClock.elapsedRealtime();
 
         ConnectException exception = null;
         ResponseCallback responseCallback = new ResponseCallback();
+        int statusCode = 0;
+        HttpEntity entity = null;
         try {
-            HttpResponse response = client.execute(uriRequest, httpContext);
+            HttpResponse response = client.execute(uriRequest, requestContext);
             StatusLine status = response.getStatusLine();
             //Header[] handlers = response.getAllHeaders();
-            responseCallback.stateCode = status.getStatusCode();
+            statusCode = status.getStatusCode();
+            entity = response.getEntity();
+            responseCallback.stateCode = statusCode;
             Header lmh = response.getFirstHeader("Last-Modified");
             if (lmh != null) {
                 responseCallback.lastModified = lmh.getValue();
@@ -273,51 +307,49 @@ public class HttpClientUtil {
                 responseCallback.eTeg = eth.getValue();
             }
 
-            LogUtil.d(TAG, "stateCode == " + responseCallback.stateCode);
-            LogUtil.d(TAG, "lastModified == " + responseCallback.lastModified);
-            LogUtil.d(TAG, "Etag == " + responseCallback.eTeg);
-
-            if (status.getStatusCode() == 200) {
-                HttpEntity entity = null;
-                HttpEntity temp = response.getEntity();
-                if (temp != null) {
-                    entity = new BufferedHttpEntity(temp);
-                    String responseBody = EntityUtils.toString(entity, "UTF-8");
-                    responseCallback.responseBody = responseBody;
-                    LogUtil.d(TAG, "responseBody== " + responseCallback.responseBody);
-                    return responseCallback;
+            LogUtil.dFormat(TAG, "stateCode == {}", statusCode);
+            LogUtil.dFormat(TAG, "lastModified == {}", responseCallback.lastModified);
+            LogUtil.dFormat(TAG, "Etag == {}", responseCallback.eTeg);
+
+            if (statusCode >= 200 && statusCode < 300) {
+                // 201 and 204 answers often come without a body
+                String responseBody = entity == null ? "" : EntityUtils.toString(entity, "UTF-8");
+                responseCallback.responseBody = responseBody;
+                LogUtil.dFormat(TAG, "responseBody== {}", responseBody);
+                if (cacheable && statusCode == 200) {
+                    cache.put(uriRequest, response, responseBody,
+                            responseCallback.eTeg, responseCallback.lastModified);
                 }
+                return responseCallback;
             } else if (status.getStatusCode() == 304) {
+                if (cacheEntry != null) {
+                    cacheEntry = cache.update(cacheEntry, response);
+                    responseCallback.responseBody = cacheEntry.getResponseBody();
+                    responseCallback.eTeg = cacheEntry.getETag();
+                    responseCallback.lastModified = cacheEntry.getLastModified();
+                }
                 return responseCallback;
-            } else if (status.getStatusCode() < 500 && status.getStatusCode() >= 400) {
-                exception = new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
-                        ConnectException.ERROR_CODE_404);
             } else {
                 exception = new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
-                        ConnectException.ERROR_CODE_500);
+                        errorCodeFor(statusCode));
             }
+            // callers tell e.g. 401 and 429 apart by the status
+            exception.setResponseCallback(responseCallback);
 
-        } catch (UnknownHostException e) {// dns错误
-            e.printStackTrace();
-            exception = new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
-                    ConnectException.ERROR_CODE_DNS);
-
-        } catch (SocketException e) {// 连接错误
-            e.printStackTrace();
-            exception = new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
-                    ConnectException.ERROR_CODE_SOCKET);
-        } catch (SocketTimeoutException e) {// 连接超时
-            e.printStackTrace();
-            exception = new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
-                    ConnectException.ERROR_CODE_SOCKETTOMEOUT);
-        } catch (IOException e) {// 服务器未响应
+        } catch (IOException e) {
             e.printStackTrace();
-            exception = new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
-                    ConnectException.ERROR_CODE_IO);
+            exception = toConnectException(e);
         } catch (Exception e) {
             e.printStackTrace();
             exception = new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
                     ConnectException.ERROR_CODE_UNKONW);
+        } finally {
+            // returns the connection to the pool shared with the async client
+            consumeQuietly(entity);
+            HttpTransport.releaseRequestEntity(uriRequest);
+            recordOutcome(uriRequest, requestContext, breaker, exception != null
+                    && CircuitBreaker.isFailure(exception.getErrorCode()),
+                    statusCode, start);
         }
 
         if (exception == null) {
@@ -327,6 +359,135 @@ public class HttpClientUtil {
         throw exception;
     }
 
+    /**
+     * Sends a GET and hands a 2xx body to {@code callback} as it arrives,
+     * without buffering it. Meant for large downloads and feeds that are
+     * parsed incrementally; the response cache is not consulted.
+     *
+     * @throws ConnectException for non-2xx answers and network errors, as
+     *                          {@link #get(String)} does
+     */
+    public void stream(String url, ResponseStreamCallback callback) throws ConnectException {
+        sendStreamingRequest(httpClient, httpContext, new HttpGet(url), callback);
+    }
+
+    protected void sendStreamingRequest(DefaultHttpClient client, HttpContext httpContext,
+                                        HttpUriRequest uriRequest, ResponseStreamCallback callback)
+            throws ConnectException {
+        uriRequest.addHeader("X_GEAKWATCH_SN", Build.SERIAL);
+        prepareRequest(uriRequest);
+
+        CircuitBreaker breaker = transport.getCircuitBreaker(uriRequest);
+        if (breaker != null && !breaker.allowRequest()) {
+            HttpTransport.releaseRequestEntity(uriRequest);
+            throw new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
+                    ConnectException.ERROR_CODE_CIRCUIT_OPEN);
+        }
+        transport.getRetryBudget().recordRequest();
+        HttpContext requestContext = new BasicHttpContext(httpContext);
+        long start = SystemClock.elapsedRealtime();
+
+        ConnectException exception = null;
+        HttpEntity entity = null;
+        int stateCode = 0;
+        try {
+            HttpResponse response = client.execute(uriRequest, requestContext);
+            stateCode = response.getStatusLine().getStatusCode();
+            entity = response.getEntity();
+            if (stateCode >= 200 && stateCode < 300) {
+                if (entity != null) {
+                    InputStream body = entity.getContent();
+                    try {
+                        callback.onResponse(stateCode, response.getAllHeaders(), body);
+                    } finally {
+                        body.close();
+                    }
+                } else {
+                    callback.onResponse(stateCode, response.getAllHeaders(),
+                            new ByteArrayInputStream(new byte[0]));
+                }
+                return;
+            }
+            exception = new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
+                    errorCodeFor(stateCode));
+        } catch (IOException e) {
+            e.printStackTrace();
+            exception = toConnectException(e);
+        } finally {
+            consumeQuietly(entity);
+            HttpTransport.releaseRequestEntity(uriRequest);
+            recordOutcome(uriRequest, requestContext, breaker, exception != null
+                    && CircuitBreaker.isFailure(exception.getErrorCode()), stateCode, start);
+        }
+        throw exception;
+    }
+
+    /**
+     * Maps the status of an answer that is neither 2xx nor 304: 4xx to
+     * {@link ConnectException#ERROR_CODE_404}, 5xx to
+     * {@link ConnectException#ERROR_CODE_500} and a redirect that was not
+     * followed, which says nothing about the host, to
+     * {@link ConnectException#ERROR_CODE_UNKONW}.
+     */
+    static int errorCodeFor(int statusCode) {
+        if (statusCode >= 500) {
+            return ConnectException.ERROR_CODE_500;
+        }
+        if (statusCode >= 400) {
+            return ConnectException.ERROR_CODE_404;
+        }
+        return ConnectException.ERROR_CODE_UNKONW;
+    }
+
+    private static void consumeQuietly(HttpEntity entity) {
+        if (entity != null) {
+            try {
+                entity.consumeContent();
+            } catch (IOException ignore) {
+                // connection is discarded instead of reused
+            }
+        }
+    }
+
+    private static ConnectException toConnectException(IOException e) {
+        int errorCode;
+        if (e instanceof UnknownHostException) {// dns错误
+            errorCode = ConnectException.ERROR_CODE_DNS;
+        } else if (e instanceof SocketException) {// 连接错误
+            errorCode = ConnectException.ERROR_CODE_SOCKET;
+        } else if (e instanceof SocketTimeoutException) {// 连接超时
+            errorCode = ConnectException.ERROR_CODE_SOCKETTOMEOUT;
+        } else {// 服务器未响应
+            errorCode = ConnectException.ERROR_CODE_IO;
+        }
+        return new ConnectException(ConnectException.ERROR_TYPE_CONNECT, errorCode);
+    }
+
+    /**
+     * Feeds the circuit breaker and the transport metrics.
+     *
+     * @param statusCode the final status, 0 if no response was received
+     */
+    private void recordOutcome(HttpUriRequest uriRequest, HttpContext requestContext,
+                               CircuitBreaker breaker, boolean failed, int statusCode, long start) {
+        long now = SystemClock.elapsedRealtime();
+        transport.getMetrics().record(uriRequest, requestContext, statusCode, now - start);
+        if (breaker == null) {
+            return;
+        }
+        if (failed) {
+            breaker.onFailure();
+        } else {
+            // the host is only slow if the attempt that answered was, waits
+            // between retries don't count
+            RequestTimings timings = (RequestTimings) requestContext
+                    .getAttribute(RequestTimings.ATTR);
+            long attemptStart = timings != null && timings.attemptStartedAt > 0
+                    ? timings.attemptStartedAt : start;
+            breaker.onSuccess(now - attemptStart);
+        }
+    }
+
     private HttpEntity paramsToEntity(RequestParams params) {
         HttpEntity entity = null;
         if (params != null) {
@@ -335,9 +496,13 @@ public class HttpClientUtil {
         return entity;
     }
 
+    /**
+     * Resolves through the default transport's resolver, so the answer is
+     * usually served from its cache.
+     */
     public static String getHostIp(String host) {
         try {
-            InetAddress rs = InetAddress.getByName(host);
+            InetAddress rs = HttpTransport.getDefault().getDnsResolver().resolve(host)[0];
             return rs.getHostAddress();
         } catch (UnknownHostException e) {
             // TODO Auto-generated catch block
@@ -346,18 +511,4 @@ public class HttpClientUtil {
         return null;
     }
     
-    private String getUrlString(Map<String,String> map){
-        StringBuilder builder = new StringBuilder();
-        if(map!=null){
-            for (Map.Entry<String, String> entry : map.entrySet()) {
-                String key=entry.getKey();
-                String value=entry.getValue();
-                builder.append("&").append(key).append("=").append(value);
-            }
-        }else{
-            return null;
-        }
-        return builder.toString().substring(1);
-    }
-
 }
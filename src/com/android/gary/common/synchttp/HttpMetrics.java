@@ -0,0 +1,173 @@
+package com.android.gary.common.synchttp;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.text.TextUtils;
+
+/**
+ * Request metrics of one {@link HttpTransport}, per host and per endpoint.
+ * <p/>
+ * Endpoints are the host plus the path with numeric and id-like segments
+ * replaced by {@code {id}}, and at most {@link #MAX_ENDPOINTS} of them are
+ * tracked. For every request the counters, status classes, bytes on the
+ * wire and retries are kept, as well as latency histograms of the phases:
+ * DNS lookup, TCP connect and TLS handshake for new connections, wait for a
+ * pooled connection, time to first byte and total time.
+ *
+ * <pre class="prettyprint">
+ * LogUtil.d(TAG, HttpTransport.getDefault().getMetrics().toJson().toString());
+ * </pre>
+ */
+public class HttpMetrics {
+
+    public static final int PHASE_DNS = 0;
+    public static final int PHASE_CONNECT = 1;
+    public static final int PHASE_TLS = 2;
+    public static final int PHASE_POOL_WAIT = 3;
+    public static final int PHASE_TTFB = 4;
+    public static final int PHASE_TOTAL = 5;
+    static final int PHASE_COUNT = 6;
+    static final String[] PHASE_NAMES = {"dns", "connect", "tls", "poolWait", "ttfb", "total"};
+
+    public static final int MAX_ENDPOINTS = 256;
+
+    private final ConcurrentHashMap<String, EndpointStats> hosts =
+            new ConcurrentHashMap<String, EndpointStats>();
+    private final ConcurrentHashMap<String, EndpointStats> endpoints =
+            new ConcurrentHashMap<String, EndpointStats>();
+    private volatile boolean enabled = true;
+
+    /**
+     * Records a finished request.
+     *
+     * @param statusCode  status of the response, 0 if none was received
+     * @param totalMillis time from sending to the last byte of the response
+     */
+    public void record(HttpUriRequest request, HttpContext context, int statusCode,
+                       long totalMillis) {
+        if (!enabled) {
+            return;
+        }
+        URI uri = request.getURI();
+        String host = uri.getHost();
+        if (host == null) {
+            return;
+        }
+        RequestTimings timings = context == null ? null
+                : (RequestTimings) context.getAttribute(RequestTimings.ATTR);
+        statsOf(hosts, host).record(statusCode, totalMillis, timings);
+        String endpoint = endpointKey(host, uri.getRawPath());
+        if (!endpoints.containsKey(endpoint) && endpoints.size() >= MAX_ENDPOINTS) {
+            endpoint = host + " (other)";
+        }
+        statsOf(endpoints, endpoint).record(statusCode, totalMillis, timings);
+    }
+
+    void recordPoolWait(String host, long millis) {
+        if (enabled && host != null) {
+            statsOf(hosts, host).recordPhase(PHASE_POOL_WAIT, millis);
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return snapshot of the per host stats, sorted by host
+     */
+    public Map<String, EndpointStats> getHostStats() {
+        return snapshot(hosts);
+    }
+
+    /**
+     * @return snapshot of the per endpoint stats, sorted by endpoint
+     */
+    public Map<String, EndpointStats> getEndpointStats() {
+        return snapshot(endpoints);
+    }
+
+    public void reset() {
+        hosts.clear();
+        endpoints.clear();
+    }
+
+    /**
+     * @return a snapshot of everything as {@code {"hosts": {...}, "endpoints": {...}}}
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("hosts", toJson(getHostStats()));
+            json.put("endpoints", toJson(getEndpointStats()));
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    private static JSONObject toJson(Map<String, EndpointStats> stats) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+            json.put(entry.getKey(), entry.getValue().toJson());
+        }
+        return json;
+    }
+
+    private static Map<String, EndpointStats> snapshot(Map<String, EndpointStats> stats) {
+        Map<String, EndpointStats> copy = new TreeMap<String, EndpointStats>();
+        for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().copy());
+        }
+        return copy;
+    }
+
+    private static EndpointStats statsOf(ConcurrentHashMap<String, EndpointStats> map, String key) {
+        EndpointStats stats = map.get(key);
+        if (stats == null) {
+            EndpointStats created = new EndpointStats();
+            stats = map.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    static String endpointKey(String host, String path) {
+        StringBuilder key = new StringBuilder(host);
+        if (TextUtils.isEmpty(path)) {
+            return key.append('/').toString();
+        }
+        for (String segment : path.split("/")) {
+            if (segment.length() == 0) {
+                continue;
+            }
+            key.append('/').append(isId(segment) ? "{id}" : segment);
+        }
+        return key.toString();
+    }
+
+    private static boolean isId(String segment) {
+        boolean digitsOnly = true;
+        boolean hexOnly = true;
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c < '0' || c > '9') {
+                digitsOnly = false;
+                if (!(c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F' || c == '-')) {
+                    hexOnly = false;
+                }
+            }
+        }
+        return digitsOnly || (hexOnly && segment.length() >= 16);
+    }
+}
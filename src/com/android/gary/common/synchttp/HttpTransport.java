@@ -0,0 +1,479 @@
+package com.android.gary.common.synchttp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.AuthState;
+import org.apache.http.auth.Credentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import android.os.SystemClock;
+
+/**
+ * Connection pool, interceptors and retry policy shared by
+ * {@link HttpClientUtil} and {@link com.android.gary.common.asynchttp.AsyncHttpClient}.
+ * <p/>
+ * Both front-ends use {@link #getDefault()} unless they are given a transport
+ * of their own, so connections and TLS sessions to the same host are reused no
+ * matter which API issued the request. Settings that differ between the
+ * front-ends (timeouts, headers, user agent) are applied to each request's
+ * params instead of the shared client.
+ */
+public class HttpTransport {
+
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String ENCODING_GZIP = "gzip";
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 10;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 10 * 1000;
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    public static final int DEFAULT_RETRY_SLEEP_TIME_MILLIS = 1500;
+    public static final int DEFAULT_RETRY_BASE_DELAY_MILLIS = 500;
+    public static final int DEFAULT_RETRY_MAX_DELAY_MILLIS = 30 * 1000;
+    public static final float DEFAULT_RETRY_RATIO = 0.2f;
+    public static final int DEFAULT_RETRY_BURST = 10;
+    public static final int DEFAULT_SOCKET_BUFFER_SIZE = 8192;
+
+    private static HttpTransport sDefault;
+
+    private final PooledConnectionManager connectionManager;
+    private final DefaultHttpClient httpClient;
+    private final HttpMetrics metrics = new HttpMetrics();
+    private final RetryBudget retryBudget = new RetryBudget(DEFAULT_RETRY_RATIO,
+            DEFAULT_RETRY_BURST);
+    private final ConcurrentHashMap<String, CircuitBreaker> circuitBreakers =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+    private volatile boolean circuitBreakerEnabled = true;
+    private volatile NetworkPolicy networkPolicy;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    public static synchronized HttpTransport getDefault() {
+        if (sDefault == null) {
+            sDefault = new HttpTransport();
+        }
+        return sDefault;
+    }
+
+    public HttpTransport() {
+        this(createSchemeRegistry(80, 443));
+    }
+
+    public HttpTransport(SchemeRegistry schemeRegistry) {
+        BasicHttpParams httpParams = new BasicHttpParams();
+
+        ConnManagerParams.setTimeout(httpParams, DEFAULT_SOCKET_TIMEOUT);
+        ConnManagerParams.setMaxTotalConnections(httpParams, maxConnections);
+
+        HttpConnectionParams.setSoTimeout(httpParams, DEFAULT_SOCKET_TIMEOUT);
+        HttpConnectionParams.setConnectionTimeout(httpParams, DEFAULT_SOCKET_TIMEOUT);
+        HttpConnectionParams.setTcpNoDelay(httpParams, true);
+        HttpConnectionParams.setSocketBufferSize(httpParams, DEFAULT_SOCKET_BUFFER_SIZE);
+
+        HttpProtocolParams.setVersion(httpParams, HttpVersion.HTTP_1_1);
+
+        connectionManager = new PooledConnectionManager(httpParams, schemeRegistry,
+                new ConnPerRouteBean(maxConnections));
+        IdleConnectionReaper.register(connectionManager);
+        connectionManager.setMetrics(metrics);
+        connectionManager.setDnsResolver(new CachingDnsResolver());
+
+        httpClient = new DefaultHttpClient(connectionManager, httpParams);
+        httpClient.setKeepAliveStrategy(new KeepAliveStrategy());
+        httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context) {
+                if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
+                    request.addHeader(HEADER_ACCEPT_ENCODING, ContentCodings.getAcceptEncoding());
+                }
+            }
+        });
+        httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context) {
+                RequestTimings timings = RequestTimings.get(context);
+                timings.requestSentAt = SystemClock.elapsedRealtime();
+                HttpConnection conn = (HttpConnection) context
+                        .getAttribute(ExecutionContext.HTTP_CONNECTION);
+                timings.sentBytesBefore = conn != null
+                        ? conn.getMetrics().getSentBytesCount() : -1;
+            }
+        });
+        // before the decoding interceptor, so compressed bytes are counted
+        httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context) {
+                RequestTimings timings = RequestTimings.get(context);
+                timings.ttfbMillis = SystemClock.elapsedRealtime() - timings.requestSentAt;
+                HttpConnection conn = (HttpConnection) context
+                        .getAttribute(ExecutionContext.HTTP_CONNECTION);
+                if (conn != null && timings.sentBytesBefore >= 0) {
+                    timings.bytesSent.addAndGet(conn.getMetrics().getSentBytesCount()
+                            - timings.sentBytesBefore);
+                }
+                HttpEntity entity = response.getEntity();
+                if (entity != null) {
+                    response.setEntity(new CountingEntity(entity, timings));
+                }
+            }
+        });
+        httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context) {
+                final HttpEntity entity = response.getEntity();
+                if (entity == null) {
+                    return;
+                }
+                final Header encoding = entity.getContentEncoding();
+                if (encoding == null) {
+                    return;
+                }
+                // codings are listed in the order they were applied
+                HeaderElement[] elements = encoding.getElements();
+                List<ContentDecoder> decoders = new ArrayList<ContentDecoder>(elements.length);
+                for (int i = elements.length - 1; i >= 0; i--) {
+                    String name = elements[i].getName();
+                    if ("identity".equalsIgnoreCase(name)) {
+                        continue;
+                    }
+                    ContentDecoder decoder = ContentCodings.getDecoder(name);
+                    if (decoder == null) {
+                        // leave bodies we cannot fully decode alone
+                        return;
+                    }
+                    decoders.add(decoder);
+                }
+                if (!decoders.isEmpty()) {
+                    response.setEntity(new DecodingEntity(entity, decoders));
+                }
+            }
+        });
+        httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context)
+                    throws HttpException, IOException {
+                AuthState authState = (AuthState) context
+                        .getAttribute("http.auth.target-scope");
+                CredentialsProvider credsProvider = (CredentialsProvider) context
+                        .getAttribute("http.auth.credentials-provider");
+                HttpHost targetHost = (HttpHost) context
+                        .getAttribute("http.target_host");
+
+                if (authState != null && credsProvider != null
+                        && authState.getAuthScheme() == null) {
+                    AuthScope authScope = new AuthScope(targetHost
+                            .getHostName(), targetHost.getPort());
+                    Credentials creds = credsProvider.getCredentials(authScope);
+                    if (creds != null) {
+                        authState.setAuthScheme(new BasicScheme());
+                        authState.setCredentials(creds);
+                    }
+                }
+            }
+        }, 0);
+
+        httpClient.setHttpRequestRetryHandler(new RetryHandler(DEFAULT_MAX_RETRIES,
+                new ExponentialBackoff(DEFAULT_RETRY_BASE_DELAY_MILLIS,
+                        DEFAULT_RETRY_MAX_DELAY_MILLIS), retryBudget));
+    }
+
+    public static SchemeRegistry createSchemeRegistry(int httpPort, int httpsPort) {
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), httpPort));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), httpsPort));
+        return schemeRegistry;
+    }
+
+    /**
+     * Applies per front-end timeouts to a single request's params, which
+     * take precedence over the shared client defaults.
+     */
+    public static void applyTimeouts(HttpParams requestParams,
+                                     int connectTimeout, int socketTimeout) {
+        ConnManagerParams.setTimeout(requestParams, connectTimeout);
+        HttpConnectionParams.setConnectionTimeout(requestParams, connectTimeout);
+        HttpConnectionParams.setSoTimeout(requestParams, socketTimeout);
+    }
+
+    /**
+     * Applies the {@link NetworkPolicy} to a request about to be sent: the
+     * longer of the front-end's and the network's timeouts, and the
+     * {@value NetworkPolicy#HEADER_SAVE_DATA} hint on slow networks. Without a
+     * policy only the front-end's timeouts are applied.
+     */
+    public void applyNetworkPolicy(HttpUriRequest request, int connectTimeout,
+                                   int socketTimeout) {
+        NetworkPolicy policy = networkPolicy;
+        if (policy == null) {
+            applyTimeouts(request.getParams(), connectTimeout, socketTimeout);
+            return;
+        }
+        NetworkPolicy.Profile profile = policy.getProfile();
+        applyTimeouts(request.getParams(), Math.max(connectTimeout, profile.connectTimeout),
+                Math.max(socketTimeout, profile.socketTimeout));
+        if (profile.saveData && !request.containsHeader(NetworkPolicy.HEADER_SAVE_DATA)) {
+            request.addHeader(NetworkPolicy.HEADER_SAVE_DATA, "on");
+        }
+    }
+
+    /**
+     * Releases what a finished request's body holds on to, such as upload
+     * streams. Temporary files of {@link RequestParams} stay for the next
+     * request built from them, see {@link RequestParams#release()}. Call it
+     * once no more retries will be made.
+     */
+    public static void releaseRequestEntity(HttpRequest request) {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return;
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (entity == null) {
+            return;
+        }
+        try {
+            entity.consumeContent();
+        } catch (IOException ignore) {
+            // nothing left to release
+        } catch (UnsupportedOperationException ignore) {
+            // streaming entity without resources of its own
+        }
+    }
+
+    public DefaultHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public PooledConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        ConnManagerParams.setMaxTotalConnections(httpClient.getParams(), maxConnections);
+        connectionManager.setDefaultMaxConnectionsPerRoute(maxConnections);
+    }
+
+    /**
+     * Limits the connections opened to a single host. Applies to hosts that
+     * have not been connected to yet.
+     */
+    public void setMaxConnectionsPerRoute(HttpHost target, int max) {
+        connectionManager.setMaxConnectionsPerRoute(target, max);
+    }
+
+    public PoolStats getPoolStats() {
+        return connectionManager.getPoolStats();
+    }
+
+    /**
+     * Replaces the resolver used for new connections, by default a
+     * {@link CachingDnsResolver} over the platform resolver.
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        connectionManager.setDnsResolver(dnsResolver);
+    }
+
+    public DnsResolver getDnsResolver() {
+        return connectionManager.getDnsResolver();
+    }
+
+    /**
+     * Resolves hosts ahead of their first request, if the resolver caches.
+     */
+    public void prefetchHosts(String... hosts) {
+        DnsResolver resolver = getDnsResolver();
+        if (resolver instanceof CachingDnsResolver) {
+            ((CachingDnsResolver) resolver).prefetch(hosts);
+        }
+    }
+
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Budget shared by every request sent through this transport. Front-ends
+     * call {@link RetryBudget#recordRequest()} once per new request that goes
+     * out to the network, not for answers from a cache.
+     */
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Replaces the retry policy, e.g. with a {@link DecorrelatedJitterBackoff}.
+     * Pass {@link #getRetryBudget()} to keep sharing the transport's budget.
+     */
+    public void setRetryHandler(RetryHandler retryHandler) {
+        httpClient.setHttpRequestRetryHandler(retryHandler);
+    }
+
+    /**
+     * @return the breaker of the request's host, or null if breakers are
+     * disabled or the URI has no host
+     */
+    public CircuitBreaker getCircuitBreaker(HttpRequest request) {
+        if (!circuitBreakerEnabled) {
+            return null;
+        }
+        URI uri = request instanceof HttpUriRequest ? ((HttpUriRequest) request).getURI()
+                : URI.create(request.getRequestLine().getUri());
+        if (uri.getHost() == null) {
+            return null;
+        }
+        String host = uri.getHost() + ":" + uri.getPort();
+        CircuitBreaker breaker = circuitBreakers.get(host);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(host);
+            breaker = circuitBreakers.putIfAbsent(host, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    public void setCircuitBreakerEnabled(boolean enabled) {
+        circuitBreakerEnabled = enabled;
+    }
+
+    /**
+     * Makes every client on this transport adapt its requests to the
+     * current network, or stops it when {@code policy} is null.
+     */
+    public void setNetworkPolicy(NetworkPolicy policy) {
+        networkPolicy = policy;
+    }
+
+    public NetworkPolicy getNetworkPolicy() {
+        return networkPolicy;
+    }
+
+    private static class CountingEntity extends HttpEntityWrapper {
+        private final RequestTimings timings;
+
+        CountingEntity(HttpEntity wrapped, RequestTimings timings) {
+            super(wrapped);
+            this.timings = timings;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(wrappedEntity.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        timings.bytesReceived.incrementAndGet();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int off, int len) throws IOException {
+                    int n = super.read(buffer, off, len);
+                    if (n > 0) {
+                        timings.bytesReceived.addAndGet(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            InputStream in = getContent();
+            try {
+                byte[] buffer = new byte[DEFAULT_SOCKET_BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    outstream.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static class DecodingEntity extends HttpEntityWrapper {
+        private final List<ContentDecoder> decoders;
+        private InputStream wrappedStream;
+        private InputStream decodedStream;
+
+        DecodingEntity(HttpEntity wrapped, List<ContentDecoder> decoders) {
+            super(wrapped);
+            this.decoders = decoders;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            wrappedStream = wrappedEntity.getContent();
+            InputStream stream = wrappedStream;
+            for (ContentDecoder decoder : decoders) {
+                stream = decoder.decode(stream);
+            }
+            decodedStream = stream;
+            return decodedStream;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public void consumeContent() throws IOException {
+            // closing the decoder hands its Inflater back to the pool
+            silentClose(decodedStream);
+            silentClose(wrappedStream);
+            super.consumeContent();
+        }
+
+        private static void silentClose(InputStream is) {
+            try {
+                if (is != null)
+                    is.close();
+            } catch (IOException ignore) {
+                // nothing left to release
+            }
+        }
+    }
+}
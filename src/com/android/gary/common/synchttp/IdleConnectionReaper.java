@@ -0,0 +1,101 @@
+package com.android.gary.common.synchttp;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionManager;
+
+import com.android.gary.common.utils.LogUtil;
+
+/**
+ * Background thread that periodically closes expired and idle pooled
+ * connections, so requests do not pick up sockets the server already closed.
+ * The thread starts with the first registered manager and stops once none are
+ * left.
+ */
+public class IdleConnectionReaper extends Thread {
+
+    private static final String TAG = "IdleConnectionReaper";
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+    private static final long REAP_INTERVAL_MILLIS = 5 * 1000;
+
+    private static final List<WeakReference<ClientConnectionManager>> managers = new ArrayList<WeakReference<ClientConnectionManager>>();
+    private static IdleConnectionReaper sInstance;
+    private static volatile long sIdleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    private IdleConnectionReaper() {
+        super(TAG);
+        setDaemon(true);
+    }
+
+    public static synchronized void register(ClientConnectionManager manager) {
+        managers.add(new WeakReference<ClientConnectionManager>(manager));
+        if (sInstance == null) {
+            sInstance = new IdleConnectionReaper();
+            sInstance.start();
+        }
+    }
+
+    public static synchronized void unregister(ClientConnectionManager manager) {
+        Iterator<WeakReference<ClientConnectionManager>> it = managers.iterator();
+        while (it.hasNext()) {
+            ClientConnectionManager cm = it.next().get();
+            if (cm == null || cm == manager) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Sets how long a connection may sit unused in the pool before it is
+     * closed.
+     */
+    public static void setIdleTimeout(long idleTimeoutMillis) {
+        sIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    private static synchronized List<ClientConnectionManager> liveManagers() {
+        List<ClientConnectionManager> live = new ArrayList<ClientConnectionManager>(managers.size());
+        Iterator<WeakReference<ClientConnectionManager>> it = managers.iterator();
+        while (it.hasNext()) {
+            ClientConnectionManager cm = it.next().get();
+            if (cm == null) {
+                it.remove();
+            } else {
+                live.add(cm);
+            }
+        }
+        if (live.isEmpty()) {
+            sInstance = null;
+        }
+        return live;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(REAP_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<ClientConnectionManager> live = liveManagers();
+            if (live.isEmpty()) {
+                return;
+            }
+            for (ClientConnectionManager cm : live) {
+                try {
+                    cm.closeExpiredConnections();
+                    cm.closeIdleConnections(sIdleTimeoutMillis,
+                            TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    LogUtil.w(TAG, "Failed to reap connections", e);
+                }
+            }
+        }
+    }
+}
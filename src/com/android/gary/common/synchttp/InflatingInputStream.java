@@ -0,0 +1,293 @@
+package com.android.gary.common.synchttp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decodes {@code gzip} and {@code deflate} bodies without allocating an
+ * {@link Inflater} and its buffers per response: both are taken from a per
+ * thread cache and handed back on {@link #close()}.
+ * <p/>
+ * A {@code gzip} body that does not start with the gzip magic is passed
+ * through unchanged, as some servers label plain bodies as gzip. A
+ * {@code deflate} body may be zlib wrapped, as the specification says, or
+ * raw, as many servers send it; the two are told apart by the zlib header.
+ * Only the first member of a multi-member gzip body is read.
+ */
+class InflatingInputStream extends InputStream {
+
+    static final int MODE_GZIP = 0;
+    static final int MODE_DEFLATE = 1;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final ThreadLocal<byte[]> sBuffers = new ThreadLocal<byte[]>();
+    private static final ThreadLocal<Inflater> sRawInflaters = new ThreadLocal<Inflater>();
+    private static final ThreadLocal<Inflater> sZlibInflaters = new ThreadLocal<Inflater>();
+
+    private final InputStream in;
+    private byte[] buf;
+    private int bufPos;
+    private int bufLen;
+    private Inflater inflater;
+    private boolean raw;
+    private CRC32 crc;
+    private boolean passthrough;
+    private boolean eof;
+    private boolean closed;
+    private byte[] single;
+
+    InflatingInputStream(InputStream in, int mode) throws IOException {
+        this.in = in;
+        buf = acquireBuffer();
+        if (!ensure(2)) {
+            // empty or one byte body, nothing to inflate
+            passthrough = true;
+            return;
+        }
+        int b0 = buf[0] & 0xff;
+        int b1 = buf[1] & 0xff;
+        if (mode == MODE_GZIP) {
+            if (b0 != GZIP_MAGIC_0 || b1 != GZIP_MAGIC_1) {
+                passthrough = true;
+                return;
+            }
+            readGzipHeader();
+            raw = true;
+            crc = new CRC32();
+        } else {
+            raw = !((b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0);
+        }
+        inflater = acquireInflater(raw);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (single == null) {
+            single = new byte[1];
+        }
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (passthrough) {
+            if (bufPos < bufLen) {
+                int n = Math.min(len, bufLen - bufPos);
+                System.arraycopy(buf, bufPos, b, off, n);
+                bufPos += n;
+                return n;
+            }
+            return in.read(b, off, len);
+        }
+        if (eof) {
+            return -1;
+        }
+        while (true) {
+            int n;
+            try {
+                n = inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+            if (n > 0) {
+                if (crc != null) {
+                    crc.update(b, off, n);
+                }
+                return n;
+            }
+            if (inflater.finished()) {
+                bufPos = bufLen - inflater.getRemaining();
+                if (crc != null) {
+                    readGzipTrailer();
+                }
+                eof = true;
+                return -1;
+            }
+            if (inflater.needsDictionary()) {
+                throw new ZipException("Preset dictionaries are not supported");
+            }
+            if (inflater.needsInput()) {
+                if (bufPos == bufLen) {
+                    bufPos = 0;
+                    bufLen = in.read(buf, 0, buf.length);
+                    if (bufLen == -1) {
+                        bufLen = 0;
+                        throw new EOFException("Unexpected end of compressed body");
+                    }
+                }
+                inflater.setInput(buf, bufPos, bufLen - bufPos);
+                bufPos = bufLen;
+            }
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (closed) {
+            return 0;
+        }
+        if (passthrough) {
+            return (bufLen - bufPos) + in.available();
+        }
+        return eof ? 0 : 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (inflater != null) {
+            releaseInflater(inflater, raw);
+            inflater = null;
+        }
+        releaseBuffer(buf);
+        buf = null;
+        in.close();
+    }
+
+    private void readGzipHeader() throws IOException {
+        if (!ensure(10)) {
+            throw new EOFException("Truncated gzip header");
+        }
+        if (buf[bufPos + 2] != 8) {
+            throw new ZipException("Unsupported gzip compression method " + buf[bufPos + 2]);
+        }
+        int flags = buf[bufPos + 3] & 0xff;
+        bufPos += 10;
+        if ((flags & FEXTRA) != 0) {
+            if (!ensure(2)) {
+                throw new EOFException("Truncated gzip header");
+            }
+            int extraLength = (buf[bufPos] & 0xff) | ((buf[bufPos + 1] & 0xff) << 8);
+            bufPos += 2;
+            skip(extraLength);
+        }
+        if ((flags & FNAME) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FHCRC) != 0) {
+            skip(2);
+        }
+    }
+
+    private void readGzipTrailer() throws IOException {
+        if (!ensure(8)) {
+            throw new EOFException("Truncated gzip trailer");
+        }
+        long expectedCrc = readInt(bufPos);
+        long expectedSize = readInt(bufPos + 4);
+        bufPos += 8;
+        if (expectedCrc != crc.getValue()) {
+            throw new ZipException("gzip CRC mismatch");
+        }
+        if (expectedSize != (inflater.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("gzip size mismatch");
+        }
+    }
+
+    private long readInt(int pos) {
+        return ((buf[pos] & 0xffL)) | ((buf[pos + 1] & 0xffL) << 8)
+                | ((buf[pos + 2] & 0xffL) << 16) | ((buf[pos + 3] & 0xffL) << 24);
+    }
+
+    /**
+     * Makes sure {@code count} unread bytes are in the buffer.
+     *
+     * @return false if the stream ended first
+     */
+    private boolean ensure(int count) throws IOException {
+        if (bufPos > 0 && bufLen - bufPos < count) {
+            System.arraycopy(buf, bufPos, buf, 0, bufLen - bufPos);
+            bufLen -= bufPos;
+            bufPos = 0;
+        }
+        while (bufLen - bufPos < count) {
+            int n = in.read(buf, bufLen, buf.length - bufLen);
+            if (n == -1) {
+                return false;
+            }
+            bufLen += n;
+        }
+        return true;
+    }
+
+    private void skip(int count) throws IOException {
+        while (count > 0) {
+            if (bufPos == bufLen && !ensure(1)) {
+                throw new EOFException("Truncated gzip header");
+            }
+            int n = Math.min(count, bufLen - bufPos);
+            bufPos += n;
+            count -= n;
+        }
+    }
+
+    private void skipZeroTerminated() throws IOException {
+        while (true) {
+            if (bufPos == bufLen && !ensure(1)) {
+                throw new EOFException("Truncated gzip header");
+            }
+            if (buf[bufPos++] == 0) {
+                return;
+            }
+        }
+    }
+
+    private static byte[] acquireBuffer() {
+        byte[] buffer = sBuffers.get();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        sBuffers.set(null);
+        return buffer;
+    }
+
+    private static void releaseBuffer(byte[] buffer) {
+        if (sBuffers.get() == null) {
+            sBuffers.set(buffer);
+        }
+    }
+
+    private static Inflater acquireInflater(boolean raw) {
+        ThreadLocal<Inflater> cache = raw ? sRawInflaters : sZlibInflaters;
+        Inflater inflater = cache.get();
+        if (inflater == null) {
+            return new Inflater(raw);
+        }
+        cache.set(null);
+        return inflater;
+    }
+
+    private static void releaseInflater(Inflater inflater, boolean raw) {
+        ThreadLocal<Inflater> cache = raw ? sRawInflaters : sZlibInflaters;
+        if (cache.get() == null) {
+            inflater.reset();
+            cache.set(inflater);
+        } else {
+            inflater.end();
+        }
+    }
+}
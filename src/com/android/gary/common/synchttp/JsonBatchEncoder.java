@@ -0,0 +1,82 @@
+package com.android.gary.common.synchttp;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sends a batch as
+ * <pre>
+ * {"requests": [{"id": 0, "url": "http://api.example.com/sync/steps",
+ *              "params": {"day": "1", ...}}, ...]}
+ * </pre>
+ * and expects the answers as
+ * <pre>
+ * {"responses": [{"id": 0, "status": 200, "body": ...}, ...]}
+ * </pre>
+ * where {@code id} is the call's position in the batch and {@code body} is
+ * a string or any JSON value, handed to the call as text. A parameter with
+ * several values is sent as an array.
+ */
+public class JsonBatchEncoder implements BatchEncoder {
+
+    public static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+
+    public HttpEntity encode(List<BatchCall> calls) throws IOException {
+        JSONArray requests = new JSONArray();
+        try {
+            for (int i = 0; i < calls.size(); i++) {
+                BatchCall call = calls.get(i);
+                JSONObject request = new JSONObject();
+                request.put("id", i);
+                request.put("url", call.getUrl());
+                JSONObject params = new JSONObject();
+                if (call.getParams() != null) {
+                    for (BasicNameValuePair pair : call.getParams().getParamsList()) {
+                        params.accumulate(pair.getName(), pair.getValue());
+                    }
+                }
+                request.put("params", params);
+                requests.put(request);
+            }
+            return new StringEntity(new JSONObject().put("requests", requests).toString(), "UTF-8");
+        } catch (JSONException e) {
+            IOException ioe = new IOException("Cannot encode batch");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    public void decode(ResponseCallback response, List<BatchCall> calls) throws ConnectException {
+        if (response.responseBody == null) {
+            throw new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
+                    ConnectException.ERROR_CODE_JSON_ERROR);
+        }
+        try {
+            JSONArray responses = new JSONObject(response.responseBody).getJSONArray("responses");
+            for (int i = 0; i < responses.length(); i++) {
+                JSONObject part = responses.getJSONObject(i);
+                int id = part.optInt("id", i);
+                if (id < 0 || id >= calls.size()) {
+                    continue;
+                }
+                Object body = part.opt("body");
+                calls.get(id).complete(part.getInt("status"),
+                        body == null || body == JSONObject.NULL ? null : body.toString());
+            }
+        } catch (JSONException e) {
+            throw new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
+                    ConnectException.ERROR_CODE_JSON_ERROR);
+        }
+    }
+}
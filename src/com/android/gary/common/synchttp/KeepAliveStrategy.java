@@ -0,0 +1,47 @@
+package com.android.gary.common.synchttp;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Honours the {@code timeout} parameter of the {@code Keep-Alive} response
+ * header and never keeps a connection longer than {@code maxKeepAliveMillis},
+ * so pooled sockets expire before the server silently drops them.
+ */
+public class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+    public static final long DEFAULT_MAX_KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    private final long maxKeepAliveMillis;
+
+    public KeepAliveStrategy() {
+        this(DEFAULT_MAX_KEEP_ALIVE_MILLIS);
+    }
+
+    public KeepAliveStrategy(long maxKeepAliveMillis) {
+        this.maxKeepAliveMillis = maxKeepAliveMillis;
+    }
+
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        HeaderElementIterator it = new BasicHeaderElementIterator(
+                response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+        while (it.hasNext()) {
+            HeaderElement element = it.nextElement();
+            String value = element.getValue();
+            if (value != null && "timeout".equalsIgnoreCase(element.getName())) {
+                try {
+                    long millis = Long.parseLong(value.trim()) * 1000;
+                    return Math.min(millis, maxKeepAliveMillis);
+                } catch (NumberFormatException ignore) {
+                    // fall through to the default
+                }
+            }
+        }
+        return maxKeepAliveMillis;
+    }
+}
@@ -0,0 +1,141 @@
+package com.android.gary.common.synchttp;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.content.Context;
+
+import com.android.gary.common.utils.ConnectivityMonitor;
+import com.android.gary.common.utils.LogUtil;
+import com.android.gary.common.utils.NetworkUtils;
+
+/**
+ * Adapts requests to the network the device is on. Installed with
+ * {@link HttpTransport#setNetworkPolicy(NetworkPolicy)}, it is consulted by
+ * the HTTP clients for every request: timeouts, the number of requests run
+ * at once, whether prefetch requests are sent and whether a
+ * {@value #HEADER_SAVE_DATA} hint asks the server for smaller responses come
+ * from the {@link Profile} of the current network type. Image loaders and
+ * the like can ask {@link #getQuality()}.
+ * <p/>
+ * The network type is cached and updated when connectivity changes, so
+ * consulting the policy costs a field read.
+ */
+public class NetworkPolicy {
+
+    private static final String TAG = "NetworkPolicy";
+
+    public static final String HEADER_SAVE_DATA = "Save-Data";
+
+    public static final int QUALITY_LOW = 0;
+    public static final int QUALITY_MEDIUM = 1;
+    public static final int QUALITY_HIGH = 2;
+
+    /**
+     * What requests may cost on one type of network.
+     */
+    public static class Profile {
+        public final int maxConcurrentRequests;
+        public final int connectTimeout;
+        public final int socketTimeout;
+        public final boolean prefetchAllowed;
+        public final boolean saveData;
+        public final int quality;
+
+        /**
+         * @param maxConcurrentRequests requests run at once by
+         *                              {@link com.android.gary.common.asynchttp.AsyncHttpClient},
+         *                              never more than its pool allows
+         * @param prefetchAllowed       whether requests of prefetch priority are sent
+         * @param saveData              whether to send {@code Save-Data: on}
+         * @param quality               one of the {@code QUALITY_} constants
+         */
+        public Profile(int maxConcurrentRequests, int connectTimeout, int socketTimeout,
+                       boolean prefetchAllowed, boolean saveData, int quality) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            this.connectTimeout = connectTimeout;
+            this.socketTimeout = socketTimeout;
+            this.prefetchAllowed = prefetchAllowed;
+            this.saveData = saveData;
+            this.quality = quality;
+        }
+    }
+
+    public static final Profile WIFI = new Profile(10, 10 * 1000, 10 * 1000, true, false,
+            QUALITY_HIGH);
+    public static final Profile FAST_MOBILE = new Profile(6, 15 * 1000, 20 * 1000, true, false,
+            QUALITY_MEDIUM);
+    public static final Profile SLOW_MOBILE = new Profile(2, 30 * 1000, 40 * 1000, false, true,
+            QUALITY_LOW);
+
+    private final ConnectivityMonitor monitor;
+    private final ConcurrentHashMap<String, Profile> profiles =
+            new ConcurrentHashMap<String, Profile>();
+    private volatile Profile current;
+
+    private final ConnectivityMonitor.Listener connectivityListener = new ConnectivityMonitor.Listener() {
+        public void onConnectivityChanged(boolean connected) {
+            update();
+        }
+    };
+
+    /**
+     * Starts following connectivity changes until {@link #release()}.
+     */
+    public NetworkPolicy(Context context) {
+        profiles.put(NetworkUtils.NETWORK_TYPE_WIFI, WIFI);
+        profiles.put(NetworkUtils.NETWORK_TYPE_3G, FAST_MOBILE);
+        profiles.put(NetworkUtils.NETWORK_TYPE_2G, SLOW_MOBILE);
+        profiles.put(NetworkUtils.NETWORK_TYPE_WAP, SLOW_MOBILE);
+        profiles.put(NetworkUtils.NETWORK_TYPE_UNKNOWN, FAST_MOBILE);
+        profiles.put(NetworkUtils.NETWORK_TYPE_DISCONNECT, FAST_MOBILE);
+        monitor = ConnectivityMonitor.getInstance(context);
+        monitor.addListener(connectivityListener);
+        update();
+    }
+
+    /**
+     * Replaces the profile of a network type.
+     *
+     * @param networkTypeName one of the {@link NetworkUtils}
+     *                        {@code NETWORK_TYPE_} names
+     */
+    public void setProfile(String networkTypeName, Profile profile) {
+        profiles.put(networkTypeName, profile);
+        update();
+    }
+
+    public Profile getProfile() {
+        return current;
+    }
+
+    public boolean isPrefetchAllowed() {
+        return current.prefetchAllowed;
+    }
+
+    /**
+     * @return one of the {@code QUALITY_} constants
+     */
+    public int getQuality() {
+        return current.quality;
+    }
+
+    /**
+     * Stops following connectivity changes. The current profile stays.
+     */
+    public void release() {
+        monitor.removeListener(connectivityListener);
+    }
+
+    private void update() {
+        String typeName = monitor.getNetworkTypeName();
+        Profile profile = profiles.get(typeName);
+        if (profile == null) {
+            profile = profiles.get(NetworkUtils.NETWORK_TYPE_UNKNOWN);
+        }
+        if (profile != current) {
+            LogUtil.d(TAG, "network " + typeName + ", max " + profile.maxConcurrentRequests
+                    + " requests, quality " + profile.quality);
+            current = profile;
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package com.android.gary.common.synchttp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpPost;
+
+import android.content.Context;
+
+import com.android.gary.common.utils.ConnectivityMonitor;
+import com.android.gary.common.utils.LogUtil;
+
+/**
+ * Keeps POSTs that have to reach the server eventually, e.g. watch sync
+ * records, and sends them whenever the device is online:
+ * <pre>
+ * OfflineRequestQueue queue = new OfflineRequestQueue(context,
+ *         new File(context.getFilesDir(), "sync.journal"), HttpClientUtil.getInstence());
+ * queue.enqueue(SYNC_URL, params);
+ * </pre>
+ * Requests are written to an append-only journal before
+ * {@link #enqueue(String, RequestParams)} returns, so they survive the
+ * process being killed, and are sent in the order they were queued, in
+ * batches, on a thread of the queue. Sending stops at the first failure and
+ * resumes after a backoff or when connectivity comes back. Any 2xx answer
+ * counts as sent. Requests the server rejects (4xx) are dropped, they would
+ * fail again, except 401, 408 and 429, which are retried like network
+ * errors since an expired token or throttling passes.
+ * <p/>
+ * Every request carries an {@value #HEADER_IDEMPOTENCY_KEY} header that stays
+ * the same across replays, so the server can ignore a request it already
+ * handled, e.g. when the process died before the answer was recorded.
+ * <p/>
+ * Only string parameters are kept, files cannot be queued.
+ */
+public class OfflineRequestQueue {
+
+    private static final String TAG = "OfflineRequestQueue";
+
+    public static final String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
+    public static final int DEFAULT_BATCH_SIZE = 20;
+
+    private static final String RECORD_ADD = "A";
+    private static final String RECORD_DONE = "D";
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * The journal is rewritten once it holds this many finished requests
+     * and more finished than pending ones.
+     */
+    private static final int COMPACT_THRESHOLD = 64;
+
+    public interface Listener {
+
+        void onSent(String idempotencyKey, ResponseCallback response);
+
+        /**
+         * The server rejected the request, it was removed from the queue.
+         */
+        void onDropped(String idempotencyKey, ConnectException e);
+    }
+
+    private final HttpClientUtil client;
+    private final File journal;
+    private final ConnectivityMonitor monitor;
+    private final ScheduledThreadPoolExecutor worker;
+    private final LinkedHashMap<String, Entry> pending = new LinkedHashMap<String, Entry>();
+    private OutputStream out;
+    private int doneRecords;
+    private BackoffPolicy backoff = new ExponentialBackoff(5000, 10 * 60 * 1000);
+    private int failures;
+    private long lastDelay;
+    private ScheduledFuture<?> retry;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile Listener listener;
+
+    private final ConnectivityMonitor.Listener connectivityListener = new ConnectivityMonitor.Listener() {
+        public void onConnectivityChanged(boolean connected) {
+            if (connected) {
+                synchronized (OfflineRequestQueue.this) {
+                    failures = 0;
+                    lastDelay = 0;
+                }
+                drain();
+            }
+        }
+    };
+
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            drainNow();
+        }
+    };
+
+    /**
+     * Opens the journal, creating it if needed, and starts sending what it
+     * holds if the device is online.
+     */
+    public OfflineRequestQueue(Context context, File journal, HttpClientUtil client)
+            throws IOException {
+        this.client = client;
+        this.journal = journal;
+        this.monitor = ConnectivityMonitor.getInstance(context);
+        worker = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Offline queue");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        synchronized (this) {
+            load();
+            // also drops a record torn by a crash, so appends start on a fresh line
+            compact();
+        }
+        monitor.addListener(connectivityListener);
+        if (!pending.isEmpty()) {
+            drain();
+        }
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets how long sending waits after a failure while the device stays
+     * online.
+     */
+    public synchronized void setBackoffPolicy(BackoffPolicy backoff) {
+        this.backoff = backoff;
+    }
+
+    /**
+     * Sets how many requests are sent before the queue looks for new ones
+     * again.
+     */
+    public synchronized void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Queues a POST with a new idempotency key. Writes to the journal, so
+     * better not called on the main thread.
+     *
+     * @return the idempotency key
+     * @throws IOException if the request could not be written to the journal
+     *                     and was not queued
+     */
+    public String enqueue(String url, RequestParams params) throws IOException {
+        String key = UUID.randomUUID().toString();
+        enqueue(url, params, key);
+        return key;
+    }
+
+    /**
+     * Queues a POST with an idempotency key of the caller's, e.g. derived from
+     * the record being synced.
+     *
+     * @return false if a request with that key is queued already
+     * @throws IOException if the request could not be written to the journal
+     *                     and was not queued
+     */
+    public boolean enqueue(String url, RequestParams params, String idempotencyKey)
+            throws IOException {
+        if (params == null) {
+            params = new RequestParams();
+        } else if (!params.fileParams.isEmpty()) {
+            throw new IllegalArgumentException("Files cannot be queued");
+        }
+        Entry entry = new Entry(idempotencyKey, url, params.getParamString());
+        synchronized (this) {
+            if (pending.containsKey(idempotencyKey)) {
+                return false;
+            }
+            write(RECORD_ADD + '\t' + UrlBuilder.encode(entry.key) + '\t'
+                    + UrlBuilder.encode(entry.url) + '\t' + entry.params + '\n', true);
+            pending.put(entry.key, entry);
+        }
+        synchronized (this) {
+            if (retry != null) {
+                // sent with the others when the backoff ends
+                return true;
+            }
+        }
+        if (monitor.isConnected()) {
+            worker.execute(drainTask);
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Starts sending now instead of waiting for a backoff to end.
+     */
+    public void drain() {
+        synchronized (this) {
+            if (retry != null) {
+                retry.cancel(false);
+                retry = null;
+            }
+        }
+        worker.execute(drainTask);
+    }
+
+    /**
+     * Stops sending and closes the journal. What is queued is sent by the
+     * next queue opened on the journal.
+     */
+    public void close() {
+        monitor.removeListener(connectivityListener);
+        worker.shutdownNow();
+        synchronized (this) {
+            closeJournal();
+        }
+    }
+
+    private void drainNow() {
+        synchronized (this) {
+            retry = null;
+        }
+        while (monitor.isConnected()) {
+            List<Entry> batch;
+            synchronized (this) {
+                if (out == null) {
+                    return;
+                }
+                batch = new ArrayList<Entry>(Math.min(batchSize, pending.size()));
+                Iterator<Entry> it = pending.values().iterator();
+                while (it.hasNext() && batch.size() < batchSize) {
+                    batch.add(it.next());
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (Entry entry : batch) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                ResponseCallback response;
+                try {
+                    response = send(entry);
+                } catch (ConnectException e) {
+                    if (isRejected(e)) {
+                        LogUtil.w(TAG, "dropping rejected request " + entry.key);
+                        finish(entry);
+                        Listener l = listener;
+                        if (l != null) {
+                            l.onDropped(entry.key, e);
+                        }
+                        continue;
+                    }
+                    // keep the order: nothing after a failed request goes out
+                    scheduleRetry(e);
+                    return;
+                }
+                finish(entry);
+                synchronized (this) {
+                    failures = 0;
+                    lastDelay = 0;
+                }
+                Listener l = listener;
+                if (l != null) {
+                    l.onSent(entry.key, response);
+                }
+            }
+        }
+    }
+
+    private ResponseCallback send(Entry entry) throws ConnectException {
+        HttpPost request = new HttpPost(entry.url);
+        request.addHeader(HEADER_IDEMPOTENCY_KEY, entry.key);
+        request.setEntity(parseParams(entry.params).getEntity());
+        return client.execute(request);
+    }
+
+    /**
+     * @return true if the server refused the request for good
+     */
+    private static boolean isRejected(ConnectException e) {
+        if (e.getErrorCode() != ConnectException.ERROR_CODE_404) {
+            return false;
+        }
+        ResponseCallback response = e.getResponseCallback();
+        int status = response == null || response.stateCode == null ? 0 : response.stateCode;
+        return status != 401 && status != 408 && status != 429;
+    }
+
+    private synchronized void scheduleRetry(ConnectException e) {
+        if (worker.isShutdown()) {
+            return;
+        }
+        failures++;
+        lastDelay = backoff.getDelayMillis(failures, lastDelay);
+        LogUtil.w(TAG, "send failed with " + e.getErrorCode() + ", " + pending.size()
+                + " queued, retrying in " + lastDelay + " ms");
+        retry = worker.schedule(drainTask, lastDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void finish(Entry entry) {
+        if (pending.remove(entry.key) == null || out == null) {
+            return;
+        }
+        try {
+            // not synced: a lost record only means one more replay, which
+            // the idempotency key makes harmless
+            write(RECORD_DONE + '\t' + UrlBuilder.encode(entry.key) + '\n', false);
+            doneRecords++;
+            if (doneRecords >= COMPACT_THRESHOLD && doneRecords > pending.size()) {
+                compact();
+            }
+        } catch (IOException e) {
+            LogUtil.e(TAG, "cannot update journal: " + e);
+        }
+    }
+
+    private void write(String record, boolean sync) throws IOException {
+        if (out == null) {
+            throw new IOException("Queue is closed");
+        }
+        out.write(record.getBytes(CHARSET));
+        out.flush();
+        if (sync) {
+            ((FileOutputStream) out).getFD().sync();
+        }
+    }
+
+    private void load() throws IOException {
+        if (!journal.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journal), CHARSET));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!readRecord(line)) {
+                    LogUtil.w(TAG, "skipping damaged journal record");
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return false if the record is damaged, e.g. torn by a crash
+     */
+    private boolean readRecord(String line) throws IOException {
+        String[] fields = line.split("\t", -1);
+        try {
+            if (RECORD_ADD.equals(fields[0]) && fields.length == 4) {
+                String key = URLDecoder.decode(fields[1], CHARSET);
+                if (!pending.containsKey(key)) {
+                    pending.put(key, new Entry(key, URLDecoder.decode(fields[2], CHARSET),
+                            fields[3]));
+                }
+                return true;
+            }
+            if (RECORD_DONE.equals(fields[0]) && fields.length == 2) {
+                pending.remove(URLDecoder.decode(fields[1], CHARSET));
+                return true;
+            }
+        } catch (IllegalArgumentException e) {
+            // bad escape
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites the journal with the pending requests only, through a
+     * temporary file so a crash leaves either the old or the new journal.
+     */
+    private void compact() throws IOException {
+        closeJournal();
+        File temp = new File(journal.getPath() + ".tmp");
+        FileOutputStream tempOut = new FileOutputStream(temp);
+        try {
+            StringBuilder records = new StringBuilder();
+            for (Entry entry : pending.values()) {
+                records.append(RECORD_ADD).append('\t');
+                UrlBuilder.appendEncoded(records, entry.key);
+                records.append('\t');
+                UrlBuilder.appendEncoded(records, entry.url);
+                records.append('\t').append(entry.params).append('\n');
+            }
+            tempOut.write(records.toString().getBytes(CHARSET));
+            tempOut.getFD().sync();
+        } finally {
+            tempOut.close();
+        }
+        if (!temp.renameTo(journal)) {
+            throw new IOException("Cannot replace " + journal);
+        }
+        out = new FileOutputStream(journal, true);
+        doneRecords = 0;
+    }
+
+    private void closeJournal() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LogUtil.w(TAG, "cannot close journal: " + e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Rebuilds parameters from {@link RequestParams#getParamString()}; a name
+     * that appears more than once becomes a list again.
+     */
+    private static RequestParams parseParams(String paramString) {
+        Map<String, ArrayList<String>> values = new LinkedHashMap<String, ArrayList<String>>();
+        if (paramString.length() > 0) {
+            try {
+                for (String pair : paramString.split("&")) {
+                    int eq = pair.indexOf('=');
+                    String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), CHARSET);
+                    String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), CHARSET);
+                    ArrayList<String> list = values.get(name);
+                    if (list == null) {
+                        list = new ArrayList<String>(1);
+                        values.put(name, list);
+                    }
+                    list.add(value);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        RequestParams params = new RequestParams();
+        for (Map.Entry<String, ArrayList<String>> entry : values.entrySet()) {
+            if (entry.getValue().size() == 1) {
+                params.put(entry.getKey(), entry.getValue().get(0));
+            } else {
+                params.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return params;
+    }
+
+    private static class Entry {
+        final String key;
+        final String url;
+        /** percent-encoded, as in the journal */
+        final String params;
+
+        Entry(String key, String url, String params) {
+            this.key = key;
+            this.url = url;
+            this.params = params;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.android.gary.common.synchttp;
+
+/**
+ * Snapshot of a {@link PooledConnectionManager}.
+ */
+public class PoolStats {
+
+    private final int leased;
+    private final int available;
+    private final int pending;
+
+    public PoolStats(int leased, int available, int pending) {
+        this.leased = leased;
+        this.available = available;
+        this.pending = pending;
+    }
+
+    /**
+     * @return connections currently handed out to requests
+     */
+    public int getLeased() {
+        return leased;
+    }
+
+    /**
+     * @return open connections idling in the pool
+     */
+    public int getAvailable() {
+        return available;
+    }
+
+    /**
+     * @return requests waiting for a connection
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    @Override
+    public String toString() {
+        return "[leased: " + leased + "; available: " + available
+                + "; pending: " + pending + "]";
+    }
+}
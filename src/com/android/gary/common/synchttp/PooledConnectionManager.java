@@ -0,0 +1,139 @@
+package com.android.gary.common.synchttp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+
+import android.os.SystemClock;
+
+/**
+ * {@link ThreadSafeClientConnManager} with configurable per-route limits and
+ * lease bookkeeping for {@link PoolStats}.
+ */
+public class PooledConnectionManager extends ThreadSafeClientConnManager {
+
+    private final ConnPerRouteBean routeLimits;
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile HttpMetrics metrics;
+
+    public PooledConnectionManager(HttpParams params,
+                                   SchemeRegistry schemeRegistry, ConnPerRouteBean routeLimits) {
+        super(applyRouteLimits(params, routeLimits), schemeRegistry);
+        this.routeLimits = routeLimits;
+    }
+
+    private static HttpParams applyRouteLimits(HttpParams params,
+                                               ConnPerRouteBean routeLimits) {
+        ConnManagerParams.setMaxConnectionsPerRoute(params, routeLimits);
+        return params;
+    }
+
+    /**
+     * Limits the number of connections to one host. The pool reads the limit
+     * when it first opens a connection to that route, so configure hosts
+     * before using them.
+     */
+    public void setMaxConnectionsPerRoute(HttpHost target, int max) {
+        // keyed like the route planner builds routes: secure over a layered
+        // scheme, with the port as the request URI carries it
+        Scheme scheme = getSchemeRegistry().getScheme(target.getSchemeName());
+        routeLimits.setMaxForRoute(new HttpRoute(target, null, scheme.isLayered()), max);
+        int port = target.getPort();
+        if (port < 0 || port == scheme.getDefaultPort()) {
+            HttpHost other = new HttpHost(target.getHostName(),
+                    port < 0 ? scheme.getDefaultPort() : -1, target.getSchemeName());
+            routeLimits.setMaxForRoute(new HttpRoute(other, null, scheme.isLayered()), max);
+        }
+    }
+
+    public void setDefaultMaxConnectionsPerRoute(int max) {
+        routeLimits.setDefaultMaxPerRoute(max);
+    }
+
+    /**
+     * @param metrics receives the time requests wait for a connection
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param dnsResolver resolves host names for new connections
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        ((TransportConnectionOperator) connOperator).setDnsResolver(dnsResolver);
+    }
+
+    public DnsResolver getDnsResolver() {
+        return ((TransportConnectionOperator) connOperator).getDnsResolver();
+    }
+
+    /**
+     * Called from the super constructor, must not rely on fields.
+     */
+    @Override
+    protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schreg) {
+        return new TransportConnectionOperator(schreg);
+    }
+
+    public PoolStats getPoolStats() {
+        int leasedNow = leased.get();
+        int available = Math.max(0, getConnectionsInPool() - leasedNow);
+        return new PoolStats(leasedNow, available, pending.get());
+    }
+
+    @Override
+    public ClientConnectionRequest requestConnection(final HttpRoute route,
+                                                     Object state) {
+        final ClientConnectionRequest request = super.requestConnection(route,
+                state);
+        return new ClientConnectionRequest() {
+            public ManagedClientConnection getConnection(long timeout,
+                                                         TimeUnit tunit) throws InterruptedException,
+                    ConnectionPoolTimeoutException {
+                pending.incrementAndGet();
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    ManagedClientConnection conn = request.getConnection(
+                            timeout, tunit);
+                    leased.incrementAndGet();
+                    HttpMetrics m = metrics;
+                    if (m != null) {
+                        m.recordPoolWait(route.getTargetHost().getHostName(),
+                                SystemClock.elapsedRealtime() - start);
+                    }
+                    return conn;
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+
+            public void abortRequest() {
+                request.abortRequest();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(ManagedClientConnection conn,
+                                  long validDuration, TimeUnit timeUnit) {
+        try {
+            super.releaseConnection(conn, validDuration, timeUnit);
+        } finally {
+            leased.decrementAndGet();
+        }
+    }
+}
@@ -2,9 +2,11 @@ package com.android.gary.common.synchttp;
 
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -14,15 +16,21 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.message.BasicNameValuePair;
 
+import com.android.gary.common.utils.LogUtil;
+
 public class RequestParams {
+    private static final String TAG = "RequestParams";
     private static String ENCODING = "UTF-8";
+    private static final int SPILL_BUFFER_SIZE = 8192;
+
+    private static File sSpillDirectory;
 
     protected ConcurrentHashMap<String, String> urlParams;
     protected ConcurrentHashMap<String, FileWrapper> fileParams;
     protected ConcurrentHashMap<String, ArrayList<String>> urlParamsWithArray;
+    private boolean repeatable;
 
     /**
      * Constructs a new empty <code>RequestParams</code> instance.
@@ -97,7 +105,38 @@ public class RequestParams {
      * @param file the file to add.
      */
     public void put(String key, File file) throws FileNotFoundException {
-        put(key, new FileInputStream(file), file.getName());
+        put(key, file, null);
+    }
+
+    /**
+     * Adds a file to the request. The file is streamed from disk when the
+     * request is sent, with its size known up front.
+     *
+     * @param key         the key name for the new param.
+     * @param file        the file to add.
+     * @param contentType the content type of the file, eg. image/jpeg
+     */
+    public void put(String key, File file, String contentType) throws FileNotFoundException {
+        if (file == null || !file.exists()) {
+            throw new FileNotFoundException(String.valueOf(file));
+        }
+        if (key != null) {
+            fileParams.put(key, new FileWrapper(file, file.getName(), contentType));
+        }
+    }
+
+    /**
+     * Adds in-memory data to the request as a file part.
+     *
+     * @param key         the key name for the new param.
+     * @param data        the content of the file.
+     * @param fileName    the name of the file.
+     * @param contentType the content type of the file, eg. application/json
+     */
+    public void put(String key, byte[] data, String fileName, String contentType) {
+        if (key != null && data != null) {
+            fileParams.put(key, new FileWrapper(data, fileName, contentType));
+        }
     }
 
     /**
@@ -197,7 +236,51 @@ public class RequestParams {
     }
 
     /**
-     * Returns an HttpEntity containing all request parameters
+     * Sets whether {@link #getEntity()} must return an entity that can be
+     * written more than once, so a failed request can be retried without
+     * rebuilding it. Input streams are then copied to a temporary file the
+     * first time the entity is built, and every later entity reads that file;
+     * call {@link #release()} once the params are no longer sent. Default is
+     * false: streams are sent once and a failed upload cannot be retried.
+     */
+    public void setRepeatable(boolean repeatable) {
+        this.repeatable = repeatable;
+    }
+
+    public boolean isRepeatable() {
+        return repeatable;
+    }
+
+    /**
+     * Sets where input streams are spilled when building repeatable
+     * entities, e.g. {@code context.getCacheDir()}. Defaults to the system
+     * temp directory.
+     */
+    public static void setSpillDirectory(File directory) {
+        sSpillDirectory = directory;
+    }
+
+    /**
+     * Deletes the temporary files input streams were copied to. Call it once
+     * the params will not be sent again; stream params are gone afterwards.
+     */
+    public void release() {
+        for (ConcurrentHashMap.Entry<String, FileWrapper> entry : fileParams.entrySet()) {
+            FileWrapper file = entry.getValue();
+            synchronized (file) {
+                if (file.temporary) {
+                    file.file.delete();
+                    fileParams.remove(entry.getKey(), file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns an HttpEntity containing all request parameters. With
+     * {@link #setRepeatable(boolean)} on the entity is repeatable, and can be
+     * built again for the next request; temporary files stay until
+     * {@link #release()}.
      */
     public HttpEntity getEntity() {
         HttpEntity entity = null;
@@ -223,8 +306,22 @@ public class RequestParams {
             int lastIndex = fileParams.entrySet().size() - 1;
             for (ConcurrentHashMap.Entry<String, FileWrapper> entry : fileParams.entrySet()) {
                 FileWrapper file = entry.getValue();
-                if (file.inputStream != null) {
-                    boolean isLast = currentIndex == lastIndex;
+                boolean isLast = currentIndex == lastIndex;
+                if (repeatable) {
+                    synchronized (file) {
+                        if (file.inputStream != null) {
+                            spillToDisk(file);
+                        }
+                    }
+                }
+                String contentType = file.contentType != null ? file.contentType : "application/octet-stream";
+                if (file.file != null) {
+                    // a spilled file belongs to the params, not to this entity
+                    multipartEntity.addPart(entry.getKey(), file.file, file.getFileName(),
+                            contentType, isLast);
+                } else if (file.data != null) {
+                    multipartEntity.addPart(entry.getKey(), file.getFileName(), file.data, contentType);
+                } else if (file.inputStream != null) {
                     if (file.contentType != null) {
                         multipartEntity.addPart(entry.getKey(), file.getFileName(), file.inputStream, file.contentType, isLast);
                     } else {
@@ -246,6 +343,45 @@ public class RequestParams {
         return entity;
     }
 
+    /**
+     * Copies a stream param into a temporary file so the part can be written
+     * again on retry. On failure the stream is left in place and is sent
+     * once.
+     */
+    private static void spillToDisk(FileWrapper file) {
+        File tmp = null;
+        OutputStream out = null;
+        try {
+            tmp = File.createTempFile("upload", ".part", sSpillDirectory);
+            tmp.deleteOnExit();
+            out = new FileOutputStream(tmp);
+            byte[] buffer = new byte[SPILL_BUFFER_SIZE];
+            int l;
+            while ((l = file.inputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, l);
+            }
+            out.close();
+            out = null;
+            file.inputStream.close();
+            file.inputStream = null;
+            file.file = tmp;
+            file.temporary = true;
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Cannot spill upload stream to disk, sending it unrepeatable", e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                    // already failing
+                }
+            }
+        }
+    }
+
     private void init() {
         urlParams = new ConcurrentHashMap<String, String>();
         fileParams = new ConcurrentHashMap<String, FileWrapper>();
@@ -269,11 +405,35 @@ public class RequestParams {
         return lparams;
     }
 
-    protected String getParamString() {
-        return URLEncodedUtils.format(getParamsList(), ENCODING);
+    /**
+     * @return the string parameters, percent-encoded for a query string
+     */
+    public String getParamString() {
+        StringBuilder result = new StringBuilder();
+        for (ConcurrentHashMap.Entry<String, String> entry : urlParams.entrySet()) {
+            appendParam(result, entry.getKey(), entry.getValue());
+        }
+        for (ConcurrentHashMap.Entry<String, ArrayList<String>> entry : urlParamsWithArray.entrySet()) {
+            for (String value : entry.getValue()) {
+                appendParam(result, entry.getKey(), value);
+            }
+        }
+        return result.toString();
+    }
+
+    private static void appendParam(StringBuilder result, String name, String value) {
+        if (result.length() > 0) {
+            result.append('&');
+        }
+        UrlBuilder.appendEncoded(result, name);
+        result.append('=');
+        UrlBuilder.appendEncoded(result, value);
     }
 
     private static class FileWrapper {
+        public File file;
+        public boolean temporary;
+        public byte[] data;
         public InputStream inputStream;
         public String fileName;
         public String contentType;
@@ -284,6 +444,18 @@ public class RequestParams {
             this.contentType = contentType;
         }
 
+        public FileWrapper(File file, String fileName, String contentType) {
+            this.file = file;
+            this.fileName = fileName;
+            this.contentType = contentType;
+        }
+
+        public FileWrapper(byte[] data, String fileName, String contentType) {
+            this.data = data;
+            this.fileName = fileName;
+            this.contentType = contentType;
+        }
+
         public String getFileName() {
             if (fileName != null) {
                 return fileName;
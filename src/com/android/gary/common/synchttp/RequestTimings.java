@@ -0,0 +1,38 @@
+package com.android.gary.common.synchttp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * What the transport measured about one request, collected in its
+ * {@link HttpContext} and folded into {@link HttpMetrics} when it ends.
+ * Phases of connections taken from the pool stay at -1.
+ */
+class RequestTimings {
+
+    static final String ATTR = "gary.metrics.timings";
+
+    volatile long dnsMillis = -1;
+    volatile long connectMillis = -1;
+    volatile long tlsMillis = -1;
+    volatile long ttfbMillis = -1;
+    volatile long requestSentAt;
+    volatile long sentBytesBefore = -1;
+    volatile int retries;
+    /**
+     * When the last retry was started, after its backoff; 0 if there was none.
+     */
+    volatile long attemptStartedAt;
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+
+    static RequestTimings get(HttpContext context) {
+        RequestTimings timings = (RequestTimings) context.getAttribute(ATTR);
+        if (timings == null) {
+            timings = new RequestTimings();
+            context.setAttribute(ATTR, timings);
+        }
+        return timings;
+    }
+}
@@ -0,0 +1,289 @@
+package com.android.gary.common.synchttp;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * HTTP response cache for {@link HttpClientUtil}, with a size-bounded memory
+ * LRU in front of an optional {@link DiskCache}.
+ * <p/>
+ * Entries are keyed by method and URL. When the response has a {@code Vary}
+ * header, the values the request sent for the headers it names, normalized,
+ * are part of the key, so each variant is stored on its own; an index entry
+ * under method and URL lists the headers. Responses fresh according to
+ * {@code Cache-Control: max-age} are served without touching the network,
+ * stale ones are revalidated with the stored ETag / Last-Modified and served
+ * from the cache when the server answers 304.
+ *
+ * <pre class="prettyprint">
+ * HttpClientUtil.getInstence().setResponseCache(new ResponseCache(
+ *         512 * 1024, new File(context.getCacheDir(), "http"), 10 * 1024 * 1024));
+ * </pre>
+ */
+public class ResponseCache {
+
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String HEADER_VARY = "Vary";
+
+    private final LruCache<String, CacheEntry> memoryCache;
+    private final DiskCache diskCache;
+
+    private int hitCount;
+    private int conditionalHitCount;
+    private int missCount;
+
+    /**
+     * Creates a memory-only cache.
+     */
+    public ResponseCache(int maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * @param directory    directory for the disk tier, or null for memory only
+     * @param maxDiskBytes size limit of the disk tier
+     */
+    public ResponseCache(int maxMemoryBytes, File directory, long maxDiskBytes) {
+        memoryCache = new LruCache<String, CacheEntry>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, CacheEntry value) {
+                return value.sizeInBytes();
+            }
+        };
+        diskCache = directory == null ? null : new DiskCache(directory, maxDiskBytes);
+    }
+
+    public static String key(String method, String url) {
+        return method + " " + url;
+    }
+
+    /**
+     * @param index the entry listing the headers the response varies on; its
+     *              time sets variants stored under an earlier index apart
+     */
+    private static String variantKey(CacheEntry index, HttpUriRequest request) {
+        String[] names = index.varyHeaders.keySet().toArray(new String[index.varyHeaders.size()]);
+        Arrays.sort(names);
+        StringBuilder variant = new StringBuilder(index.key);
+        variant.append('\n').append(index.responseTime);
+        for (String name : names) {
+            // header values never contain a line break
+            variant.append('\n').append(name);
+            Header header = request.getFirstHeader(name);
+            if (header != null) {
+                variant.append(':').append(CacheEntry.normalize(header.getValue()));
+            }
+        }
+        return variant.toString();
+    }
+
+    /**
+     * @return true if the request may be answered from the cache
+     */
+    public static boolean isCacheable(HttpUriRequest request) {
+        if (!"GET".equals(request.getMethod())) {
+            return false;
+        }
+        Header header = request.getFirstHeader(HEADER_CACHE_CONTROL);
+        if (header != null) {
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName();
+                if ("no-store".equalsIgnoreCase(name) || "no-cache".equalsIgnoreCase(name)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the stored response for the request, fresh or not, or null
+     */
+    public CacheEntry get(HttpUriRequest request) {
+        String key = key(request.getMethod(), request.getURI().toString());
+        CacheEntry entry = lookup(key);
+        if (entry != null && entry.isVaryIndex()) {
+            entry = lookup(variantKey(entry, request));
+        }
+        if (entry != null && !entry.matchesVary(request)) {
+            entry = null;
+        }
+        if (entry == null) {
+            synchronized (this) {
+                missCount++;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Stores a 200 response, unless it forbids caching.
+     */
+    public void put(HttpUriRequest request, HttpResponse response, String responseBody,
+                    String eTag, String lastModified) {
+        CacheControl cacheControl = CacheControl.parse(response);
+        if (cacheControl.noStore) {
+            return;
+        }
+        Map<String, String> varyHeaders = new HashMap<String, String>();
+        for (Header vary : response.getHeaders(HEADER_VARY)) {
+            for (HeaderElement element : vary.getElements()) {
+                String name = element.getName();
+                if ("*".equals(name)) {
+                    return;
+                }
+                Header requestHeader = request.getFirstHeader(name);
+                varyHeaders.put(name.toLowerCase(Locale.US),
+                        requestHeader == null ? null : requestHeader.getValue());
+            }
+        }
+        String key = key(request.getMethod(), request.getURI().toString());
+        if (!varyHeaders.isEmpty()) {
+            Map<String, String> names = new HashMap<String, String>();
+            for (String name : varyHeaders.keySet()) {
+                names.put(name, null);
+            }
+            CacheEntry index = lookup(key);
+            if (index == null || !index.isVaryIndex() || !index.varyHeaders.equals(names)) {
+                // variants stored under an earlier index can no longer be found
+                index = new CacheEntry(key, null, CacheEntry.VARY_INDEX, null, null,
+                        System.currentTimeMillis(), 0, true, names);
+                store(index);
+            }
+            key = variantKey(index, request);
+        }
+        CacheEntry entry = new CacheEntry(key, responseBody,
+                response.getStatusLine().getStatusCode(), eTag, lastModified,
+                System.currentTimeMillis(), cacheControl.maxAgeMillis,
+                cacheControl.noCache, varyHeaders);
+        store(entry);
+    }
+
+    /**
+     * Records a 304 answer for a stored entry: the validators and freshness
+     * of the new response replace the stored ones. The entry itself is left
+     * as it is, other threads may be reading it.
+     *
+     * @return the entry now stored, or {@code entry} if the answer forbids
+     * storing it
+     */
+    public CacheEntry update(CacheEntry entry, HttpResponse notModified) {
+        synchronized (this) {
+            conditionalHitCount++;
+        }
+        CacheControl cacheControl = CacheControl.parse(notModified);
+        if (cacheControl.noStore) {
+            remove(entry.key);
+            return entry;
+        }
+        Header eTagHeader = notModified.getFirstHeader("ETag");
+        Header lastModifiedHeader = notModified.getFirstHeader("Last-Modified");
+        boolean hasCacheControl = notModified.containsHeader(HEADER_CACHE_CONTROL);
+        CacheEntry updated = new CacheEntry(entry.key, entry.responseBody, entry.stateCode,
+                eTagHeader != null ? eTagHeader.getValue() : entry.eTag,
+                lastModifiedHeader != null ? lastModifiedHeader.getValue() : entry.lastModified,
+                System.currentTimeMillis(),
+                hasCacheControl ? cacheControl.maxAgeMillis : entry.maxAgeMillis,
+                hasCacheControl ? cacheControl.noCache : entry.noCache,
+                entry.varyHeaders);
+        store(updated);
+        return updated;
+    }
+
+    void recordHit() {
+        synchronized (this) {
+            hitCount++;
+        }
+    }
+
+    public void remove(String method, String url) {
+        remove(key(method, url));
+    }
+
+    private void remove(String key) {
+        memoryCache.remove(key);
+        if (diskCache != null) {
+            diskCache.remove(key);
+        }
+    }
+
+    public void evictAll() {
+        memoryCache.evictAll();
+        if (diskCache != null) {
+            diskCache.evictAll();
+        }
+    }
+
+    private CacheEntry lookup(String key) {
+        CacheEntry entry = memoryCache.get(key);
+        if (entry == null && diskCache != null) {
+            entry = diskCache.get(key);
+            if (entry != null) {
+                memoryCache.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    private void store(CacheEntry entry) {
+        memoryCache.put(entry.key, entry);
+        if (diskCache != null) {
+            diskCache.put(entry);
+        }
+    }
+
+    /**
+     * @return requests answered from the cache without contacting the server
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return requests answered from the cache after a 304 revalidation
+     */
+    public synchronized int getConditionalHitCount() {
+        return conditionalHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    private static class CacheControl {
+        long maxAgeMillis = -1;
+        boolean noCache;
+        boolean noStore;
+
+        static CacheControl parse(HttpResponse response) {
+            CacheControl result = new CacheControl();
+            for (Header header : response.getHeaders(HEADER_CACHE_CONTROL)) {
+                for (HeaderElement element : header.getElements()) {
+                    String name = element.getName();
+                    if ("no-store".equalsIgnoreCase(name)) {
+                        result.noStore = true;
+                    } else if ("no-cache".equalsIgnoreCase(name)) {
+                        result.noCache = true;
+                    } else if ("max-age".equalsIgnoreCase(name) && element.getValue() != null) {
+                        try {
+                            result.maxAgeMillis = Long.parseLong(element.getValue().trim()) * 1000;
+                        } catch (NumberFormatException ignore) {
+                            // treat as no max-age
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.android.gary.common.synchttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.Header;
+
+/**
+ * Receives a successful response body as a stream, see
+ * {@link HttpClientUtil#stream(String, ResponseStreamCallback)}.
+ * <p/>
+ * The body is read straight from the connection while the callback runs, so
+ * a slow reader slows the download down instead of buffering it. The stream
+ * is closed after the callback returns.
+ */
+public interface ResponseStreamCallback {
+
+    void onResponse(int stateCode, Header[] headers, InputStream body) throws IOException;
+}
@@ -0,0 +1,49 @@
+package com.android.gary.common.synchttp;
+
+/**
+ * Client-wide limit on retries, kept as a token bucket: every request adds
+ * {@code retryRatio} tokens up to {@code maxTokens}, every retry takes one.
+ * While the backend is healthy the bucket stays full; once most requests
+ * fail, retries are limited to about {@code retryRatio} of the traffic
+ * instead of multiplying it.
+ */
+public class RetryBudget {
+
+    private final float retryRatio;
+    private final float maxTokens;
+    private float tokens;
+
+    /**
+     * @param retryRatio retries allowed per request, e.g. 0.2 for one retry
+     *                   per five requests
+     * @param maxTokens  retries that can be spent in a burst, the bucket
+     *                   starts full
+     */
+    public RetryBudget(float retryRatio, int maxTokens) {
+        this.retryRatio = retryRatio;
+        this.maxTokens = maxTokens;
+        this.tokens = maxTokens;
+    }
+
+    /**
+     * Called once for every new (non-retry) request.
+     */
+    public synchronized void recordRequest() {
+        tokens = Math.min(maxTokens, tokens + retryRatio);
+    }
+
+    /**
+     * @return true if a retry may be made, in which case its token is spent
+     */
+    public synchronized boolean tryAcquireRetry() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    public synchronized int getAvailableRetries() {
+        return (int) tokens;
+    }
+}
@@ -8,26 +8,78 @@ import java.util.HashSet;
 
 import javax.net.ssl.SSLException;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.RequestWrapper;
 import org.apache.http.protocol.HttpContext;
 
 import android.os.SystemClock;
 
+/**
+ * Decides whether a failed request is retried and how long to wait first.
+ * <p/>
+ * The wait comes from a {@link BackoffPolicy} and every retry is charged
+ * against an optional {@link RetryBudget}. When HttpClient retries on its own
+ * (synchronous requests) the calling thread sleeps; callers that can wait
+ * without a thread set {@link #ATTR_DEFER_RETRY} on the context, handle the
+ * failure themselves and use {@link #shouldRetry} and {@link #getRetryDelay}.
+ */
 public class RetryHandler implements HttpRequestRetryHandler {
+
+    /**
+     * Context attribute; when {@code Boolean.TRUE} HttpClient's own retry
+     * loop is skipped and the caller schedules the retry.
+     */
+    public static final String ATTR_DEFER_RETRY = "gary.retry.deferred";
+
+    private static final String ATTR_LAST_DELAY = "gary.retry.last_delay";
+
     private static final HashSet<Class<?>> exceptionWhitelist = new HashSet<Class<?>>();
     private static final HashSet<Class<?>> exceptionBlacklist = new HashSet<Class<?>>();
     private final int maxRetries;
-    private final int retrySleepTimeMS;
+    private final BackoffPolicy backoffPolicy;
+    private final RetryBudget retryBudget;
 
     public RetryHandler(int maxRetries, int retrySleepTimeMS) {
+        this(maxRetries, new FixedBackoff(retrySleepTimeMS), null);
+    }
+
+    /**
+     * @param retryBudget shared by all requests of a client, or null for no
+     *                    limit besides {@code maxRetries}
+     */
+    public RetryHandler(int maxRetries, BackoffPolicy backoffPolicy,
+                        RetryBudget retryBudget) {
         this.maxRetries = maxRetries;
-        this.retrySleepTimeMS = retrySleepTimeMS;
+        this.backoffPolicy = backoffPolicy;
+        this.retryBudget = retryBudget;
     }
 
     public boolean retryRequest(IOException exception, int executionCount,
                                 HttpContext context) {
+        if (Boolean.TRUE.equals(context.getAttribute(ATTR_DEFER_RETRY))) {
+            return false;
+        }
+        boolean retry = shouldRetry(exception, executionCount, context);
+        if (retry) {
+            SystemClock.sleep(getRetryDelay(executionCount, context));
+            RequestTimings.get(context).attemptStartedAt = SystemClock.elapsedRealtime();
+        } else {
+            exception.printStackTrace();
+        }
+        return retry;
+    }
+
+    /**
+     * Like {@link #retryRequest} but without waiting. A positive answer spends
+     * a token of the retry budget.
+     */
+    public boolean shouldRetry(IOException exception, int executionCount,
+                               HttpContext context) {
         boolean retry = true;
 
         Boolean b = (Boolean) context.getAttribute("http.request_sent");
@@ -49,17 +101,52 @@ public class RetryHandler implements HttpRequestRetryHandler {
             if (currentReq == null) {
                 return false;
             }
+            if (sent && !isRepeatable(currentReq)) {
+                // the body was (partly) consumed and cannot be written again
+                retry = false;
+            }
         }
 
-        if (retry)
-            SystemClock.sleep(retrySleepTimeMS);
-        else {
-            exception.printStackTrace();
+        if (retry && retryBudget != null && !retryBudget.tryAcquireRetry()) {
+            retry = false;
+        }
+        if (retry) {
+            RequestTimings.get(context).retries++;
         }
-
         return retry;
     }
 
+    /**
+     * @param executionCount attempts made so far, as passed to
+     *                       {@link #shouldRetry}
+     * @return how long to wait before the next attempt
+     */
+    public long getRetryDelay(int executionCount, HttpContext context) {
+        long previous = 0;
+        Long last = (Long) context.getAttribute(ATTR_LAST_DELAY);
+        if (executionCount > 1 && last != null) {
+            previous = last;
+        }
+        long delay = Math.max(0, backoffPolicy.getDelayMillis(executionCount, previous));
+        context.setAttribute(ATTR_LAST_DELAY, delay);
+        return delay;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    private static boolean isRepeatable(HttpRequest request) {
+        if (request instanceof RequestWrapper) {
+            request = ((RequestWrapper) request).getOriginal();
+        }
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
     static void addClassToWhitelist(Class<?> cls) {
         exceptionWhitelist.add(cls);
     }
@@ -87,5 +174,7 @@ public class RetryHandler implements HttpRequestRetryHandler {
         exceptionBlacklist.add(InterruptedIOException.class);
 
         exceptionBlacklist.add(SSLException.class);
+
+        exceptionBlacklist.add(CircuitOpenException.class);
     }
 }
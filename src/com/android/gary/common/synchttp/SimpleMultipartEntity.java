@@ -8,20 +8,35 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
+/**
+ * multipart/form-data entity that only records its parts when they are added
+ * and streams boundaries, part headers and contents straight to the output in
+ * {@link #writeTo(OutputStream)}, so memory use does not grow with the upload
+ * size. The content length is known up front unless a part has an unknown
+ * size, in which case the body is sent chunked.
+ */
 class SimpleMultipartEntity implements HttpEntity {
     private final static char[] MULTIPART_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private static final String CHARSET = "UTF-8";
+    private static final byte[] CR_LF = {'\r', '\n'};
+    private static final int BUFFER_SIZE = 4096;
 
     private String boundary = null;
+    private final byte[] boundaryLine;
+    private final byte[] closingBoundaryLine;
 
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    boolean isSetLast = false;
-    boolean isSetFirst = false;
+    private final List<Part> parts = new ArrayList<Part>();
 
     public SimpleMultipartEntity() {
         final StringBuffer buf = new StringBuffer();
@@ -30,50 +45,14 @@ class SimpleMultipartEntity implements HttpEntity {
             buf.append(MULTIPART_CHARS[rand.nextInt(MULTIPART_CHARS.length)]);
         }
         this.boundary = buf.toString();
-
-    }
-
-    public void writeFirstBoundaryIfNeeds() {
-        if (!isSetFirst) {
-            writeBoundary();
-        }
-
-        isSetFirst = true;
-    }
-
-    public void writeBoundary() {
-        try {
-            out.write(("--" + boundary + "\r\n").getBytes());
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    public void writeLastBoundaryIfNeeds() {
-        if (isSetLast) {
-            return;
-        }
-
-        try {
-            out.write(("--" + boundary + "--\r\n").getBytes());
-            out.flush();
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
-
-        isSetLast = true;
+        this.boundaryLine = getAsciiBytes("--" + boundary + "\r\n");
+        this.closingBoundaryLine = getAsciiBytes("--" + boundary + "--\r\n");
     }
 
     public void addPart(final String key, final String value, final String contentType) {
-        writeBoundary();
-        try {
-            out.write(("Content-Disposition: form-data; name=\"" + key + "\"\r\n").getBytes());
-            out.write(("Content-Type: " + contentType + "\r\n\r\n").getBytes());
-            out.write(value.getBytes());
-            out.write(("\r\n").getBytes());
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
+        String header = "Content-Disposition: form-data; name=\"" + key + "\"\r\n"
+                + "Content-Type: " + contentType + "\r\n\r\n";
+        parts.add(new BytesPart(getBytes(header), getBytes(value)));
     }
 
     public void addPart(final String key, final String value) {
@@ -84,44 +63,61 @@ class SimpleMultipartEntity implements HttpEntity {
         addPart(key, fileName, fin, "application/octet-stream", isLast);
     }
 
+    /**
+     * Adds a stream of unknown length. The stream is read and closed by
+     * {@link #writeTo(OutputStream)}; {@code isLast} is kept for source
+     * compatibility, the closing boundary is always written after the last part.
+     */
     public void addPart(final String key, final String fileName, final InputStream fin, String type, final boolean isLast) {
-        writeBoundary();
-        try {
-            type = "Content-Type: " + type + "\r\n";
-            out.write(("Content-Disposition: form-data; name=\"" + key + "\"; filename=\"" + fileName + "\"\r\n").getBytes());
-            out.write(type.getBytes());
-            out.write("Content-Transfer-Encoding: binary\r\n\r\n".getBytes());
-
-            final byte[] tmp = new byte[4096];
-            int l = 0;
-            while ((l = fin.read(tmp)) != -1) {
-                out.write(tmp, 0, l);
-            }
-            out.write(("\r\n").getBytes());
-
-        } catch (final IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                fin.close();
-            } catch (final IOException e) {
-                e.printStackTrace();
-            }
-        }
+        parts.add(new StreamPart(fileHeader(key, fileName, type), fin));
     }
 
     public void addPart(final String key, final File value, final boolean isLast) {
-        try {
-            addPart(key, value.getName(), new FileInputStream(value), isLast);
-        } catch (final FileNotFoundException e) {
-            e.printStackTrace();
-        }
+        addPart(key, value, value.getName(), "application/octet-stream", isLast);
+    }
+
+    /**
+     * Adds a file whose size is known up front. Its content is transferred
+     * from a {@link FileChannel} when the entity is written, and the file is
+     * reopened on every write.
+     */
+    public void addPart(final String key, final File value, final String fileName, final String type, final boolean isLast) {
+        addPart(key, value, fileName, type, false, isLast);
+    }
+
+    /**
+     * @param temporary delete the file when the entity is released through
+     *                  {@link #consumeContent()}
+     */
+    public void addPart(final String key, final File value, final String fileName, final String type,
+                        final boolean temporary, final boolean isLast) {
+        parts.add(new FilePart(fileHeader(key, fileName, type), value, temporary));
+    }
+
+    /**
+     * Adds in-memory data as a file part.
+     */
+    public void addPart(final String key, final String fileName, final byte[] data, final String type) {
+        parts.add(new BytesPart(fileHeader(key, fileName, type), data));
+    }
+
+    private byte[] fileHeader(String key, String fileName, String type) {
+        return getBytes("Content-Disposition: form-data; name=\"" + key + "\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: " + type + "\r\n"
+                + "Content-Transfer-Encoding: binary\r\n\r\n");
     }
 
     @Override
     public long getContentLength() {
-        writeLastBoundaryIfNeeds();
-        return out.toByteArray().length;
+        long length = closingBoundaryLine.length;
+        for (Part part : parts) {
+            long bodyLength = part.getBodyLength();
+            if (bodyLength < 0) {
+                return -1;
+            }
+            length += boundaryLine.length + part.header.length + bodyLength + CR_LF.length;
+        }
+        return length;
     }
 
     @Override
@@ -131,23 +127,44 @@ class SimpleMultipartEntity implements HttpEntity {
 
     @Override
     public boolean isChunked() {
-        return false;
+        return getContentLength() < 0;
     }
 
+    /**
+     * @return true unless a part is a one-shot input stream
+     */
     @Override
     public boolean isRepeatable() {
-        return false;
+        return !isStreaming();
     }
 
     @Override
     public boolean isStreaming() {
+        for (Part part : parts) {
+            if (part instanceof StreamPart) {
+                return true;
+            }
+        }
         return false;
     }
 
     @Override
     public void writeTo(final OutputStream outstream) throws IOException {
-        writeLastBoundaryIfNeeds();
-        outstream.write(out.toByteArray());
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        byte[] buffer = null;
+        for (Part part : parts) {
+            outstream.write(boundaryLine);
+            outstream.write(part.header);
+            if (part instanceof StreamPart && buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+            }
+            part.writeBody(outstream, buffer);
+            outstream.write(CR_LF);
+        }
+        outstream.write(closingBoundaryLine);
+        outstream.flush();
     }
 
     @Override
@@ -158,16 +175,152 @@ class SimpleMultipartEntity implements HttpEntity {
     @Override
     public void consumeContent() throws IOException,
             UnsupportedOperationException {
-        if (isStreaming()) {
-            throw new UnsupportedOperationException(
-                    "Streaming entity does not implement #consumeContent()");
+        for (Part part : parts) {
+            part.release();
         }
     }
 
+    /**
+     * Renders the whole body in memory, meant for debugging only. Uploads go
+     * through {@link #writeTo(OutputStream)}.
+     */
     @Override
     public InputStream getContent() throws IOException,
             UnsupportedOperationException {
-        writeLastBoundaryIfNeeds();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
         return new ByteArrayInputStream(out.toByteArray());
     }
-}
\ No newline at end of file
+
+    private static byte[] getBytes(String value) {
+        try {
+            return value.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            return value.getBytes();
+        }
+    }
+
+    private static byte[] getAsciiBytes(String value) {
+        try {
+            return value.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            return value.getBytes();
+        }
+    }
+
+    private abstract static class Part {
+        final byte[] header;
+
+        Part(byte[] header) {
+            this.header = header;
+        }
+
+        /**
+         * @return body size in bytes, or -1 if unknown
+         */
+        abstract long getBodyLength();
+
+        abstract void writeBody(OutputStream out, byte[] buffer) throws IOException;
+
+        void release() {
+        }
+    }
+
+    private static class BytesPart extends Part {
+        final byte[] body;
+
+        BytesPart(byte[] header, byte[] body) {
+            super(header);
+            this.body = body;
+        }
+
+        @Override
+        long getBodyLength() {
+            return body.length;
+        }
+
+        @Override
+        void writeBody(OutputStream out, byte[] buffer) throws IOException {
+            out.write(body);
+        }
+    }
+
+    private static class StreamPart extends Part {
+        final InputStream in;
+
+        StreamPart(byte[] header, InputStream in) {
+            super(header);
+            this.in = in;
+        }
+
+        @Override
+        long getBodyLength() {
+            return -1;
+        }
+
+        @Override
+        void writeBody(OutputStream out, byte[] buffer) throws IOException {
+            try {
+                int l;
+                while ((l = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, l);
+                }
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        void release() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class FilePart extends Part {
+        final File file;
+        final long length;
+        final boolean temporary;
+
+        FilePart(byte[] header, File file, boolean temporary) {
+            super(header);
+            this.file = file;
+            this.length = file.length();
+            this.temporary = temporary;
+        }
+
+        @Override
+        long getBodyLength() {
+            return length;
+        }
+
+        @Override
+        void writeBody(OutputStream out, byte[] buffer) throws IOException {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = 0;
+                while (position < length) {
+                    long written = channel.transferTo(position, length - position, target);
+                    if (written <= 0) {
+                        throw new IOException("File " + file + " shrank while uploading");
+                    }
+                    position += written;
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        void release() {
+            if (temporary) {
+                file.delete();
+            }
+        }
+    }
+}
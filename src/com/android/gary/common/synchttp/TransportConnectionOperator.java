@@ -0,0 +1,330 @@
+package com.android.gary.common.synchttp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import android.os.SystemClock;
+
+/**
+ * Opens connections the way {@link DefaultClientConnectionOperator} does,
+ * but as separate steps so each can be timed: the DNS lookup, the TCP
+ * connect and, for TLS schemes, the handshake on top of the plain socket.
+ * The durations go to the request's {@link RequestTimings}.
+ * <p/>
+ * Names are resolved through a {@link DnsResolver}. When a host has several
+ * addresses they are raced "happy eyeballs" style (RFC 8305): IPv6 and IPv4
+ * addresses alternate, the next attempt starts when the previous one has
+ * not connected within {@link #CONNECTION_ATTEMPT_DELAY_MILLIS} or failed,
+ * and the first socket to connect wins.
+ */
+class TransportConnectionOperator extends DefaultClientConnectionOperator {
+
+    static final long CONNECTION_ATTEMPT_DELAY_MILLIS = 250;
+
+    private static final ExecutorService sConnectExecutor = new ThreadPoolExecutor(0,
+            Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HTTP connect");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private volatile DnsResolver dnsResolver = DnsResolver.SYSTEM;
+
+    TransportConnectionOperator(SchemeRegistry schemes) {
+        super(schemes);
+    }
+
+    void setDnsResolver(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
+    }
+
+    DnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    @Override
+    public void openConnection(OperatedClientConnection conn, HttpHost target,
+                               InetAddress local, HttpContext context, HttpParams params)
+            throws IOException {
+        if (conn == null || target == null || params == null) {
+            throw new IllegalArgumentException("Connection, target and parameters may not be null");
+        }
+        if (conn.isOpen()) {
+            throw new IllegalArgumentException("Connection must not be open");
+        }
+        RequestTimings timings = context != null ? RequestTimings.get(context) : null;
+
+        Scheme scheme = schemeRegistry.getScheme(target.getSchemeName());
+        SocketFactory factory = scheme.getSocketFactory();
+        int port = scheme.resolvePort(target.getPort());
+        boolean layered = factory instanceof LayeredSocketFactory;
+        SocketFactory connectFactory = layered ? PlainSocketFactory.getSocketFactory() : factory;
+
+        long start = SystemClock.elapsedRealtime();
+        InetAddress[] addresses = interleave(dnsResolver.resolve(target.getHostName()));
+        long resolved = SystemClock.elapsedRealtime();
+        if (timings != null) {
+            timings.dnsMillis = resolved - start;
+        }
+
+        Socket sock;
+        if (addresses.length == 1) {
+            sock = connectFactory.createSocket();
+            conn.opening(sock, target);
+            Socket connected = connectFactory.connectSocket(sock,
+                    addresses[0].getHostAddress(), port, local, 0, params);
+            if (sock != connected) {
+                sock = connected;
+                conn.opening(sock, target);
+            }
+        } else {
+            Race race = new Race(connectFactory, addresses, port, local, params);
+            // shutting the connection down closes the stand-in and every attempt
+            conn.opening(race.standIn, target);
+            sock = race.run();
+            // throws and closes the socket if the connection was shut down meanwhile
+            conn.opening(sock, target);
+        }
+        long tcpDone = SystemClock.elapsedRealtime();
+        if (timings != null) {
+            timings.connectMillis = tcpDone - resolved;
+        }
+        if (layered) {
+            // the handshake runs while the host name is verified
+            sock = ((LayeredSocketFactory) factory).createSocket(sock,
+                    target.getHostName(), port, true);
+            conn.opening(sock, target);
+            if (timings != null) {
+                timings.tlsMillis = SystemClock.elapsedRealtime() - tcpDone;
+            }
+        }
+        prepareSocket(sock, context, params);
+        conn.openCompleted(factory.isSecure(sock), params);
+    }
+
+    /**
+     * Orders addresses so the families alternate, starting with the family
+     * the resolver listed first.
+     */
+    static InetAddress[] interleave(InetAddress[] addresses) {
+        if (addresses.length < 2) {
+            return addresses;
+        }
+        boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+        List<InetAddress> first = new ArrayList<InetAddress>();
+        List<InetAddress> second = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        if (second.isEmpty()) {
+            return addresses;
+        }
+        InetAddress[] ordered = new InetAddress[addresses.length];
+        int n = 0;
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                ordered[n++] = first.get(i);
+            }
+            if (i < second.size()) {
+                ordered[n++] = second.get(i);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Connection attempts per address, staggered; the first socket that
+     * connects wins and the others are closed. Until then the connection
+     * holds {@link #standIn}, so an abort closes the attempts in flight.
+     */
+    private static class Race {
+        private static final Attempt ABORTED = new Attempt(null);
+
+        final Socket standIn = new Socket() {
+            @Override
+            public synchronized void close() throws IOException {
+                super.close();
+                abort();
+            }
+        };
+        private final SocketFactory factory;
+        private final InetAddress[] addresses;
+        private final int port;
+        private final InetAddress local;
+        private final HttpParams params;
+        private final BlockingQueue<Attempt> done = new LinkedBlockingQueue<Attempt>();
+        private final List<Attempt> attempts;
+        private boolean over;
+
+        Race(SocketFactory factory, InetAddress[] addresses, int port, InetAddress local,
+             HttpParams params) {
+            this.factory = factory;
+            this.addresses = addresses;
+            this.port = port;
+            this.local = local;
+            this.params = params;
+            attempts = new ArrayList<Attempt>(addresses.length);
+        }
+
+        Socket run() throws IOException {
+            IOException lastError = null;
+            Attempt winner = null;
+            int started = 0;
+            int finished = 0;
+            try {
+                while (true) {
+                    if (started == finished && started < addresses.length) {
+                        // nothing in flight, no reason to wait
+                        start(addresses[started++]);
+                    }
+                    Attempt attempt = started < addresses.length
+                            ? done.poll(CONNECTION_ATTEMPT_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+                            : done.take();
+                    if (attempt == null) {
+                        start(addresses[started++]);
+                        continue;
+                    }
+                    if (attempt == ABORTED) {
+                        throw new InterruptedIOException("Connection already shutdown");
+                    }
+                    finished++;
+                    if (attempt.connected != null) {
+                        winner = attempt;
+                        return attempt.connected;
+                    }
+                    lastError = attempt.error;
+                    if (finished == addresses.length) {
+                        throw lastError;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Connect interrupted");
+            } finally {
+                finish(winner);
+            }
+        }
+
+        private void start(final InetAddress address) throws IOException {
+            final Attempt attempt;
+            synchronized (this) {
+                if (over) {
+                    throw new InterruptedIOException("Connection already shutdown");
+                }
+                attempt = new Attempt(factory.createSocket());
+                attempts.add(attempt);
+            }
+            sConnectExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        attempt.succeeded(factory.connectSocket(attempt.socket,
+                                address.getHostAddress(), port, local, 0, params));
+                    } catch (IOException e) {
+                        attempt.error = e;
+                    } catch (RuntimeException e) {
+                        attempt.error = new IOException("Connect to " + address + " failed: " + e);
+                    } finally {
+                        done.add(attempt);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Called when the connection is shut down before the race is over.
+         */
+        private void abort() {
+            synchronized (this) {
+                if (over) {
+                    return;
+                }
+            }
+            finish(null);
+            done.add(ABORTED);
+        }
+
+        private void finish(Attempt winner) {
+            List<Attempt> losers;
+            synchronized (this) {
+                over = true;
+                losers = new ArrayList<Attempt>(attempts);
+                attempts.clear();
+            }
+            for (Attempt attempt : losers) {
+                if (attempt != winner) {
+                    attempt.cancel();
+                }
+            }
+        }
+    }
+
+    private static class Attempt {
+        final Socket socket;
+        volatile Socket connected;
+        volatile IOException error;
+        private boolean cancelled;
+
+        Attempt(Socket socket) {
+            this.socket = socket;
+        }
+
+        synchronized void succeeded(Socket sock) {
+            if (cancelled) {
+                // lost the race while connecting
+                closeQuietly(sock);
+            } else {
+                connected = sock;
+            }
+        }
+
+        /**
+         * Closes the attempt's sockets; closing also stops a connect still in
+         * progress.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            closeQuietly(socket);
+            if (connected != null && connected != socket) {
+                closeQuietly(connected);
+            }
+        }
+
+        private static void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+                // closing to abandon the attempt
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.android.gary.common.synchttp;
+
+import java.util.Map;
+
+/**
+ * Builds URLs with RFC 3986 percent-encoding of path segments and query
+ * parameters, appending straight into a {@link StringBuilder} that is reused
+ * per thread:
+ * <pre>
+ * String url = UrlBuilder.obtain("http://api.example.com/v1")
+ *         .path("users").path(userId)
+ *         .param("page", page)
+ *         .param("q", query)
+ *         .build();
+ * </pre>
+ * Strings made only of unreserved characters, which covers most names and
+ * ids, are appended as they are without being scanned twice, and non-ASCII
+ * text is encoded as UTF-8 without an intermediate byte array, so building
+ * a URL allocates little besides the final String. Parameters that never
+ * change can be encoded once with {@link #encodeQuery(Map)} and added with
+ * {@link #encodedQuery(String)}.
+ * <p/>
+ * Spaces are encoded as {@code %20}, never as {@code +}, which is only
+ * meaningful in form bodies.
+ */
+public final class UrlBuilder {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Builders grown beyond this are not kept for reuse.
+     */
+    private static final int MAX_POOLED_CAPACITY = 4096;
+
+    /**
+     * ALPHA / DIGIT / "-" / "." / "_" / "~"
+     */
+    private static final boolean[] UNRESERVED = new boolean[128];
+
+    /**
+     * Characters left alone by {@link #escapeUrl(String)}: unreserved,
+     * reserved and '%' of existing escapes.
+     */
+    private static final boolean[] URL_SAFE = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            UNRESERVED[c] = true;
+        }
+        UNRESERVED['-'] = true;
+        UNRESERVED['.'] = true;
+        UNRESERVED['_'] = true;
+        UNRESERVED['~'] = true;
+        System.arraycopy(UNRESERVED, 0, URL_SAFE, 0, UNRESERVED.length);
+        for (char c : ":/?#[]@!$&'()*+,;=%".toCharArray()) {
+            URL_SAFE[c] = true;
+        }
+    }
+
+    private static final ThreadLocal<UrlBuilder> sPool = new ThreadLocal<UrlBuilder>();
+
+    private StringBuilder sb = new StringBuilder(128);
+    private boolean inQuery;
+    private boolean needsSeparator;
+    private boolean inUse;
+
+    private UrlBuilder() {
+    }
+
+    /**
+     * Starts a URL on this thread's builder. {@code base} may already have a
+     * path and query; characters not allowed in a URL are escaped. Finish
+     * with {@link #build()}, which hands the builder back.
+     */
+    public static UrlBuilder obtain(String base) {
+        UrlBuilder builder = sPool.get();
+        if (builder == null || builder.inUse) {
+            // nested use, or a builder that was never finished
+            builder = new UrlBuilder();
+            sPool.set(builder);
+        }
+        builder.start(base);
+        return builder;
+    }
+
+    private void start(String base) {
+        inUse = true;
+        if (sb.capacity() > MAX_POOLED_CAPACITY) {
+            sb = new StringBuilder(128);
+        }
+        sb.setLength(0);
+        inQuery = false;
+        needsSeparator = false;
+        if (base == null) {
+            return;
+        }
+        appendEscapedUrl(sb, base);
+        int question = base.indexOf('?');
+        if (question >= 0) {
+            inQuery = true;
+            char last = base.charAt(base.length() - 1);
+            needsSeparator = last != '?' && last != '&';
+        }
+    }
+
+    /**
+     * Appends {@code /segment}, with the segment encoded.
+     *
+     * @throws IllegalStateException once query parameters were added
+     */
+    public UrlBuilder path(String segment) {
+        if (inQuery) {
+            throw new IllegalStateException("Path segments go before the query");
+        }
+        if (sb.length() == 0 || sb.charAt(sb.length() - 1) != '/') {
+            sb.append('/');
+        }
+        appendEncoded(sb, segment);
+        return this;
+    }
+
+    /**
+     * @param value null for a parameter without a value
+     */
+    public UrlBuilder param(String name, String value) {
+        separator();
+        appendEncoded(sb, name);
+        if (value != null) {
+            sb.append('=');
+            appendEncoded(sb, value);
+        }
+        return this;
+    }
+
+    public UrlBuilder param(String name, long value) {
+        separator();
+        appendEncoded(sb, name);
+        sb.append('=').append(value);
+        return this;
+    }
+
+    public UrlBuilder params(Map<String, String> params) {
+        if (params != null) {
+            for (Map.Entry<String, String> entry : params.entrySet()) {
+                param(entry.getKey(), entry.getValue());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends parameters that are already encoded, e.g. a cached result of
+     * {@link #encodeQuery(Map)}.
+     */
+    public UrlBuilder encodedQuery(String encoded) {
+        if (encoded != null && encoded.length() > 0) {
+            separator();
+            sb.append(encoded);
+        }
+        return this;
+    }
+
+    private void separator() {
+        if (!inQuery) {
+            sb.append('?');
+            inQuery = true;
+        } else if (needsSeparator) {
+            sb.append('&');
+        }
+        needsSeparator = true;
+    }
+
+    /**
+     * @return the URL; the builder must not be used afterwards
+     */
+    public String build() {
+        String url = sb.toString();
+        inUse = false;
+        return url;
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+
+    /**
+     * Encodes a path segment or query component.
+     *
+     * @return {@code value} itself when nothing needs encoding
+     */
+    public static String encode(String value) {
+        int i = firstUnsafe(value, UNRESERVED);
+        if (i == value.length()) {
+            return value;
+        }
+        StringBuilder out = new StringBuilder(value.length() + 16);
+        out.append(value, 0, i);
+        appendEncoded(out, value, i, UNRESERVED);
+        return out.toString();
+    }
+
+    /**
+     * Encodes parameters as {@code name=value&...}, in map order.
+     *
+     * @return an empty string for a null or empty map
+     */
+    public static String encodeQuery(Map<String, String> params) {
+        if (params == null || params.isEmpty()) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder(params.size() * 16);
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            if (out.length() > 0) {
+                out.append('&');
+            }
+            appendEncoded(out, entry.getKey());
+            if (entry.getValue() != null) {
+                out.append('=');
+                appendEncoded(out, entry.getValue());
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Escapes what may not appear anywhere in a URL, such as spaces and
+     * non-ASCII text, and leaves reserved characters and existing escapes
+     * alone. Meant for URLs assembled elsewhere.
+     *
+     * @return {@code url} itself when nothing needs escaping
+     */
+    public static String escapeUrl(String url) {
+        int i = firstUnsafe(url, URL_SAFE);
+        if (i == url.length()) {
+            return url;
+        }
+        StringBuilder out = new StringBuilder(url.length() + 16);
+        out.append(url, 0, i);
+        appendEncoded(out, url, i, URL_SAFE);
+        return out.toString();
+    }
+
+    /**
+     * Appends {@code value} encoded as a path segment or query component.
+     */
+    public static void appendEncoded(StringBuilder out, String value) {
+        int i = firstUnsafe(value, UNRESERVED);
+        out.append(value, 0, i);
+        if (i < value.length()) {
+            appendEncoded(out, value, i, UNRESERVED);
+        }
+    }
+
+    private static void appendEscapedUrl(StringBuilder out, String url) {
+        int i = firstUnsafe(url, URL_SAFE);
+        out.append(url, 0, i);
+        if (i < url.length()) {
+            appendEncoded(out, url, i, URL_SAFE);
+        }
+    }
+
+    private static int firstUnsafe(String value, boolean[] safe) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 128 || !safe[c]) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static void appendEncoded(StringBuilder out, String value, int from, boolean[] safe) {
+        int length = value.length();
+        for (int i = from; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 128) {
+                if (safe[c]) {
+                    out.append(c);
+                } else {
+                    appendByte(out, c);
+                }
+                continue;
+            }
+            int codePoint;
+            if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                codePoint = Character.toCodePoint(c, value.charAt(++i));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // unpaired surrogate, encoded as U+FFFD like String.getBytes() does
+                codePoint = 0xfffd;
+            } else {
+                codePoint = c;
+            }
+            if (codePoint < 0x800) {
+                appendByte(out, 0xc0 | (codePoint >> 6));
+            } else if (codePoint < 0x10000) {
+                appendByte(out, 0xe0 | (codePoint >> 12));
+                appendByte(out, 0x80 | ((codePoint >> 6) & 0x3f));
+            } else {
+                appendByte(out, 0xf0 | (codePoint >> 18));
+                appendByte(out, 0x80 | ((codePoint >> 12) & 0x3f));
+                appendByte(out, 0x80 | ((codePoint >> 6) & 0x3f));
+            }
+            appendByte(out, 0x80 | (codePoint & 0x3f));
+        }
+    }
+
+    private static void appendByte(StringBuilder out, int b) {
+        out.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+    }
+}
@@ -0,0 +1,119 @@
+package com.android.gary.common.utils;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Tells listeners when the device goes online or offline or moves to
+ * another kind of network, unlike {@link NetworkUtils} which only answers
+ * for the moment it is asked. While listened to, the state is cached, so
+ * asking for it is cheap.
+ * <p/>
+ * The connectivity broadcast is listened to while there are listeners, and
+ * they are called on the main thread. Needs
+ * <strong>android.permission.ACCESS_NETWORK_STATE</strong>.
+ */
+public class ConnectivityMonitor {
+
+    private static final String TAG = "ConnectivityMonitor";
+
+    public interface Listener {
+
+        /**
+         * Called when the device went online or offline, or the
+         * {@link ConnectivityMonitor#getNetworkTypeName() network type} changed.
+         */
+        void onConnectivityChanged(boolean connected);
+    }
+
+    private static ConnectivityMonitor sInstance;
+
+    private final Context context;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile boolean connected;
+    private volatile String networkTypeName = NetworkUtils.NETWORK_TYPE_DISCONNECT;
+    private boolean registered;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            boolean now = queryConnected();
+            String typeName = NetworkUtils.getNetworkTypeName(context);
+            if (now == connected && typeName.equals(networkTypeName)) {
+                return;
+            }
+            connected = now;
+            networkTypeName = typeName;
+            LogUtil.d(TAG, now ? "online, " + typeName : "offline");
+            for (Listener listener : listeners) {
+                listener.onConnectivityChanged(now);
+            }
+        }
+    };
+
+    public static synchronized ConnectivityMonitor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConnectivityMonitor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ConnectivityMonitor(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Adds a listener. It is not called for the current state, ask
+     * {@link #isConnected()} for that.
+     */
+    public synchronized void addListener(Listener listener) {
+        if (listeners.addIfAbsent(listener) && !registered) {
+            connected = queryConnected();
+            networkTypeName = NetworkUtils.getNetworkTypeName(context);
+            context.registerReceiver(receiver,
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            registered = true;
+        }
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        if (listeners.remove(listener) && listeners.isEmpty() && registered) {
+            context.unregisterReceiver(receiver);
+            registered = false;
+        }
+    }
+
+    public boolean isConnected() {
+        synchronized (this) {
+            if (registered) {
+                return connected;
+            }
+        }
+        return queryConnected();
+    }
+
+    /**
+     * @return one of the {@link NetworkUtils} {@code NETWORK_TYPE_} names
+     */
+    public String getNetworkTypeName() {
+        synchronized (this) {
+            if (registered) {
+                return networkTypeName;
+            }
+        }
+        return NetworkUtils.getNetworkTypeName(context);
+    }
+
+    private boolean queryConnected() {
+        ConnectivityManager manager = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = manager == null ? null : manager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+}
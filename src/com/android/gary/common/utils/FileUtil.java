@@ -46,7 +46,7 @@ public class FileUtil {
         try { 
             File file = createNewFile(path);
             FileOutputStream out = new FileOutputStream(file);
-            byte[] data = new byte[1024];
+            byte[] data = new byte[8192];
             int num = 0;
             while ((num = inStream.read(data, 0, data.length)) != -1) {
                 out.write(data, 0, num);
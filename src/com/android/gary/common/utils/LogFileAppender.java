@@ -0,0 +1,463 @@
+package com.android.gary.common.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes what {@link LogUtil} prints to rolling files as well, so logs can
+ * be collected after a problem in the field:
+ * <pre class="prettyprint">
+ * LogFileAppender appender = new LogFileAppender(new File(getFilesDir(), "logs"), "app");
+ * appender.start();
+ * LogUtil.setFileAppender(appender);
+ * </pre>
+ * Logging threads only put the message into a fixed-size, lock-free ring
+ * buffer; a background thread formats the lines and writes them. When the
+ * writer falls behind, new messages are dropped rather than blocking the
+ * caller, and the number dropped is written once there is room again.
+ * <p/>
+ * The current file is {@code <name>.log}. It is rolled over when it reaches
+ * {@link #setMaxFileSize(long) a size} or {@link #setRollInterval(long) an
+ * age}, gzip compressed to {@code <name>-<yyyyMMdd-HHmmss-SSS>.log.gz}, and the
+ * oldest rolled files are deleted once all of them together exceed
+ * {@link #setMaxTotalSize(long) a limit}.
+ */
+public class LogFileAppender {
+
+    private static final String TAG = "LogFileAppender";
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+    public static final long DEFAULT_ROLL_INTERVAL_MILLIS = 24 * 60 * 60 * 1000L;
+    public static final long DEFAULT_MAX_TOTAL_SIZE = 10 * 1024 * 1024;
+
+    private static final long IDLE_PARK_NANOS = 500 * 1000 * 1000L;
+    private static final String SUFFIX = ".log";
+
+    private final File directory;
+    private final String name;
+    /**
+     * Names of this appender's rolled files: time rolled, then a counter for
+     * files rolled within the same millisecond.
+     */
+    private final Pattern rolledName;
+    private final int mask;
+    private final AtomicReferenceArray<Record> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private volatile long rollIntervalMillis = DEFAULT_ROLL_INTERVAL_MILLIS;
+    private volatile long maxTotalSize = DEFAULT_MAX_TOTAL_SIZE;
+
+    private volatile Thread writerThread;
+    private volatile boolean writerIdle;
+    private volatile boolean running;
+    private volatile boolean rollRequested;
+
+    // writer thread only
+    private Writer out;
+    private long fileSize;
+    private long openedAt;
+    private final StringBuilder line = new StringBuilder(256);
+    private final SimpleDateFormat timeFormat =
+            new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+    private final SimpleDateFormat fileFormat =
+            new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US);
+    private final Date date = new Date();
+
+    public LogFileAppender(File directory, String name) {
+        this(directory, name, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity messages the buffer holds, rounded up to a power of two
+     */
+    public LogFileAppender(File directory, String name, int capacity) {
+        this.directory = directory;
+        this.name = name;
+        rolledName = Pattern.compile(Pattern.quote(name)
+                + "-(\\d{8}-\\d{6}-\\d{3})(?:-(\\d+))?\\.log(?:\\.gz)?");
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        slots = new AtomicReferenceArray<Record>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public void setRollInterval(long rollIntervalMillis) {
+        this.rollIntervalMillis = rollIntervalMillis;
+    }
+
+    /**
+     * Sets how much the rolled files may take together, the current file not
+     * counted.
+     */
+    public void setMaxTotalSize(long maxTotalSize) {
+        this.maxTotalSize = maxTotalSize;
+    }
+
+    /**
+     * @throws IllegalStateException if the writer of an earlier
+     *                               {@link #stop(long)} is still finishing
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        Thread previous = writerThread;
+        if (previous != null && previous.isAlive()) {
+            // the ring buffer takes a single reader
+            throw new IllegalStateException("Log writer is still stopping");
+        }
+        running = true;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "Log writer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        writerThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Writes out what is buffered and closes the file. Waits for the writer
+     * at most {@code timeoutMillis}.
+     *
+     * @return false if the writer is still finishing; the appender cannot be
+     * started again until it is done
+     */
+    public synchronized boolean stop(long timeoutMillis) {
+        Thread thread = writerThread;
+        if (thread == null) {
+            return true;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    /**
+     * Rolls the current file over soon, e.g. before the logs are uploaded.
+     */
+    public void roll() {
+        rollRequested = true;
+        LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * @return the directory holding the current and rolled files
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return messages dropped since the last time a drop notice was written
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Queues a message, never blocks.
+     *
+     * @return false if the buffer was full and the message dropped
+     */
+    public boolean append(int logType, String tag, String msg) {
+        if (!running) {
+            return false;
+        }
+        long pos;
+        int index;
+        while (true) {
+            pos = tail.get();
+            index = (int) (pos & mask);
+            long available = sequences.get(index) - pos;
+            if (available == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (available < 0) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            // another thread claimed the slot, try the next one
+        }
+        slots.set(index, new Record(System.currentTimeMillis(), logType, tag,
+                Thread.currentThread().getName(), msg));
+        sequences.set(index, pos + 1);
+        if (writerIdle) {
+            LockSupport.unpark(writerThread);
+        }
+        return true;
+    }
+
+    private Record poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Record record = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + mask + 1);
+        head++;
+        return record;
+    }
+
+    private void writeLoop() {
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                android.util.Log.e(TAG, "cannot create " + directory);
+                running = false;
+                return;
+            }
+            open();
+            while (true) {
+                boolean stopping = !running;
+                int written = 0;
+                Record record;
+                while ((record = poll()) != null) {
+                    write(record);
+                    written++;
+                    if (fileSize >= maxFileSize) {
+                        rollOver();
+                        written = 0;
+                    }
+                }
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    writeDropNotice(lost);
+                }
+                if (written > 0 || lost > 0) {
+                    out.flush();
+                }
+                if (rollRequested || fileSize >= maxFileSize
+                        || (fileSize > 0 && System.currentTimeMillis() - openedAt >= rollIntervalMillis)) {
+                    rollRequested = false;
+                    rollOver();
+                }
+                if (stopping) {
+                    break;
+                }
+                writerIdle = true;
+                // a message queued before the flag was set may wait for the timeout
+                if (sequences.get((int) (head & mask)) != head + 1) {
+                    writerIdle = false;
+                    continue;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                writerIdle = false;
+            }
+        } catch (IOException e) {
+            android.util.Log.e(TAG, "log file writer failed", e);
+            running = false;
+        } finally {
+            closeQuietly(out);
+            out = null;
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        line.setLength(0);
+        date.setTime(record.time);
+        line.append(timeFormat.format(date)).append(' ')
+                .append(levelChar(record.logType)).append('/')
+                .append(record.tag).append(" <").append(record.thread).append(">: ")
+                .append(record.msg).append('\n');
+        out.append(line);
+        // close enough for rolling: log text is mostly ASCII
+        fileSize += line.length();
+    }
+
+    private void writeDropNotice(long lost) throws IOException {
+        line.setLength(0);
+        date.setTime(System.currentTimeMillis());
+        line.append(timeFormat.format(date)).append(" W/").append(TAG).append(": ")
+                .append(lost).append(" messages dropped, writer fell behind\n");
+        out.append(line);
+        fileSize += line.length();
+    }
+
+    private File currentFile() {
+        return new File(directory, name + SUFFIX);
+    }
+
+    private void open() throws IOException {
+        File file = currentFile();
+        fileSize = file.length();
+        openedAt = System.currentTimeMillis();
+        out = new OutputStreamWriter(new BufferedOutputStream(
+                new FileOutputStream(file, true), 8192), "UTF-8");
+    }
+
+    private void rollOver() throws IOException {
+        out.flush();
+        closeQuietly(out);
+        out = null;
+        File current = currentFile();
+        if (current.length() > 0) {
+            date.setTime(System.currentTimeMillis());
+            File rolled = new File(directory, name + "-" + fileFormat.format(date) + SUFFIX);
+            for (int i = 1; rolled.exists() || gzipFile(rolled).exists(); i++) {
+                rolled = new File(directory, name + "-" + fileFormat.format(date) + "-" + i + SUFFIX);
+            }
+            if (current.renameTo(rolled)) {
+                compress(rolled);
+            }
+        }
+        enforceRetention();
+        open();
+    }
+
+    private static File gzipFile(File log) {
+        return new File(log.getPath() + ".gz");
+    }
+
+    private void compress(File log) {
+        File gz = gzipFile(log);
+        InputStream in = null;
+        OutputStream zipped = null;
+        try {
+            in = new FileInputStream(log);
+            zipped = new GZIPOutputStream(new FileOutputStream(gz));
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                zipped.write(buffer, 0, n);
+            }
+            zipped.close();
+            zipped = null;
+            if (!log.delete()) {
+                android.util.Log.w(TAG, "cannot delete " + log);
+            }
+        } catch (IOException e) {
+            // keep the uncompressed file, it still counts toward retention
+            android.util.Log.w(TAG, "cannot compress " + log, e);
+            gz.delete();
+        } finally {
+            closeQuietly(in);
+            closeQuietly(zipped);
+        }
+    }
+
+    /**
+     * Deletes the oldest rolled files until the rest fit the total size.
+     */
+    private void enforceRetention() {
+        File[] rolled = directory.listFiles();
+        if (rolled == null) {
+            return;
+        }
+        int count = 0;
+        for (File file : rolled) {
+            // not those of another appender whose name starts with ours
+            if (rolledName.matcher(file.getName()).matches()) {
+                rolled[count++] = file;
+            }
+        }
+        rolled = Arrays.copyOf(rolled, count);
+        Arrays.sort(rolled, new Comparator<File>() {
+            public int compare(File a, File b) {
+                Matcher ma = rolledName.matcher(a.getName());
+                Matcher mb = rolledName.matcher(b.getName());
+                ma.matches();
+                mb.matches();
+                int order = ma.group(1).compareTo(mb.group(1));
+                return order != 0 ? order : counter(ma) - counter(mb);
+            }
+        });
+        long total = 0;
+        for (File file : rolled) {
+            total += file.length();
+        }
+        for (int i = 0; i < rolled.length && total > maxTotalSize; i++) {
+            total -= rolled[i].length();
+            if (!rolled[i].delete()) {
+                android.util.Log.w(TAG, "cannot delete " + rolled[i]);
+            }
+        }
+    }
+
+    private static int counter(Matcher rolled) {
+        String counter = rolled.group(2);
+        return counter == null ? 0 : Integer.parseInt(counter);
+    }
+
+    private static char levelChar(int logType) {
+        switch (logType) {
+            case LogUtil.VERBOSE:
+                return 'V';
+            case LogUtil.DEBUG:
+                return 'D';
+            case LogUtil.INFO:
+                return 'I';
+            case LogUtil.WARN:
+                return 'W';
+            case LogUtil.ERROR:
+                return 'E';
+            default:
+                return 'A';
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
+                // nothing left to do with it
+            }
+        }
+    }
+
+    private static class Record {
+        final long time;
+        final int logType;
+        final String tag;
+        final String thread;
+        final String msg;
+
+        Record(long time, int logType, String tag, String thread, String msg) {
+            this.time = time;
+            this.logType = logType;
+            this.tag = tag;
+            this.thread = thread;
+            this.msg = msg;
+        }
+    }
+}
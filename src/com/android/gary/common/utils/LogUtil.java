@@ -1,5 +1,11 @@
 package com.android.gary.common.utils;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Log utility class.
  * <p/>
@@ -28,6 +34,13 @@ package com.android.gary.common.utils;
  *     }
  * }
  * </pre>
+ * One tag can be traced without turning on verbose logging for everything,
+ * also in release builds, and kept from flooding the log:
+ * <pre class="prettyprint">
+ * LogUtil.setTagLevel(LogUtil.TAG_NETWORK, LogUtil.VERBOSE);
+ * LogUtil.setTagRateLimit(LogUtil.TAG_NETWORK, 50);
+ * LogUtil.setTagSampling(LogUtil.TAG_NETWORK, 10);
+ * </pre>
  */
 public class LogUtil {
     /**
@@ -136,6 +149,17 @@ public class LogUtil {
      */
     private static boolean sToggleRelease = false;
 
+    /**
+     * Also writes the printed messages to files, null for none.
+     */
+    private static volatile LogFileAppender sFileAppender;
+
+    /**
+     * Level, rate limit and sampling of single tags. Replaced as a whole
+     * when changed, so looking up a tag takes no lock.
+     */
+    private static volatile Map<String, TagRule> sTagRules = Collections.emptyMap();
+
     /**
      * Set log print toggle, default is turn on.
      *
@@ -199,6 +223,16 @@ public class LogUtil {
         LogUtil.sToggleRelease = on;
     }
 
+    /**
+     * Set the appender that also writes printed messages to files, null to
+     * stop. The appender has to be started by the caller.
+     *
+     * @param appender
+     */
+    public static void setFileAppender(LogFileAppender appender) {
+        LogUtil.sFileAppender = appender;
+    }
+
     /**
      * Return true if log print toggle is turn on.
      *
@@ -327,6 +361,84 @@ public class LogUtil {
         return sTagDefault;
     }
 
+    /**
+     * Set the print level of one tag, overriding {@link #setLogLevel(int)}
+     * and the release level for it. Can be changed at any time.
+     *
+     * @param tag
+     * @param logType log type, e.g. {@link #VERBOSE}, or 0 to use the global level again
+     */
+    public static synchronized void setTagLevel(String tag, int logType) {
+        TagRule rule = getTagRule(tag);
+        putTagRule(tag, new TagRule(logType, rule.maxPerSecond, rule.sampleEvery));
+    }
+
+    /**
+     * Get the print level of a tag, the global one if it has none of its own.
+     *
+     * @param tag
+     * @return
+     */
+    public static int getTagLevel(String tag) {
+        TagRule rule = findTagRule(tag);
+        if (rule != null && rule.level != 0) {
+            return rule.level;
+        }
+        return sToggleRelease ? INFO : sLogLevel;
+    }
+
+    /**
+     * Print at most {@code maxPerSecond} messages of a tag each second. The
+     * number dropped is noted on the next message printed.
+     *
+     * @param tag
+     * @param maxPerSecond 0 for no limit
+     */
+    public static synchronized void setTagRateLimit(String tag, int maxPerSecond) {
+        TagRule rule = getTagRule(tag);
+        putTagRule(tag, new TagRule(rule.level, maxPerSecond, rule.sampleEvery));
+    }
+
+    /**
+     * Print only one of every {@code every} messages of a tag.
+     *
+     * @param tag
+     * @param every 1 to print all
+     */
+    public static synchronized void setTagSampling(String tag, int every) {
+        TagRule rule = getTagRule(tag);
+        putTagRule(tag, new TagRule(rule.level, rule.maxPerSecond, every));
+    }
+
+    /**
+     * Remove the level, rate limit and sampling of a tag.
+     *
+     * @param tag
+     */
+    public static synchronized void clearTagRules(String tag) {
+        if (sTagRules.containsKey(tag)) {
+            Map<String, TagRule> rules = new HashMap<String, TagRule>(sTagRules);
+            rules.remove(tag);
+            sTagRules = rules.isEmpty() ? Collections.<String, TagRule>emptyMap() : rules;
+        }
+    }
+
+    private static TagRule getTagRule(String tag) {
+        TagRule rule = sTagRules.get(tag);
+        return rule == null ? new TagRule(0, 0, 1) : rule;
+    }
+
+    private static void putTagRule(String tag, TagRule rule) {
+        Map<String, TagRule> rules = new HashMap<String, TagRule>(sTagRules);
+        rules.put(tag, rule);
+        sTagRules = rules;
+    }
+
+    private static TagRule findTagRule(String tag) {
+        Map<String, TagRule> rules = sTagRules;
+        return rules.isEmpty() ? null : rules.get(tag == null ? sTagDefault : tag);
+    }
+
     /**
      * see {@link #e(String, String, String, Throwable)}
      *
@@ -647,6 +759,211 @@ public class LogUtil {
         printLog(VERBOSE, tag, msg, author, e);
     }
 
+    /**
+     * Send an {@link LogUtil#VERBOSE} log message built from {@code format},
+     * each "{}" replaced by an argument, only if it will be printed.
+     *
+     * @param tag
+     * @param format
+     * @param arg
+     */
+    public static void vFormat(String tag, String format, Object arg) {
+        if (isLoggable(VERBOSE, tag)) {
+            printFormatted(VERBOSE, tag, format, new Object[]{arg});
+        }
+    }
+
+    /**
+     * see {@link #vFormat(String, String, Object)}
+     *
+     * @param tag
+     * @param format
+     * @param arg1
+     * @param arg2
+     */
+    public static void vFormat(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(VERBOSE, tag)) {
+            printFormatted(VERBOSE, tag, format, new Object[]{arg1, arg2});
+        }
+    }
+
+    /**
+     * see {@link #vFormat(String, String, Object)}
+     *
+     * @param tag
+     * @param format
+     * @param args
+     */
+    public static void vFormat(String tag, String format, Object... args) {
+        if (isLoggable(VERBOSE, tag)) {
+            printFormatted(VERBOSE, tag, format, args);
+        }
+    }
+
+    /**
+     * Send an {@link LogUtil#DEBUG} log message built from {@code format},
+     * each "{}" replaced by an argument, only if it will be printed.
+     *
+     * @param tag
+     * @param format
+     * @param arg
+     */
+    public static void dFormat(String tag, String format, Object arg) {
+        if (isLoggable(DEBUG, tag)) {
+            printFormatted(DEBUG, tag, format, new Object[]{arg});
+        }
+    }
+
+    /**
+     * see {@link #dFormat(String, String, Object)}
+     *
+     * @param tag
+     * @param format
+     * @param arg1
+     * @param arg2
+     */
+    public static void dFormat(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(DEBUG, tag)) {
+            printFormatted(DEBUG, tag, format, new Object[]{arg1, arg2});
+        }
+    }
+
+    /**
+     * see {@link #dFormat(String, String, Object)}
+     *
+     * @param tag
+     * @param format
+     * @param args
+     */
+    public static void dFormat(String tag, String format, Object... args) {
+        if (isLoggable(DEBUG, tag)) {
+            printFormatted(DEBUG, tag, format, args);
+        }
+    }
+
+    /**
+     * Send an {@link LogUtil#INFO} log message built from {@code format},
+     * each "{}" replaced by an argument, only if it will be printed.
+     *
+     * @param tag
+     * @param format
+     * @param arg
+     */
+    public static void iFormat(String tag, String format, Object arg) {
+        if (isLoggable(INFO, tag)) {
+            printFormatted(INFO, tag, format, new Object[]{arg});
+        }
+    }
+
+    /**
+     * see {@link #iFormat(String, String, Object)}
+     *
+     * @param tag
+     * @param format
+     * @param arg1
+     * @param arg2
+     */
+    public static void iFormat(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(INFO, tag)) {
+            printFormatted(INFO, tag, format, new Object[]{arg1, arg2});
+        }
+    }
+
+    /**
+     * see {@link #iFormat(String, String, Object)}
+     *
+     * @param tag
+     * @param format
+     * @param args
+     */
+    public static void iFormat(String tag, String format, Object... args) {
+        if (isLoggable(INFO, tag)) {
+            printFormatted(INFO, tag, format, args);
+        }
+    }
+
+    /**
+     * Send an {@link LogUtil#WARN} log message built from {@code format},
+     * each "{}" replaced by an argument, only if it will be printed.
+     *
+     * @param tag
+     * @param format
+     * @param arg
+     */
+    public static void wFormat(String tag, String format, Object arg) {
+        if (isLoggable(WARN, tag)) {
+            printFormatted(WARN, tag, format, new Object[]{arg});
+        }
+    }
+
+    /**
+     * see {@link #wFormat(String, String, Object)}
+     *
+     * @param tag
+     * @param format
+     * @param arg1
+     * @param arg2
+     */
+    public static void wFormat(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(WARN, tag)) {
+            printFormatted(WARN, tag, format, new Object[]{arg1, arg2});
+        }
+    }
+
+    /**
+     * see {@link #wFormat(String, String, Object)}
+     *
+     * @param tag
+     * @param format
+     * @param args
+     */
+    public static void wFormat(String tag, String format, Object... args) {
+        if (isLoggable(WARN, tag)) {
+            printFormatted(WARN, tag, format, args);
+        }
+    }
+
+    /**
+     * Send an {@link LogUtil#ERROR} log message built from {@code format},
+     * each "{}" replaced by an argument, only if it will be printed.
+     *
+     * @param tag
+     * @param format
+     * @param arg
+     */
+    public static void eFormat(String tag, String format, Object arg) {
+        if (isLoggable(ERROR, tag)) {
+            printFormatted(ERROR, tag, format, new Object[]{arg});
+        }
+    }
+
+    /**
+     * see {@link #eFormat(String, String, Object)}
+     *
+     * @param tag
+     * @param format
+     * @param arg1
+     * @param arg2
+     */
+    public static void eFormat(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(ERROR, tag)) {
+            printFormatted(ERROR, tag, format, new Object[]{arg1, arg2});
+        }
+    }
+
+    /**
+     * see {@link #eFormat(String, String, Object)}
+     *
+     * @param tag
+     * @param format
+     * @param args
+     */
+    public static void eFormat(String tag, String format, Object... args) {
+        if (isLoggable(ERROR, tag)) {
+            printFormatted(ERROR, tag, format, args);
+        }
+    }
+
     /**
      * Send an specify {@code logType} log message.
      *
@@ -662,6 +979,30 @@ public class LogUtil {
         printLog(logType, tag, msg, author, e);
     }
 
+    /**
+     * Return true if a message of {@code logType} would be printed, taking the
+     * {@link #setTagLevel(String, int) level of the tag} into account. Guard
+     * messages that are expensive to build with it. Rate limit and sampling
+     * are applied when the message is printed.
+     *
+     * @param logType log type, e.g. {@link #ERROR}, {@link #DEBUG}.
+     * @param tag     tag of the message, null for the default tag
+     * @return
+     */
+    public static boolean isLoggable(int logType, String tag) {
+        return isLoggable(logType, findTagRule(tag));
+    }
+
+    private static boolean isLoggable(int logType, TagRule rule) {
+        if (!sToggleRelease && !sToggle) {
+            return false;
+        }
+        if (rule != null && rule.level != 0) {
+            return logType >= rule.level;
+        }
+        return logType >= (sToggleRelease ? INFO : sLogLevel);
+    }
+
     /**
      * Send an specify {@code logType} log message.
      *
@@ -672,113 +1013,249 @@ public class LogUtil {
      * @param e
      */
     private static void printLog(int logType, String tag, String msg, String author, Throwable e) {
-        if (sToggleRelease) {
-            if (logType < INFO) {
-                return;
-            }
+        TagRule rule = findTagRule(tag);
+        if (!isLoggable(logType, rule) || (rule != null && !rule.admit())) {
+            return;
+        }
+        LogBuffer buffer = LogBuffer.obtain();
+        try {
+            StringBuilder msgStr = buffer.builder;
+            appendSuppressed(msgStr, rule);
+            appendPrefix(msgStr, author);
+            msgStr.append(msg);
+            emit(logType, tag, msgStr, e);
+        } finally {
+            buffer.release();
+        }
+    }
 
-            String tagStr = (tag == null) ? sTagDefault : tag;
-            String msgStr = (e == null) ? msg : (msg + "\n" + android.util.Log
-                    .getStackTraceString(e));
+    /**
+     * Prints a message built from {@code format}, each "{}" replaced by the
+     * next argument. The message is only built if it is printed. A last
+     * argument that is a Throwable without a "{}" of its own is logged as the
+     * exception.
+     */
+    private static void printFormatted(int logType, String tag, String format, Object[] args) {
+        TagRule rule = findTagRule(tag);
+        if (rule != null && !rule.admit()) {
+            return;
+        }
+        LogBuffer buffer = LogBuffer.obtain();
+        try {
+            StringBuilder msgStr = buffer.builder;
+            appendSuppressed(msgStr, rule);
+            appendPrefix(msgStr, null);
+            int argIndex = 0;
+            int start = 0;
+            int placeholder;
+            while ((placeholder = format.indexOf("{}", start)) >= 0 && argIndex < args.length) {
+                msgStr.append(format, start, placeholder);
+                // an argument's toString() may throw, the buffer is released anyway
+                msgStr.append(args[argIndex++]);
+                start = placeholder + 2;
+            }
+            msgStr.append(format, start, format.length());
+            Throwable e = null;
+            if (argIndex < args.length && args[args.length - 1] instanceof Throwable) {
+                e = (Throwable) args[args.length - 1];
+            }
+            emit(logType, tag, msgStr, e);
+        } finally {
+            buffer.release();
+        }
+    }
 
-            switch (logType) {
-                case ERROR:
-                    android.util.Log.e(tagStr, msgStr);
+    private static void appendSuppressed(StringBuilder msgStr, TagRule rule) {
+        if (rule == null) {
+            return;
+        }
+        int suppressed = rule.takeSuppressed();
+        if (suppressed > 0) {
+            msgStr.append("(");
+            msgStr.append(suppressed);
+            msgStr.append(" suppressed) ");
+        }
+    }
 
-                    break;
-                case WARN:
-                    android.util.Log.w(tagStr, msgStr);
+    private static void appendPrefix(StringBuilder msgStr, String author) {
+        if (sToggleRelease) {
+            return;
+        }
+        if (sToggleAuthor) {
+            msgStr.append("[");
+            msgStr.append(author == null ? sAuthorDefault : author);
+            msgStr.append("] ");
+        }
 
-                    break;
-                case INFO:
-                    android.util.Log.i(tagStr, msgStr);
+        if (sToggleThread) {
+            msgStr.append("<");
+            msgStr.append(Thread.currentThread().getName());
+            msgStr.append("> ");
+        }
 
-                    break;
-                default:
-                    break;
+        if (sToggleClassMethod || sToggleFileLineNumber) {
+            StackTraceElement ste = findCaller();
+            if (ste == null) {
+                return;
             }
 
-            return;
-        }
+            if (sToggleClassMethod) {
+                String className = ste.getClassName();
 
-        if ((sToggleRelease && logType >= INFO)
-                || (!sToggleRelease && sToggle && logType >= sLogLevel)) {
-            String tagStr = tag == null ? sTagDefault : tag;
-            StringBuilder msgStr = new StringBuilder();
+                msgStr.append("[");
+                msgStr.append(className.substring(className.lastIndexOf('.') + 1));
+                msgStr.append("::");
+                msgStr.append(ste.getMethodName());
+                msgStr.append("] ");
+            }
 
-            if (sToggleAuthor) {
+            if (sToggleFileLineNumber) {
                 msgStr.append("[");
-                msgStr.append(author == null ? sAuthorDefault : author);
+                msgStr.append(ste.getFileName());
+                msgStr.append("::");
+                msgStr.append(ste.getLineNumber());
                 msgStr.append("] ");
             }
+        }
+    }
 
-            if (sToggleThread || sToggleClassMethod || sToggleFileLineNumber) {
-                Thread currentThread = Thread.currentThread();
-
-                if (sToggleThread) {
-                    msgStr.append("<");
-                    msgStr.append(currentThread.getName());
-                    msgStr.append("> ");
-                }
-
-                if (sToggleClassMethod) {
-                    StackTraceElement ste = currentThread.getStackTrace()[4];
-
-                    String className = ste.getClassName();
-
-                    msgStr.append("[");
-                    msgStr.append(className == null ? null : className.substring(className
-                            .lastIndexOf('.') + 1));
-                    msgStr.append("::");
-                    msgStr.append(ste.getMethodName());
-                    msgStr.append("] ");
-                }
-
-                if (sToggleFileLineNumber) {
-                    StackTraceElement ste = currentThread.getStackTrace()[4];
-
-                    msgStr.append("[");
-                    msgStr.append(ste.getFileName());
-                    msgStr.append("::");
-                    msgStr.append(ste.getLineNumber());
-                    msgStr.append("] ");
-                }
+    /**
+     * Walks the stack once and returns the first frame outside this class.
+     */
+    private static StackTraceElement findCaller() {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        String name = LogUtil.class.getName();
+        for (StackTraceElement ste : stack) {
+            if (!name.equals(ste.getClassName())) {
+                return ste;
             }
+        }
+        return null;
+    }
 
-            msgStr.append(msg);
+    private static void emit(int logType, String tag, StringBuilder msgStr, Throwable e) {
+        String tagStr = tag == null ? sTagDefault : tag;
 
-            if (e != null && sToggleThrowable) {
-                msgStr.append('\n');
-                msgStr.append(android.util.Log.getStackTraceString(e));
-            }
+        if (e != null && (sToggleRelease || sToggleThrowable)) {
+            msgStr.append('\n');
+            msgStr.append(android.util.Log.getStackTraceString(e));
+        }
 
-            switch (logType) {
-                case ERROR:
-                    android.util.Log.e(tagStr, msgStr.toString());
+        String msg = msgStr.toString();
+        switch (logType) {
+            case ERROR:
+                android.util.Log.e(tagStr, msg);
 
-                    break;
-                case WARN:
-                    android.util.Log.w(tagStr, msgStr.toString());
+                break;
+            case WARN:
+                android.util.Log.w(tagStr, msg);
 
-                    break;
-                case INFO:
-                    android.util.Log.i(tagStr, msgStr.toString());
+                break;
+            case INFO:
+                android.util.Log.i(tagStr, msg);
 
-                    break;
-                case DEBUG:
-                    android.util.Log.d(tagStr, msgStr.toString());
+                break;
+            case DEBUG:
+                android.util.Log.d(tagStr, msg);
 
-                    break;
-                case VERBOSE:
-                    android.util.Log.v(tagStr, msgStr.toString());
+                break;
+            case VERBOSE:
+                android.util.Log.v(tagStr, msg);
 
-                    break;
-                default:
-                    break;
+                break;
+            default:
+                return;
+        }
+
+        LogFileAppender appender = sFileAppender;
+        if (appender != null) {
+            appender.append(logType, tagStr, msg);
+        }
+    }
+
+    /**
+     * Settings of one tag and the counters applying them.
+     */
+    private static class TagRule {
+        final int level;
+        final int maxPerSecond;
+        final int sampleEvery;
+        private final AtomicInteger sampleCount = new AtomicInteger();
+        private final AtomicLong windowStart = new AtomicLong();
+        private final AtomicInteger windowCount = new AtomicInteger();
+        private final AtomicInteger suppressed = new AtomicInteger();
+
+        TagRule(int level, int maxPerSecond, int sampleEvery) {
+            this.level = level;
+            this.maxPerSecond = maxPerSecond;
+            this.sampleEvery = Math.max(1, sampleEvery);
+        }
+
+        /**
+         * Return true if a message that passed the level is printed.
+         */
+        boolean admit() {
+            if (sampleEvery > 1
+                    && (sampleCount.getAndIncrement() & Integer.MAX_VALUE) % sampleEvery != 0) {
+                return false;
+            }
+            if (maxPerSecond <= 0) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            long start = windowStart.get();
+            if (now - start >= 1000 && windowStart.compareAndSet(start, now)) {
+                windowCount.set(0);
             }
+            if (windowCount.incrementAndGet() > maxPerSecond) {
+                suppressed.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        int takeSuppressed() {
+            return suppressed.get() == 0 ? 0 : suppressed.getAndSet(0);
         }
     }
-    
+
+    /**
+     * Message builder reused by the logging thread. A message logged while
+     * another is being built, e.g. from an argument's toString(), gets a
+     * builder of its own.
+     */
+    private static class LogBuffer {
+        private static final int MAX_KEPT_CAPACITY = 4096;
+
+        private static final ThreadLocal<LogBuffer> sBuffers = new ThreadLocal<LogBuffer>() {
+            @Override
+            protected LogBuffer initialValue() {
+                return new LogBuffer();
+            }
+        };
+
+        StringBuilder builder = new StringBuilder(256);
+        private boolean inUse;
+
+        static LogBuffer obtain() {
+            LogBuffer buffer = sBuffers.get();
+            if (buffer.inUse) {
+                return new LogBuffer();
+            }
+            buffer.inUse = true;
+            if (buffer.builder.capacity() > MAX_KEPT_CAPACITY) {
+                buffer.builder = new StringBuilder(256);
+            } else {
+                buffer.builder.setLength(0);
+            }
+            return buffer;
+        }
+
+        void release() {
+            inUse = false;
+        }
+    }
+
     public static void initLogUtil() {
         LogUtil.setToggleRelease(false);
 
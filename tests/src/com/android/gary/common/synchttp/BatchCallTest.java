@@ -0,0 +1,64 @@
+package com.android.gary.common.synchttp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class BatchCallTest extends TestCase {
+
+    public void testSuccessfulStatuses() throws Exception {
+        for (int status : new int[]{200, 201, 204, 299, 304}) {
+            BatchCall call = new BatchCall("http://api.example.com/x", null, null);
+            assertTrue(call.complete(status, "body"));
+            assertEquals(status, call.get().stateCode.intValue());
+            assertEquals("body", call.get().responseBody);
+        }
+    }
+
+    public void testFailedStatusesAreMappedLikeSingleRequests() throws Exception {
+        int[][] expected = {
+                {400, ConnectException.ERROR_CODE_404},
+                {404, ConnectException.ERROR_CODE_404},
+                {429, ConnectException.ERROR_CODE_404},
+                {500, ConnectException.ERROR_CODE_500},
+                {503, ConnectException.ERROR_CODE_500},
+                {302, ConnectException.ERROR_CODE_UNKONW},
+                {100, ConnectException.ERROR_CODE_UNKONW},
+        };
+        for (int[] pair : expected) {
+            BatchCall call = new BatchCall("http://api.example.com/x", null, null);
+            call.complete(pair[0], "why");
+            try {
+                call.get();
+                fail(pair[0] + " succeeded");
+            } catch (ConnectException e) {
+                assertEquals(String.valueOf(pair[0]), pair[1], e.getErrorCode());
+                assertEquals(pair[1], HttpClientUtil.errorCodeFor(pair[0]));
+                assertEquals(pair[0], e.getResponseCallback().stateCode.intValue());
+                assertEquals("why", e.getResponseCallback().responseBody);
+            }
+        }
+    }
+
+    public void testOnlyTheFirstOutcomeCounts() throws Exception {
+        final List<String> outcomes = new ArrayList<String>();
+        BatchCall call = new BatchCall("http://api.example.com/x", null, new BatchCall.Callback() {
+            public void onSuccess(ResponseCallback response) {
+                outcomes.add("success " + response.responseBody);
+            }
+
+            public void onFailure(ConnectException e) {
+                outcomes.add("failure " + e.getErrorCode());
+            }
+        });
+
+        assertTrue(call.complete(200, "first"));
+        assertFalse(call.complete(500, "second"));
+        assertFalse(call.fail(new ConnectException(ConnectException.ERROR_TYPE_CONNECT,
+                ConnectException.ERROR_CODE_IO)));
+        assertEquals("first", call.get().responseBody);
+        assertEquals(1, outcomes.size());
+        assertEquals("success first", outcomes.get(0));
+    }
+}
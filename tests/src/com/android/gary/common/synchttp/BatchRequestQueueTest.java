@@ -0,0 +1,201 @@
+package com.android.gary.common.synchttp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Runs a {@link BatchRequestQueue} against a {@link StandInServer} that
+ * speaks the {@link JsonBatchEncoder} format. Each call in a batch is
+ * answered from its own params: {@code status} for the item status,
+ * {@code omit} to leave it out of the answer, and {@code v} echoed back as
+ * the body. Answers come in reverse order, so matching goes by id.
+ */
+public class BatchRequestQueueTest extends TestCase {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private StandInServer server;
+    private BatchRequestQueue queue;
+
+    private final StandInServer.Handler batchEndpoint = new StandInServer.Handler() {
+        public StandInServer.Response handle(StandInServer.Request request) throws Exception {
+            if (!request.path.equals("/batch")) {
+                return StandInServer.Response.text(200, "single:" + request.body);
+            }
+            JSONArray requests = new JSONObject(request.body).getJSONArray("requests");
+            JSONArray responses = new JSONArray();
+            for (int i = requests.length() - 1; i >= 0; i--) {
+                JSONObject item = requests.getJSONObject(i);
+                JSONObject params = item.getJSONObject("params");
+                if (params.has("omit")) {
+                    continue;
+                }
+                JSONObject answer = new JSONObject();
+                answer.put("id", item.getInt("id"));
+                answer.put("status", Integer.parseInt(params.optString("status", "200")));
+                answer.put("body", "echo:" + params.optString("v"));
+                responses.put(answer);
+            }
+            return new StandInServer.Response(200, JsonBatchEncoder.CONTENT_TYPE,
+                    new JSONObject().put("responses", responses).toString());
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StandInServer(batchEndpoint);
+        queue = new BatchRequestQueue(new HttpClientUtil(new HttpTransport()),
+                server.url("/batch"), new JsonBatchEncoder());
+        queue.setWindow(60 * 1000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        queue.close();
+        server.shutdown();
+    }
+
+    public void testFullBatchIsSentAtOnce() throws Exception {
+        queue.setMaxBatchSize(3);
+        List<BatchCall> calls = new ArrayList<BatchCall>();
+        for (String v : new String[]{"a", "b", "c"}) {
+            calls.add(queue.enqueue(server.url("/item"), new RequestParams("v", v), null));
+        }
+
+        StandInServer.Request request = server.takeRequest(TIMEOUT_MILLIS);
+        assertNotNull("a full batch goes out before the window ends", request);
+        assertEquals("/batch", request.path);
+        assertEquals(JsonBatchEncoder.CONTENT_TYPE, request.header("content-type"));
+        assertEquals("echo:a", await(calls.get(0)).responseBody);
+        assertEquals("echo:b", await(calls.get(1)).responseBody);
+        assertEquals("echo:c", await(calls.get(2)).responseBody);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    public void testBatchIsSentWhenWindowEnds() throws Exception {
+        queue.setWindow(100);
+        long start = System.nanoTime();
+        BatchCall first = queue.enqueue(server.url("/item"), new RequestParams("v", "1"), null);
+        BatchCall second = queue.enqueue(server.url("/item"), new RequestParams("v", "2"), null);
+
+        assertNotNull(server.takeRequest(TIMEOUT_MILLIS));
+        long waitedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("sent after " + waitedMillis + "ms", waitedMillis >= 100);
+        assertEquals("echo:1", await(first).responseBody);
+        assertEquals("echo:2", await(second).responseBody);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    public void testFlushSendsWithoutWaitingForTheWindow() throws Exception {
+        BatchCall first = queue.enqueue(server.url("/item"), new RequestParams("v", "1"), null);
+        BatchCall second = queue.enqueue(server.url("/item"), new RequestParams("v", "2"), null);
+        queue.flush();
+
+        assertEquals("echo:1", await(first).responseBody);
+        assertEquals("echo:2", await(second).responseBody);
+    }
+
+    public void testItemStatusesAreMappedLikeSingleRequests() throws Exception {
+        int[] statuses = {200, 201, 204, 304, 302, 401, 404, 500, 503};
+        queue.setMaxBatchSize(statuses.length);
+        List<BatchCall> calls = new ArrayList<BatchCall>();
+        for (int status : statuses) {
+            calls.add(queue.enqueue(server.url("/item"),
+                    new RequestParams("status", String.valueOf(status), "v", String.valueOf(status)),
+                    null));
+        }
+
+        for (int i = 0; i < statuses.length; i++) {
+            int status = statuses[i];
+            BatchCall call = calls.get(i);
+            boolean success = (status >= 200 && status < 300) || status == 304;
+            try {
+                ResponseCallback response = await(call);
+                assertTrue(status + " should fail", success);
+                assertEquals(status, response.stateCode.intValue());
+            } catch (ConnectException e) {
+                assertFalse(status + " should succeed", success);
+                assertEquals(HttpClientUtil.errorCodeFor(status), e.getErrorCode());
+                assertEquals(status, e.getResponseCallback().stateCode.intValue());
+                assertEquals("echo:" + status, e.getResponseCallback().responseBody);
+            }
+        }
+    }
+
+    public void testCallsMissingFromTheAnswerFail() throws Exception {
+        queue.setMaxBatchSize(3);
+        BatchCall first = queue.enqueue(server.url("/item"), new RequestParams("v", "1"), null);
+        BatchCall missing = queue.enqueue(server.url("/item"),
+                new RequestParams("v", "2", "omit", "true"), null);
+        BatchCall last = queue.enqueue(server.url("/item"), new RequestParams("v", "3"), null);
+
+        assertEquals("echo:1", await(first).responseBody);
+        assertEquals("echo:3", await(last).responseBody);
+        try {
+            await(missing);
+            fail("a call without an answer must not succeed");
+        } catch (ConnectException e) {
+            assertEquals(ConnectException.ERROR_CODE_UNKONW, e.getErrorCode());
+        }
+    }
+
+    public void testSingleCallIsSentUnwrapped() throws Exception {
+        BatchCall call = queue.enqueue(server.url("/item"), new RequestParams("v", "x"), null);
+        queue.flush();
+
+        assertEquals("single:v=x", await(call).responseBody);
+        assertEquals("/item", server.takeRequest(TIMEOUT_MILLIS).path);
+    }
+
+    public void testFailedBatchFailsEveryCall() throws Exception {
+        server.setHandler(new StandInServer.Handler() {
+            public StandInServer.Response handle(StandInServer.Request request) {
+                return StandInServer.Response.text(503, "down");
+            }
+        });
+        BatchCall first = queue.enqueue(server.url("/item"), new RequestParams("v", "1"), null);
+        BatchCall second = queue.enqueue(server.url("/item"), new RequestParams("v", "2"), null);
+        queue.flush();
+
+        for (BatchCall call : new BatchCall[]{first, second}) {
+            try {
+                await(call);
+                fail("the batch failed");
+            } catch (ConnectException e) {
+                assertEquals(ConnectException.ERROR_CODE_500, e.getErrorCode());
+            }
+        }
+    }
+
+    public void testCloseSendsQueuedCallsAndRejectsNewOnes() throws Exception {
+        BatchCall first = queue.enqueue(server.url("/item"), new RequestParams("v", "1"), null);
+        BatchCall second = queue.enqueue(server.url("/item"), new RequestParams("v", "2"), null);
+        queue.close();
+
+        assertEquals("echo:1", await(first).responseBody);
+        assertEquals("echo:2", await(second).responseBody);
+        try {
+            queue.enqueue(server.url("/item"), new RequestParams("v", "3"), null);
+            fail("enqueue after close");
+        } catch (IllegalStateException expected) {
+            // closed
+        }
+    }
+
+    /**
+     * {@link BatchCall#get()} without waiting forever when a batch is lost.
+     */
+    private static ResponseCallback await(BatchCall call) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!call.isDone()) {
+            assertTrue("call not answered in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return call.get();
+    }
+}
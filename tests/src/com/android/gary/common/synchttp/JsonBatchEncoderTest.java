@@ -0,0 +1,102 @@
+package com.android.gary.common.synchttp;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class JsonBatchEncoderTest extends TestCase {
+
+    private final JsonBatchEncoder encoder = new JsonBatchEncoder();
+
+    public void testEncodeNumbersCallsInOrder() throws Exception {
+        RequestParams params = new RequestParams("day", "1");
+        params.put("tag", new ArrayList<String>(Arrays.asList("a", "b")));
+        List<BatchCall> calls = calls(2);
+        calls.set(0, new BatchCall("http://api.example.com/steps", params, null));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(calls).writeTo(out);
+        JSONArray requests = new JSONObject(out.toString("UTF-8")).getJSONArray("requests");
+
+        assertEquals(2, requests.length());
+        JSONObject first = requests.getJSONObject(0);
+        assertEquals(0, first.getInt("id"));
+        assertEquals("http://api.example.com/steps", first.getString("url"));
+        assertEquals("1", first.getJSONObject("params").getString("day"));
+        JSONArray tags = first.getJSONObject("params").getJSONArray("tag");
+        assertEquals("a", tags.getString(0));
+        assertEquals("b", tags.getString(1));
+        assertEquals(1, requests.getJSONObject(1).getInt("id"));
+        assertEquals(0, requests.getJSONObject(1).getJSONObject("params").length());
+    }
+
+    public void testDecodeMatchesAnswersById() throws Exception {
+        List<BatchCall> calls = calls(3);
+        encoder.decode(response("{\"responses\": ["
+                + "{\"id\": 2, \"status\": 200, \"body\": \"two\"},"
+                + "{\"id\": 0, \"status\": 200, \"body\": {\"n\": 0}},"
+                + "{\"id\": 1, \"status\": 404, \"body\": null}]}"), calls);
+
+        assertEquals("{\"n\":0}", calls.get(0).get().responseBody);
+        assertEquals("two", calls.get(2).get().responseBody);
+        try {
+            calls.get(1).get();
+            fail("404 item");
+        } catch (ConnectException e) {
+            assertEquals(ConnectException.ERROR_CODE_404, e.getErrorCode());
+            assertNull(e.getResponseCallback().responseBody);
+        }
+    }
+
+    public void testDecodeFallsBackToPositionWithoutId() throws Exception {
+        List<BatchCall> calls = calls(2);
+        encoder.decode(response("{\"responses\": ["
+                + "{\"status\": 200, \"body\": \"zero\"},"
+                + "{\"status\": 200, \"body\": \"one\"}]}"), calls);
+
+        assertEquals("zero", calls.get(0).get().responseBody);
+        assertEquals("one", calls.get(1).get().responseBody);
+    }
+
+    public void testDecodeLeavesUnansweredCallsOpen() throws Exception {
+        List<BatchCall> calls = calls(2);
+        encoder.decode(response("{\"responses\": ["
+                + "{\"id\": 1, \"status\": 200, \"body\": \"one\"},"
+                + "{\"id\": 7, \"status\": 200, \"body\": \"unknown\"}]}"), calls);
+
+        assertFalse(calls.get(0).isDone());
+        assertEquals("one", calls.get(1).get().responseBody);
+    }
+
+    public void testDecodeRejectsMalformedAnswer() throws Exception {
+        for (String body : new String[]{null, "not json", "{\"other\": []}"}) {
+            try {
+                encoder.decode(response(body), calls(1));
+                fail("decoded " + body);
+            } catch (ConnectException e) {
+                assertEquals(ConnectException.ERROR_CODE_JSON_ERROR, e.getErrorCode());
+            }
+        }
+    }
+
+    private static List<BatchCall> calls(int count) {
+        List<BatchCall> calls = new ArrayList<BatchCall>();
+        for (int i = 0; i < count; i++) {
+            calls.add(new BatchCall("http://api.example.com/" + i, null, null));
+        }
+        return calls;
+    }
+
+    private static ResponseCallback response(String body) {
+        ResponseCallback response = new ResponseCallback();
+        response.stateCode = 200;
+        response.responseBody = body;
+        return response;
+    }
+}
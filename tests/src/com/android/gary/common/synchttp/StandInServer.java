@@ -0,0 +1,203 @@
+package com.android.gary.common.synchttp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small HTTP/1.1 server on the loopback interface that stands in for a
+ * backend in tests. Every request is recorded and answered by a
+ * {@link Handler}; the connection is closed after each answer.
+ */
+public class StandInServer {
+
+    public interface Handler {
+
+        Response handle(Request request) throws Exception;
+    }
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers;
+        public final String body;
+
+        Request(String method, String path, Map<String, String> headers, String body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * @param name header name in lower case
+         */
+        public String header(String name) {
+            return headers.get(name);
+        }
+    }
+
+    public static class Response {
+        final int status;
+        final String contentType;
+        final String body;
+
+        public Response(int status, String contentType, String body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        public static Response text(int status, String body) {
+            return new Response(status, "text/plain; charset=UTF-8", body);
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private volatile Handler handler;
+    private volatile boolean running = true;
+
+    public StandInServer(Handler handler) throws IOException {
+        this.handler = handler;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "Stand-in server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    /**
+     * @return the next request received, or null if none came in time
+     */
+    public Request takeRequest(long timeoutMillis) throws InterruptedException {
+        return requests.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ignore) {
+            // stopping anyway
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            }, "Stand-in connection");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            String[] requestLine = readLine(in).split(" ");
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = readLine(in)).length() > 0) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+            String length = headers.get("content-length");
+            byte[] body = new byte[length != null ? Integer.parseInt(length) : 0];
+            int read = 0;
+            while (read < body.length) {
+                int l = in.read(body, read, body.length - read);
+                if (l < 0) {
+                    throw new IOException("Body cut short");
+                }
+                read += l;
+            }
+            Request request = new Request(requestLine[0], requestLine[1], headers,
+                    new String(body, "UTF-8"));
+            requestCount.incrementAndGet();
+            requests.add(request);
+
+            Response response;
+            try {
+                response = handler.handle(request);
+            } catch (Exception e) {
+                response = Response.text(500, String.valueOf(e));
+            }
+            write(socket.getOutputStream(), response);
+        } catch (IOException ignore) {
+            // the client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+                // done with it
+            }
+        }
+    }
+
+    private static void write(OutputStream out, Response response) throws IOException {
+        boolean bodyless = response.status == 204 || response.status == 304;
+        byte[] body = bodyless || response.body == null
+                ? new byte[0] : response.body.getBytes("UTF-8");
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.status).append(" Stand-in\r\n");
+        if (!bodyless) {
+            head.append("Content-Type: ").append(response.contentType).append("\r\n");
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("Connection: close\r\n\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        out.write(body);
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Connection closed");
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        return line.toString("ISO-8859-1");
+    }
+}